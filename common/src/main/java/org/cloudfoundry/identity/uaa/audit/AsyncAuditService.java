@@ -0,0 +1,436 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Takes the writing of audit events off the thread that publishes them.
+ * <p>
+ * Events are put on a bounded queue and a single writer thread saves them
+ * in batches, using the batch support of {@link JdbcAuditService} when the
+ * delegate is one. The writer takes whatever is queued, up to the batch size,
+ * and waits at most the configured latency for a batch to fill up.
+ * <p>
+ * When the queue is full events are either dropped and counted, or the
+ * publishing thread waits for space, depending on
+ * {@link #setBlockWhenFull(boolean)}. Events the lockout policy depends on
+ * (failed and successful logins and password changes) are never dropped, and
+ * {@link #find(String, long)} and {@link #retrieveFailedLogins(String)} first
+ * wait for the pending events of the principal to be written, so a lockout
+ * decision always sees the previous login attempts. When the delegate does not
+ * count failed logins itself they are counted from its audit history.
+ * <p>
+ * Once shutting down has begun events are no longer queued but written on the
+ * publishing thread, so that none are left behind in the queue.
+ *
+ */
+@ManagedResource
+public class AsyncAuditService implements UaaAuditService, FailedLoginStore, InitializingBean, DisposableBean {
+
+    private static final Pending FLUSH = new Pending(null);
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final UaaAuditService delegate;
+
+    private final Map<String, Integer> pendingByPrincipal = new HashMap<>();
+
+    private final ReadWriteLock queueing = new ReentrantReadWriteLock();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private volatile long lastWriteNanos;
+
+    private int queueSize = 10000;
+
+    private int batchSize = 100;
+
+    private int maxLatencyMillis = 0;
+
+    private int flushTimeoutMillis = 1000;
+
+    private boolean blockWhenFull = false;
+
+    private BlockingQueue<Pending> queue;
+
+    private volatile Thread writer;
+
+    private volatile boolean running;
+
+    // guarded by queueing, true while events are put on the queue
+    private boolean accepting;
+
+    public AsyncAuditService(UaaAuditService delegate) {
+        Assert.notNull(delegate, "An audit service to delegate to is required");
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param queueSize the maximum number of events waiting to be written, 0
+     *            or less to write events on the publishing thread
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param batchSize the maximum number of events written in one go
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxLatencyMillis how long the writer may wait for a batch to fill
+     *            up before writing it, 0 to write whatever is queued straight
+     *            away
+     */
+    public void setMaxLatencyMillis(int maxLatencyMillis) {
+        this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * @param flushTimeoutMillis how long a query waits for the pending events
+     *            of a principal to be written
+     */
+    public void setFlushTimeoutMillis(int flushTimeoutMillis) {
+        this.flushTimeoutMillis = flushTimeoutMillis;
+    }
+
+    /**
+     * @param blockWhenFull true to make publishers wait for space when the
+     *            queue is full, false to drop the event
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (queueSize <= 0) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueSize);
+        running = true;
+        writer = new Thread(new Writer(), "AsyncAuditService.Writer");
+        writer.setDaemon(true);
+        writer.start();
+        setAccepting(true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        // waits for publishers that are putting events on the queue, later
+        // ones write their events themselves
+        setAccepting(false);
+        running = false;
+        // wake the writer up rather than interrupt it, so that a batch it is
+        // writing is not cut short
+        queue.offer(FLUSH);
+        thread.join(flushTimeoutMillis);
+        writer = null;
+        if (thread.isAlive()) {
+            thread.interrupt();
+            thread.join(flushTimeoutMillis);
+        }
+        if (thread.isAlive()) {
+            // the writer still owns the queue and writes what is left when its
+            // current batch is done
+            logger.warn("Audit writer is still busy, leaving " + queue.size() + " queued events to it");
+            return;
+        }
+        // anything left over is written by the thread shutting down
+        List<Pending> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        write(remaining);
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        Lock lock = queueing.readLock();
+        lock.lock();
+        try {
+            if (accepting) {
+                enqueue(auditEvent);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        delegate.log(auditEvent);
+    }
+
+    private void enqueue(AuditEvent auditEvent) {
+        boolean lockout = isLockoutEvent(auditEvent);
+        Pending pending = new Pending(auditEvent);
+        if (lockout) {
+            addPending(auditEvent.getPrincipalId());
+        }
+        if (queue.offer(pending)) {
+            return;
+        }
+        if (lockout || blockWhenFull) {
+            try {
+                queue.put(pending);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (lockout) {
+            removePending(auditEvent.getPrincipalId());
+        }
+        if (dropped.incrementAndGet() % 1000 == 1) {
+            logger.warn("Audit queue is full, " + dropped.get() + " events dropped so far");
+        }
+    }
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        awaitPending(principal);
+        return delegate.find(principal, after);
+    }
+
+    @Override
+    public FailedLogins retrieveFailedLogins(String principalId) {
+        awaitPending(principalId);
+        if (delegate instanceof FailedLoginStore) {
+            return ((FailedLoginStore) delegate).retrieveFailedLogins(principalId);
+        }
+        // the failures since the last successful login, newest first
+        int count = 0;
+        long lastFailure = 0;
+        for (AuditEvent event : delegate.find(principalId, 0)) {
+            if (event.getType() == AuditEventType.UserAuthenticationSuccess) {
+                break;
+            }
+            if (event.getType() == AuditEventType.UserAuthenticationFailure) {
+                lastFailure = Math.max(lastFailure, event.getTime());
+                count++;
+            }
+        }
+        return count == 0 ? null : new FailedLogins(count, lastFailure);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Queue Depth")
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Dropped")
+    public long getDroppedEvents() {
+        return dropped.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Written")
+    public long getWrittenEvents() {
+        return written.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Failed")
+    public long getFailedEvents() {
+        return failed.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Last Write Latency")
+    public long getLastWriteLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastWriteNanos);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Average Write Latency")
+    public long getAverageWriteLatencyMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(writeNanos.get() / count);
+    }
+
+    private void setAccepting(boolean accepting) {
+        Lock lock = queueing.writeLock();
+        lock.lock();
+        try {
+            this.accepting = accepting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isLockoutEvent(AuditEvent auditEvent) {
+        switch (auditEvent.getType()) {
+            case UserAuthenticationSuccess:
+            case UserAuthenticationFailure:
+            case PasswordChangeSuccess:
+                return auditEvent.getPrincipalId() != null;
+            default:
+                return false;
+        }
+    }
+
+    private void addPending(String principalId) {
+        synchronized (pendingByPrincipal) {
+            Integer count = pendingByPrincipal.get(principalId);
+            pendingByPrincipal.put(principalId, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void removePending(String principalId) {
+        synchronized (pendingByPrincipal) {
+            Integer count = pendingByPrincipal.get(principalId);
+            if (count == null || count <= 1) {
+                pendingByPrincipal.remove(principalId);
+                pendingByPrincipal.notifyAll();
+            } else {
+                pendingByPrincipal.put(principalId, count - 1);
+            }
+        }
+    }
+
+    private void awaitPending(String principalId) {
+        if (writer == null || principalId == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + flushTimeoutMillis;
+        synchronized (pendingByPrincipal) {
+            if (!pendingByPrincipal.containsKey(principalId)) {
+                return;
+            }
+            // cut short the wait for a batch to fill up
+            queue.offer(FLUSH);
+            try {
+                long remaining = flushTimeoutMillis;
+                while (pendingByPrincipal.containsKey(principalId) && remaining > 0) {
+                    pendingByPrincipal.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (pendingByPrincipal.containsKey(principalId)) {
+                logger.warn("Timed out waiting for the audit events of " + principalId + " to be written");
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<AuditEvent> events = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            if (pending.event != null) {
+                events.add(pending.event);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (delegate instanceof JdbcAuditService) {
+                ((JdbcAuditService) delegate).log(events);
+            } else {
+                for (AuditEvent event : events) {
+                    delegate.log(event);
+                }
+            }
+            written.addAndGet(events.size());
+        } catch (RuntimeException e) {
+            failed.addAndGet(events.size());
+            logger.error("Unable to write " + events.size() + " audit events", e);
+        } finally {
+            lastWriteNanos = System.nanoTime() - start;
+            writeNanos.addAndGet(lastWriteNanos);
+            batches.incrementAndGet();
+            for (AuditEvent event : events) {
+                if (isLockoutEvent(event)) {
+                    removePending(event.getPrincipalId());
+                }
+            }
+        }
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            List<Pending> batch = new ArrayList<>(batchSize);
+            while (running) {
+                try {
+                    batch.add(queue.take());
+                    fill(batch);
+                } catch (InterruptedException e) {
+                    // shutting down, whatever was taken is still written
+                }
+                write(batch);
+                batch.clear();
+            }
+            queue.drainTo(batch);
+            write(batch);
+        }
+
+        private void fill(List<Pending> batch) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + maxLatencyMillis;
+            while (batch.size() < batchSize && !batch.contains(FLUSH)) {
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                Pending next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            }
+        }
+    }
+
+    private static final class Pending {
+
+        private final AuditEvent event;
+
+        private Pending(AuditEvent event) {
+            this.event = event;
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+/**
+ * Keeps a running count of the consecutive failed logins of each principal, so
+ * that a lockout decision needs a single lookup instead of a scan of the audit
+ * history.
+ *
+ */
+public interface FailedLoginStore {
+
+    /**
+     * @param principalId the id of the principal
+     * @return the failed logins of the principal since its last successful
+     *         login, or null if there are none
+     */
+    FailedLogins retrieveFailedLogins(String principalId);
+
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+/**
+ * The number of consecutive failed logins of a principal and the time of the
+ * most recent one.
+ *
+ */
+public class FailedLogins {
+
+    private final int count;
+
+    private final long lastFailure;
+
+    public FailedLogins(int count, long lastFailure) {
+        this.count = count;
+        this.lastFailure = lastFailure;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the time of the most recent failure in milliseconds since the
+     *         epoch
+     */
+    public long getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "FailedLogins [count=" + count + ", lastFailure=" + lastFailure + "]";
+    }
+
+}
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.audit;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.sql.DataSource;
@@ -28,6 +29,8 @@ import org.springframework.jdbc.core.RowMapper;
  */
 public class JdbcAuditService implements UaaAuditService {
 
+    public static final String INSERT_SQL = "insert into sec_audit (principal_id, event_type, origin, event_data, created, identity_zone_id) values (?,?,?,?,?,?)";
+
     private final JdbcTemplate template;
 
     public JdbcAuditService(DataSource dataSource) {
@@ -47,15 +50,34 @@ public class JdbcAuditService implements UaaAuditService {
 
     @Override
     public void log(AuditEvent auditEvent) {
+        template.update(INSERT_SQL, getInsertArgs(auditEvent));
+    }
+
+    /**
+     * Saves a number of events with a single JDBC batch, in the order given.
+     */
+    public void log(List<AuditEvent> auditEvents) {
+        if (auditEvents.isEmpty()) {
+            return;
+        }
+        List<Object[]> batch = new ArrayList<>(auditEvents.size());
+        for (AuditEvent auditEvent : auditEvents) {
+            batch.add(getInsertArgs(auditEvent));
+        }
+        template.batchUpdate(INSERT_SQL, batch);
+    }
+
+    private Object[] getInsertArgs(AuditEvent auditEvent) {
         String origin = auditEvent.getOrigin();
         String data = auditEvent.getData();
         origin = origin == null ? "" : origin;
         origin = origin.length() > 255 ? origin.substring(0, 255) : origin;
         data = data == null ? "" : data;
         data = data.length() > 255 ? data.substring(0, 255) : data;
-        template.update("insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id) values (?,?,?,?,?)",
-                        auditEvent.getPrincipalId(), auditEvent.getType().getCode(), auditEvent.getOrigin(),
-                        auditEvent.getData(), auditEvent.getIdentityZoneId());
+        // the event time rather than the insert time, events may be written
+        // some time after they happened
+        return new Object[] {auditEvent.getPrincipalId(), auditEvent.getType().getCode(), origin, data,
+                        new Timestamp(auditEvent.getTime()), auditEvent.getIdentityZoneId()};
     }
 
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
@@ -12,21 +12,60 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.audit;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.RowMapper;
+
 /**
  * An audit service that subscribes to audit events but only saves enough data
  * to answer queries about consecutive
  * failed logins.
+ * <p>
+ * Besides the failure history in <code>sec_audit</code> a single counter row
+ * per principal is kept up to date with one upsert per failed login, so that
+ * {@link #retrieveFailedLogins(String)} is a primary key lookup. The counter
+ * restarts when the previous failure is older than the counting period, so
+ * it counts at least the failures within the period but may also count
+ * earlier ones. Old
+ * data is removed by a background sweep rather than on every failed login.
  * 
  * @author Dave Syer
  */
-public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
+public class JdbcFailedLoginCountingAuditService extends JdbcAuditService implements FailedLoginStore,
+                InitializingBean, DisposableBean {
+
+    public static final String INCREMENT_FAILURE_SQL = "update sec_failed_login set "
+                    + "failure_count = case when last_failure < ? then 1 else failure_count + 1 end, "
+                    + "last_failure = ? where principal_id = ?";
+
+    public static final String INSERT_FAILURE_SQL = "insert into sec_failed_login (principal_id, failure_count, last_failure) values (?,1,?)";
+
+    public static final String RETRIEVE_FAILURE_SQL = "select failure_count, last_failure from sec_failed_login where principal_id = ?";
+
+    private final Log logger = LogFactory.getLog(getClass());
 
     private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
 
+    private int countFailuresWithinMillis = 3600 * 1000; // 1hr
+
+    private int sweepIntervalSeconds = 300;
+
+    private Timer timer;
+
     public JdbcFailedLoginCountingAuditService(DataSource dataSource) {
         super(dataSource);
     }
@@ -38,17 +77,50 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         this.saveDataPeriodMillis = saveDataPeriodMillis;
     }
 
+    /**
+     * The failure count restarts when the previous failure is older than this,
+     * should match the lockout policy.
+     * 
+     * @param countFailuresWithin the period in seconds
+     */
+    public void setCountFailuresWithin(int countFailuresWithin) {
+        this.countFailuresWithinMillis = countFailuresWithin * 1000;
+    }
+
+    /**
+     * @param sweepIntervalSeconds how often old data is removed, 0 or less to
+     *            turn the background sweep off
+     */
+    public void setSweepIntervalSeconds(int sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (sweepIntervalSeconds > 0) {
+            long interval = sweepIntervalSeconds * 1000l;
+            timer = new Timer("JdbcFailedLoginCountingAuditService.Sweep", true);
+            timer.schedule(new SweepTask(), interval, interval);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
     @Override
     public void log(AuditEvent auditEvent) {
         switch (auditEvent.getType()) {
             case UserAuthenticationSuccess:
             case PasswordChangeSuccess:
-                getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
+                reset(auditEvent.getPrincipalId());
                 break;
             case UserAuthenticationFailure:
-                getJdbcTemplate().update("delete from sec_audit where created < ?",
-                                new Timestamp(System.currentTimeMillis()
-                                                - saveDataPeriodMillis));
+                countFailure(auditEvent.getPrincipalId(), auditEvent.getTime());
                 super.log(auditEvent);
                 break;
             default:
@@ -56,4 +128,88 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         }
     }
 
+    @Override
+    public void log(List<AuditEvent> auditEvents) {
+        List<AuditEvent> failures = new ArrayList<>();
+        for (AuditEvent auditEvent : auditEvents) {
+            switch (auditEvent.getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    // the failures so far must be saved before they are reset
+                    super.log(failures);
+                    failures.clear();
+                    reset(auditEvent.getPrincipalId());
+                    break;
+                case UserAuthenticationFailure:
+                    countFailure(auditEvent.getPrincipalId(), auditEvent.getTime());
+                    failures.add(auditEvent);
+                    break;
+                default:
+                    break;
+            }
+        }
+        super.log(failures);
+    }
+
+    @Override
+    public FailedLogins retrieveFailedLogins(String principalId) {
+        List<FailedLogins> result = getJdbcTemplate().query(RETRIEVE_FAILURE_SQL, new FailedLoginsRowMapper(),
+                        principalId);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Removes audit data older than the save data period and counters whose
+     * last failure is older than both the save data period and the counting
+     * period. Called periodically in the background.
+     * 
+     * @return the number of rows removed
+     */
+    public int deleteExpired() {
+        long now = System.currentTimeMillis();
+        Timestamp auditCutoff = new Timestamp(now - saveDataPeriodMillis);
+        Timestamp counterCutoff = new Timestamp(now - Math.max(saveDataPeriodMillis, countFailuresWithinMillis));
+        int deleted = getJdbcTemplate().update("delete from sec_audit where created < ?", auditCutoff);
+        deleted += getJdbcTemplate().update("delete from sec_failed_login where last_failure < ?", counterCutoff);
+        return deleted;
+    }
+
+    private void reset(String principalId) {
+        getJdbcTemplate().update("delete from sec_failed_login where principal_id=?", principalId);
+        getJdbcTemplate().update("delete from sec_audit where principal_id=?", principalId);
+    }
+
+    private void countFailure(String principalId, long time) {
+        Timestamp restartBefore = new Timestamp(time - countFailuresWithinMillis);
+        Timestamp lastFailure = new Timestamp(time);
+        if (getJdbcTemplate().update(INCREMENT_FAILURE_SQL, restartBefore, lastFailure, principalId) > 0) {
+            return;
+        }
+        try {
+            getJdbcTemplate().update(INSERT_FAILURE_SQL, principalId, lastFailure);
+        } catch (DuplicateKeyException e) {
+            // another node counted a failure for the same principal first
+            getJdbcTemplate().update(INCREMENT_FAILURE_SQL, restartBefore, lastFailure, principalId);
+        }
+    }
+
+    private class SweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                int deleted = deleteExpired();
+                logger.debug("Removed " + deleted + " expired failed login records");
+            } catch (DataAccessException e) {
+                logger.warn("Unable to remove expired failed login records", e);
+            }
+        }
+    }
+
+    private static class FailedLoginsRowMapper implements RowMapper<FailedLogins> {
+        @Override
+        public FailedLogins mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new FailedLogins(rs.getInt(1), rs.getTimestamp(2).getTime());
+        }
+    }
+
 }
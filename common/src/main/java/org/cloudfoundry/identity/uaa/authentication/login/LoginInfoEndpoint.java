@@ -25,6 +25,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -50,10 +51,13 @@ import org.cloudfoundry.identity.uaa.login.saml.IdentityProviderConfigurator;
 import org.cloudfoundry.identity.uaa.login.saml.IdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.login.saml.LoginSamlAuthenticationToken;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.core.env.Environment;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.core.io.support.PropertiesLoaderUtils;
 import org.springframework.http.HttpStatus;
@@ -66,8 +70,10 @@ import org.springframework.security.oauth2.provider.ClientDetailsService;
 import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 /**
  * Controller that sends login info (e.g. prompts) to clients wishing to
@@ -101,6 +107,8 @@ public class LoginInfoEndpoint {
     private ExpiringCodeStore expiringCodeStore;
     private ClientDetailsService clientDetailsService;
 
+    private final ExpiringCache<String, LoginInfo> loginInfos = new ExpiringCache<>(1000, 0);
+
     public void setExpiringCodeStore(ExpiringCodeStore expiringCodeStore) {
         this.expiringCodeStore = expiringCodeStore;
     }
@@ -115,6 +123,7 @@ public class LoginInfoEndpoint {
 
     public void setIdpDefinitions(IdentityProviderConfigurator idpDefinitions) {
         this.idpDefinitions = idpDefinitions;
+        loginInfos.clear();
     }
 
     public AuthenticationManager getAuthenticationManager() {
@@ -134,6 +143,7 @@ public class LoginInfoEndpoint {
 
     public void setEntityID(String entityID) {
         this.entityID = entityID;
+        loginInfos.clear();
     }
 
     public LoginInfoEndpoint() {
@@ -154,6 +164,7 @@ public class LoginInfoEndpoint {
 
     public void setPrompts(List<Prompt> prompts) {
         this.prompts = prompts;
+        loginInfos.clear();
     }
 
     public List<Prompt> getPrompts() {
@@ -165,8 +176,17 @@ public class LoginInfoEndpoint {
         return login(model, principal, Collections.<String>emptyList(), false);
     }
 
+    /**
+     * Answers polls with an unchanged ETag with a 304 without rendering the
+     * response.
+     */
     @RequestMapping(value = {"/info" }, headers = "Accept=application/json")
-    public String infoForJson(Model model, Principal principal) {
+    public String infoForJson(Model model, Principal principal, WebRequest webRequest) {
+        // nothing that depends on the principal is rendered as JSON
+        if (webRequest != null
+                        && webRequest.checkNotModified(getLoginInfo(Collections.<String> emptyList(), true, null).getETag())) {
+            return null;
+        }
         return login(model, principal, Collections.<String>emptyList(), true);
     }
 
@@ -185,22 +205,8 @@ public class LoginInfoEndpoint {
     }
 
     private String login(Model model, Principal principal, List<String> excludedPrompts, boolean nonHtml, HttpServletRequest request) {
-        populatePrompts(model, excludedPrompts, nonHtml);
-        setCommitInfo(model);
-        model.addAttribute("zone_name", IdentityZoneHolder.get().getName());
-        model.addAttribute("links", getLinksInfo());
-
-        // Entity ID to start the discovery
-        model.addAttribute("entityID", UaaUrlUtils.getSubdomain() + entityID);
-
-        List<IdentityProviderDefinition> idps = getIdentityProviderDefinitions(request != null ? request.getSession(false) : null);
-        model.addAttribute("idpDefinitions", idps);
-        for (IdentityProviderDefinition idp : idps) {
-            if(idp.isShowSamlLink()) {
-                model.addAttribute("showSamlLoginLinks", true);
-                break;
-            }
-        }
+        LoginInfo loginInfo = getLoginInfo(excludedPrompts, nonHtml, request != null ? request.getSession(false) : null);
+        model.addAllAttributes(loginInfo.getAttributes());
 
         if (principal == null) {
             boolean selfServiceLinksEnabled = !"false".equalsIgnoreCase(environment.getProperty("login.selfServiceLinksEnabled"));
@@ -223,32 +229,74 @@ public class LoginInfoEndpoint {
         return "home";
     }
 
-    private List<IdentityProviderDefinition> getIdentityProviderDefinitions(HttpSession session) {
-        List<IdentityProviderDefinition> idps = idpDefinitions.getIdentityProviderDefinitionsForZone(IdentityZoneHolder.get());
+    /**
+     * @return the login information of the current zone for the client of
+     *         the saved authorization request, if there is one, built when
+     *         it is first asked for and again only after the identity
+     *         providers changed
+     */
+    private LoginInfo getLoginInfo(List<String> excludedPrompts, boolean nonHtml, HttpSession session) {
+        boolean clientRestricted = false;
+        List<String> allowedIdps = null;
         SavedRequest savedRequest;
         if (session != null && (savedRequest = (SavedRequest) session.getAttribute("SPRING_SECURITY_SAVED_REQUEST")) != null) {
             String redirectUrl = savedRequest.getRedirectUrl();
             String[] client_ids = savedRequest.getParameterValues("client_id");
             if (redirectUrl != null && redirectUrl.contains("/oauth/authorize") && client_ids != null && client_ids.length != 0) {
                 ClientDetails clientDetails = clientDetailsService.loadClientByClientId(client_ids[0]);
-                List<String> allowedIdps = (List<String>) clientDetails.getAdditionalInformation().get(ClientConstants.ALLOWED_PROVIDERS);
-                idps = idpDefinitions.getIdentityProviderDefinitions(allowedIdps, IdentityZoneHolder.get(), !IdentityZoneHolder.isUaa());
+                allowedIdps = (List<String>) clientDetails.getAdditionalInformation().get(ClientConstants.ALLOWED_PROVIDERS);
+                clientRestricted = true;
+            }
+        }
+        IdentityZone zone = IdentityZoneHolder.get();
+        // clients with the same allowed providers share their login information
+        String key = zone.getId() + "|" + zone.getSubdomain() + "|" + zone.getName() + "|" + nonHtml + "|"
+                        + excludedPrompts + "|" + (clientRestricted ? String.valueOf(allowedIdps) : "*");
+        long idpVersion = idpDefinitions.getVersion();
+        LoginInfo loginInfo = loginInfos.get(key);
+        if (loginInfo == null || loginInfo.getIdpVersion() != idpVersion) {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            populatePrompts(attributes, excludedPrompts, nonHtml);
+            setCommitInfo(attributes);
+            attributes.put("zone_name", zone.getName());
+            attributes.put("links", Collections.unmodifiableMap(getLinksInfo()));
+
+            // Entity ID to start the discovery
+            attributes.put("entityID", UaaUrlUtils.getSubdomain() + entityID);
+
+            List<IdentityProviderDefinition> idps = clientRestricted ? idpDefinitions.getIdentityProviderDefinitions(
+                            allowedIdps, zone, !IdentityZoneHolder.isUaa()) : idpDefinitions
+                            .getIdentityProviderDefinitionsForZone(zone);
+            attributes.put("idpDefinitions", Collections.unmodifiableList(new ArrayList<>(idps)));
+            for (IdentityProviderDefinition idp : idps) {
+                if(idp.isShowSamlLink()) {
+                    attributes.put("showSamlLoginLinks", true);
+                    break;
+                }
             }
+            loginInfo = new LoginInfo(idpVersion, attributes);
+            loginInfos.put(key, loginInfo);
         }
-        return idps;
+        return loginInfo;
     }
 
-    private void setCommitInfo(Model model) {
-        model.addAttribute("commit_id", gitProperties.getProperty("git.commit.id.abbrev", "UNKNOWN"));
-        model.addAttribute(
+    private void setCommitInfo(Map<String, Object> attributes) {
+        attributes.put("commit_id", gitProperties.getProperty("git.commit.id.abbrev", "UNKNOWN"));
+        attributes.put(
                         "timestamp",
                         gitProperties.getProperty("git.commit.time",
                                         new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date())));
-        model.addAttribute("app", UaaStringUtils.getMapFromProperties(buildProperties, "build."));
+        attributes.put("app", Collections.unmodifiableMap(UaaStringUtils.getMapFromProperties(buildProperties, "build.")));
     }
 
 
     public void populatePrompts(Model model, List<String> exclude, boolean nonHtml) {
+        Map<String, Object> attributes = new HashMap<>();
+        populatePrompts(attributes, exclude, nonHtml);
+        model.addAllAttributes(attributes);
+    }
+
+    private void populatePrompts(Map<String, Object> attributes, List<String> exclude, boolean nonHtml) {
         Map<String, String[]> map = new LinkedHashMap<>();
         List<Map<String,String>> list = new LinkedList<>();
         for (Prompt prompt : prompts) {
@@ -265,9 +313,9 @@ public class LoginInfoEndpoint {
             }
         }
         if (nonHtml) {
-            model.addAttribute("prompts", list);
+            attributes.put("prompts", Collections.unmodifiableList(list));
         } else {
-            model.addAttribute("prompts", map);
+            attributes.put("prompts", Collections.unmodifiableMap(map));
         }
 
     }
@@ -372,6 +420,7 @@ public class LoginInfoEndpoint {
 
     public void setUaaBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        loginInfos.clear();
         try {
             URI uri = new URI(baseUrl);
             setUaaHost(uri.getHost());
@@ -390,6 +439,7 @@ public class LoginInfoEndpoint {
 
     public void setLinks(Map<String, String> links) {
         this.links = links;
+        loginInfos.clear();
     }
 
     public String getBaseUrl() {
@@ -398,6 +448,7 @@ public class LoginInfoEndpoint {
 
     public void setBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        loginInfos.clear();
     }
 
     protected String getUaaBaseUrl() {
@@ -433,6 +484,41 @@ public class LoginInfoEndpoint {
         this.clientDetailsService = clientDetailsService;
     }
 
+    /**
+     * The model attributes of a login or info response that do not depend on
+     * the request, with the version of the identity providers they were built
+     * from.
+     */
+    private static final class LoginInfo {
+
+        private final long idpVersion;
+
+        private final Map<String, Object> attributes;
+
+        private volatile String etag;
+
+        LoginInfo(long idpVersion, Map<String, Object> attributes) {
+            this.idpVersion = idpVersion;
+            this.attributes = Collections.unmodifiableMap(attributes);
+        }
+
+        long getIdpVersion() {
+            return idpVersion;
+        }
+
+        Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        String getETag() {
+            if (etag == null) {
+                etag = DigestUtils.md5DigestAsHex(JsonUtils.writeValueAsString(attributes).getBytes(
+                                Charset.forName("UTF-8")));
+            }
+            return etag;
+        }
+    }
+
     @ResponseStatus(value = HttpStatus.FORBIDDEN, reason = "Unknown authentication token type, unable to derive user ID.")
     public static final class UnknownPrincipalException extends RuntimeException {}
 
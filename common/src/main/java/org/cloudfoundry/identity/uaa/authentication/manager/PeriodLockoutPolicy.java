@@ -18,6 +18,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.AuditEvent;
 import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.FailedLoginStore;
+import org.cloudfoundry.identity.uaa.audit.FailedLogins;
 import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.springframework.security.core.Authentication;
@@ -27,13 +29,19 @@ import org.springframework.security.core.AuthenticationException;
  * Locks an account out for a configured period based on the number of failed
  * logins since a specific time in the past.
  * <p>
- * Queries the audit service to obtain the relevant data for the user.
+ * Queries the audit service to obtain the relevant data for the user. If a
+ * {@link FailedLoginStore} is set its counter is consulted first, which
+ * answers with a single lookup. The counter only restarts after a gap of a
+ * whole counting period between failures, so it may include failures from
+ * before the period, and only a count that reaches the limit is checked
+ * against the audit history.
  * 
  * @author Luke Taylor
  */
 public class PeriodLockoutPolicy implements AccountLoginPolicy {
     private final Log logger = LogFactory.getLog(getClass());
     private final UaaAuditService auditService;
+    private FailedLoginStore failedLoginStore;
     private int lockoutPeriodMs = 300000; // 5 mins
     private int lockoutAfterFailures = 5;
     private int countFailuresWithinMs = 3600 * 1000; // 1hr
@@ -42,8 +50,19 @@ public class PeriodLockoutPolicy implements AccountLoginPolicy {
         this.auditService = auditService;
     }
 
+    /**
+     * @param failedLoginStore the store of failed login counters to consult
+     *            instead of the audit history
+     */
+    public void setFailedLoginStore(FailedLoginStore failedLoginStore) {
+        this.failedLoginStore = failedLoginStore;
+    }
+
     @Override
     public boolean isAllowed(UaaUser user, Authentication a) throws AuthenticationException {
+        if (failedLoginStore != null && isAllowed(failedLoginStore.retrieveFailedLogins(user.getId()))) {
+            return true;
+        }
         long eventsAfter = System.currentTimeMillis() - countFailuresWithinMs;
 
         List<AuditEvent> events = auditService.find(user.getId(), eventsAfter);
@@ -64,6 +83,14 @@ public class PeriodLockoutPolicy implements AccountLoginPolicy {
         return true;
     }
 
+    private boolean isAllowed(FailedLogins failures) {
+        if (failures == null || failures.getCount() < lockoutAfterFailures) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        return failures.getLastFailure() <= now - lockoutPeriodMs || failures.getLastFailure() <= now - countFailuresWithinMs;
+    }
+
     /**
      * Counts the number of failures that occurred without an intervening
      * successful login.
@@ -15,19 +15,37 @@ package org.cloudfoundry.identity.uaa.codestore;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
-public class JdbcExpiringCodeStore implements ExpiringCodeStore {
+/**
+ * An expiring code store backed by a single table.
+ * <p>
+ * A code is consumed by deleting its row, so that only one of several
+ * concurrent requests for the same code gets it. On postgresql the row is
+ * deleted and returned in one statement, elsewhere it is selected first and
+ * only returned if the delete that follows removed it. Expired codes are
+ * removed in batches by a background sweep rather than on the request
+ * threads.
+ */
+public class JdbcExpiringCodeStore implements ExpiringCodeStore, InitializingBean, DisposableBean {
 
     public static final String tableName = "expiring_code_store";
     public static final String fields = "code, expiresat, data";
@@ -36,6 +54,10 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
     public static final String delete = "delete from " + tableName + " where code = ?";
     public static final String deleteExpired = "delete from " + tableName + " where expiresat < ?";
     public static final String select = "select " + fields + " from " + tableName + " where code = ?";
+    public static final String deleteReturning = delete + " returning " + fields;
+    public static final String selectExpired = "select code from " + tableName + " where expiresat < ?";
+    public static final String deleteExpiredCodes = "delete from " + tableName
+                    + " where code in (:codes) and expiresat < :now";
 
     private Log logger = LogFactory.getLog(getClass());
 
@@ -43,16 +65,17 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private JdbcTemplate jdbcTemplate;
 
-    private AtomicLong lastExpired = new AtomicLong();
-    private long expirationInterval = 60 * 1000; // once a minute
+    private JdbcTemplate sweepTemplate;
 
-    public long getExpirationInterval() {
-        return expirationInterval;
-    }
+    private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
-    public void setExpirationInterval(long expirationInterval) {
-        this.expirationInterval = expirationInterval;
-    }
+    private boolean deleteReturningSupported = false;
+
+    private int sweepIntervalSeconds = 60;
+
+    private int sweepBatchSize = 500;
+
+    private Timer timer;
 
     protected JdbcExpiringCodeStore() {
         // package protected for unit tests only
@@ -64,6 +87,53 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     public void setDataSource(DataSource dataSource) {
         jdbcTemplate = new JdbcTemplate(dataSource);
+        sweepTemplate = new JdbcTemplate(dataSource);
+        sweepTemplate.setMaxRows(sweepBatchSize);
+        namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * @param platform the database platform, codes are consumed with a single
+     *            delete ... returning statement on postgresql
+     */
+    public void setPlatform(String platform) {
+        this.deleteReturningSupported = "postgresql".equals(platform);
+    }
+
+    /**
+     * @param sweepIntervalSeconds how often expired codes are removed, 0 or
+     *            less to turn the background sweep off
+     */
+    public void setSweepIntervalSeconds(int sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    /**
+     * @param sweepBatchSize the maximum number of expired codes removed by one
+     *            delete statement
+     */
+    public void setSweepBatchSize(int sweepBatchSize) {
+        this.sweepBatchSize = sweepBatchSize;
+        if (sweepTemplate != null) {
+            sweepTemplate.setMaxRows(sweepBatchSize);
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (sweepIntervalSeconds > 0) {
+            long interval = sweepIntervalSeconds * 1000l;
+            timer = new Timer("JdbcExpiringCodeStore.Sweep", true);
+            timer.schedule(new SweepTask(), interval, interval);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
     }
 
     @Override
@@ -100,27 +170,28 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode retrieveCode(String code) {
-        cleanExpiredEntries();
-
         if (code == null) {
             throw new NullPointerException();
         }
 
-        try {
-            ExpiringCode expiringCode = jdbcTemplate.queryForObject(select, new JdbcExpiringCodeMapper(), code);
-            try {
-                if (expiringCode != null) {
-                    jdbcTemplate.update(delete, code);
-                }
-                if (expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
-                    expiringCode = null;
-                }
-            } finally {
-                return expiringCode;
-            }
-        } catch (EmptyResultDataAccessException x) {
+        ExpiringCode expiringCode = consume(code);
+        if (expiringCode != null && expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
+            expiringCode = null;
+        }
+        return expiringCode;
+    }
+
+    private ExpiringCode consume(String code) {
+        if (deleteReturningSupported) {
+            List<ExpiringCode> codes = jdbcTemplate.query(deleteReturning, new JdbcExpiringCodeMapper(), code);
+            return codes.isEmpty() ? null : codes.get(0);
+        }
+        List<ExpiringCode> codes = jdbcTemplate.query(select, new JdbcExpiringCodeMapper(), code);
+        if (codes.isEmpty()) {
             return null;
         }
+        // another request consumed the code between the select and the delete
+        return jdbcTemplate.update(delete, code) == 1 ? codes.get(0) : null;
     }
 
     @Override
@@ -128,17 +199,38 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         this.generator = generator;
     }
 
+    /**
+     * Removes all the codes that have expired, in batches so that no single
+     * statement holds locks on a large part of the table.
+     *
+     * @return the number of codes removed
+     */
     public int cleanExpiredEntries() {
         long now = System.currentTimeMillis();
-        long lastCheck = lastExpired.get();
+        int count = 0;
+        List<String> codes;
+        do {
+            codes = sweepTemplate.query(selectExpired, new SingleColumnRowMapper<String>(String.class), now);
+            if (!codes.isEmpty()) {
+                Map<String, Object> params = new HashMap<String, Object>();
+                params.put("codes", codes);
+                params.put("now", now);
+                count += namedParameterJdbcTemplate.update(deleteExpiredCodes, params);
+            }
+        } while (codes.size() >= sweepBatchSize);
+        return count;
+    }
 
-        if ((now - lastCheck) > expirationInterval && lastExpired.compareAndSet(lastCheck, now)) {
-            int count = jdbcTemplate.update(deleteExpired, now);
-            logger.debug("Expiring code sweeper complete, deleted " + count + " entries.");
-            return count;
+    private class SweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                int deleted = cleanExpiredEntries();
+                logger.debug("Expiring code sweeper complete, deleted " + deleted + " entries.");
+            } catch (DataAccessException e) {
+                logger.warn("Unable to remove expired codes", e);
+            }
         }
-
-        return 0;
     }
 
     protected static class JdbcExpiringCodeMapper implements RowMapper<ExpiringCode> {
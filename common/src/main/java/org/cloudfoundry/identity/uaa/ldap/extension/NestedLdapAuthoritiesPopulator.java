@@ -17,14 +17,29 @@ package org.cloudfoundry.identity.uaa.ldap.extension;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.StringUtils;
 
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A LDAP authority populator that can recursively search static nested groups.
@@ -54,15 +69,35 @@ import java.util.Set;
  * ou: java-developer
  * </pre>
  * </p>
- * During an authentication
+ * During an authentication the groups are resolved one nesting level at a time.
+ * When the group search filter is a plain attribute match such as <tt>member={0}</tt>
+ * all the groups of a level are searched for with a single OR-combined filter,
+ * otherwise one search per group is issued. A combined search whose results cannot
+ * all be matched back to the groups by their member values, such as the ranged
+ * members of large Active Directory groups, is repeated one group at a time.
+ * The parent groups of every group are kept in a cache shared by all users for
+ * a configurable amount of time, so repeat logins only search for the direct
+ * groups of the user.
+ * </p>
  */
-
+@ManagedResource
 public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopulator {
     private static final Log logger = LogFactory.getLog(NestedLdapAuthoritiesPopulator.class);
 
+    private static final Pattern MEMBER_FILTER = Pattern.compile("^\\(?\\s*([\\w.;-]+)\\s*=\\s*\\{0\\}\\s*\\)?$");
+
     private Set<String> attributeNames;
 
     private int maxSearchDepth = 10;
+
+    private int maxGroupsPerSearch = 50;
+
+    private int groupCacheMaxEntries = 10000;
+
+    private int groupCacheExpirationSeconds = 300;
+
+    private ExpiringCache<String, Set<Map<String,String[]>>> parentGroups;
+
     /**
      * Constructor for group search scenarios. <tt>userRoleAttributes</tt> may still be
      * set as a property.
@@ -72,6 +107,7 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
      */
     public NestedLdapAuthoritiesPopulator(ContextSource contextSource, String groupSearchBase) {
         super(contextSource, groupSearchBase);
+        createCache();
     }
 
     @Override
@@ -105,18 +141,31 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
             getAttributeNames().add(getGroupRoleAttribute());
         }
 
-        Set<Map<String,String[]>> userRoles = getLdapTemplate().searchForMultipleAttributeValues(
-            getGroupSearchBase(),
-            getGroupSearchFilter(),
-            new String[]{userDn, username},
-            getAttributeNames().toArray(new String[getAttributeNames().size()]));
+        Set<Map<String,String[]>> userRoles = search(getGroupSearchFilter(), new String[]{userDn, username}, null);
 
         if (logger.isDebugEnabled()) {
             logger.debug("Roles from search: " + userRoles);
         }
 
-        for (Map<String,String[]> record : userRoles) {
-            boolean circular = false;
+        // the groups found on the current level, DN to role name, that have
+        // not been seen before, so that circular nesting is only followed once
+        Set<String> visited = new HashSet<String>();
+        Map<String,String> level = addAuthorities(userRoles, authorities, visited);
+        for (int remaining = depth - 1; remaining > 0 && !level.isEmpty(); remaining--) {
+            Map<String,String> next = new LinkedHashMap<String,String>();
+            for (Set<Map<String,String[]>> records : getParentGroups(level).values()) {
+                next.putAll(addAuthorities(records, authorities, visited));
+            }
+            level = next;
+        }
+        if (!level.isEmpty()) {
+            logger.debug("Search aborted, max depth reached, for roles for user '" + username + "', DN = '" + userDn + "'");
+        }
+    }
+
+    private Map<String,String> addAuthorities(Set<Map<String,String[]>> records, Set<GrantedAuthority> authorities, Set<String> visited) {
+        Map<String,String> groups = new LinkedHashMap<String,String>();
+        for (Map<String,String[]> record : records) {
             String dn = record.get(SpringSecurityLdapTemplate.DN_KEY)[0];
             String[] roleValues = record.get(getGroupRoleAttribute());
             Set<String> roles = new HashSet<String>();
@@ -126,16 +175,187 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
                     role = role.toUpperCase();
                 }
                 role = getRolePrefix() + role;
-                circular = circular | (!authorities.add(new LdapAuthority(role,dn,record)));
+                authorities.add(new LdapAuthority(role,dn,record));
+            }
+            if (visited.add(normalize(dn))) {
+                groups.put(dn, roles.size()>0 ? roles.iterator().next() : dn);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * @param groups group DNs mapped to their role names
+     * @return the records of the groups that each of the given groups is a
+     *         direct member of, keyed by group DN
+     */
+    protected Map<String,Set<Map<String,String[]>>> getParentGroups(Map<String,String> groups) {
+        Map<String,Set<Map<String,String[]>>> result = new HashMap<String,Set<Map<String,String[]>>>();
+        List<String> missing = new ArrayList<String>();
+        for (String dn : groups.keySet()) {
+            Set<Map<String,String[]>> parents = parentGroups == null ? null : parentGroups.get(normalize(dn));
+            if (parents != null) {
+                result.put(dn, parents);
+            } else {
+                missing.add(dn);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        String memberAttribute = getMemberAttribute();
+        if (memberAttribute == null) {
+            for (String dn : missing) {
+                cacheParentGroups(result, dn, search(getGroupSearchFilter(), new String[] {dn, groups.get(dn)}, null));
+            }
+            return result;
+        }
+
+        for (int i = 0; i < missing.size(); i += maxGroupsPerSearch) {
+            List<String> dns = missing.subList(i, Math.min(missing.size(), i + maxGroupsPerSearch));
+            StringBuilder filter = new StringBuilder("(|");
+            String[] params = new String[dns.size() * 2];
+            for (int j = 0; j < dns.size(); j++) {
+                filter.append('(').append(memberAttribute).append("={").append(j * 2).append("})");
+                params[j * 2] = dns.get(j);
+                params[j * 2 + 1] = groups.get(dns.get(j));
+            }
+            filter.append(')');
+
+            Map<String,Set<Map<String,String[]>>> found = new LinkedHashMap<String,Set<Map<String,String[]>>>();
+            Map<String,LdapName> names = new HashMap<String,LdapName>();
+            for (String dn : dns) {
+                found.put(dn, new HashSet<Map<String,String[]>>());
+                names.put(dn, parse(dn));
+            }
+            boolean keepMembers = getAttributeNames().contains(memberAttribute);
+            boolean matched = true;
+            for (Map<String,String[]> record : search(filter.toString(), params, memberAttribute)) {
+                String[] members = hasRangedMembers(record, memberAttribute) ? null : record.get(memberAttribute);
+                if (!keepMembers) {
+                    record.remove(memberAttribute);
+                }
+                boolean recordMatched = false;
+                for (String member : members != null ? members : new String[0]) {
+                    LdapName memberName = parse(member);
+                    for (String dn : dns) {
+                        if (isSameOrChild(memberName, names.get(dn))) {
+                            found.get(dn).add(record);
+                            recordMatched = true;
+                        }
+                    }
+                }
+                matched &= recordMatched;
+            }
+            if (!matched) {
+                // a group came back without a complete member list, e.g. the
+                // ranged members of a large Active Directory group, so it is
+                // not known which of the groups it is a parent of
+                logger.debug("Unable to match the results of a combined group search, searching per group");
+                for (String dn : dns) {
+                    cacheParentGroups(result, dn, search(getGroupSearchFilter(), new String[] {dn, groups.get(dn)}, null));
+                }
+                continue;
+            }
+            for (Map.Entry<String,Set<Map<String,String[]>>> entry : found.entrySet()) {
+                cacheParentGroups(result, entry.getKey(), entry.getValue());
             }
-            String roleName = roles.size()>0 ? roles.iterator().next() : dn;
-            if (!circular) {
-                performNestedSearch(dn, roleName, authorities, (depth - 1));
+        }
+        return result;
+    }
+
+    private static boolean hasRangedMembers(Map<String,String[]> record, String memberAttribute) {
+        String prefix = memberAttribute.toLowerCase(Locale.US) + ";range=";
+        for (String attribute : record.keySet()) {
+            if (attribute.toLowerCase(Locale.US).startsWith(prefix)) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    private void cacheParentGroups(Map<String,Set<Map<String,String[]>>> result, String dn, Set<Map<String,String[]>> parents) {
+        result.put(dn, parents);
+        if (parentGroups != null) {
+            parentGroups.put(normalize(dn), parents);
+        }
+    }
+
+    private Set<Map<String,String[]>> search(String filter, String[] params, String extraAttribute) {
+        Set<String> names = new HashSet<String>(getAttributeNames());
+        if (extraAttribute != null) {
+            names.add(extraAttribute);
+        }
+        return getLdapTemplate().searchForMultipleAttributeValues(
+            getGroupSearchBase(),
+            filter,
+            params,
+            names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * @return the attribute holding the member DNs if the group search filter
+     *         is a plain match on it, null otherwise
+     */
+    protected String getMemberAttribute() {
+        Matcher matcher = MEMBER_FILTER.matcher(getGroupSearchFilter());
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    private static String normalize(String dn) {
+        return dn.replaceAll("\\s*([,=+])\\s*", "$1").trim().toLowerCase(Locale.US);
+    }
+
+    private static LdapName parse(String dn) {
+        try {
+            return new LdapName(dn);
+        } catch (InvalidNameException e) {
+            logger.debug("Ignoring invalid DN: " + dn);
+            return null;
+        }
+    }
+
+    private static boolean isSameOrChild(LdapName member, LdapName dn) {
+        if (member == null || dn == null) {
+            return false;
+        }
+        // the DN of a search result may be relative to the base of the
+        // context source, i.e. the leftmost RDNs of the member's DN, and
+        // RDNs compare their types and values case insensitively
+        return member.endsWith(dn.getRdns());
+    }
 
+    private void createCache() {
+        if (groupCacheMaxEntries > 0 && groupCacheExpirationSeconds > 0) {
+            parentGroups = new ExpiringCache<String, Set<Map<String,String[]>>>(groupCacheMaxEntries, groupCacheExpirationSeconds * 1000l);
+        } else {
+            parentGroups = null;
         }
     }
 
+    @ManagedOperation(description = "Drops all cached nested groups")
+    public void evictAll() {
+        if (parentGroups != null) {
+            parentGroups.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Nested Group Cache Hits")
+    public long getGroupCacheHits() {
+        return parentGroups == null ? 0 : parentGroups.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Nested Group Cache Misses")
+    public long getGroupCacheMisses() {
+        return parentGroups == null ? 0 : parentGroups.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Nested Group Cache Size")
+    public int getGroupCacheSize() {
+        return parentGroups == null ? 0 : parentGroups.size();
+    }
+
     public Set<String> getAttributeNames() {
         return attributeNames;
     }
@@ -152,6 +372,30 @@ public class NestedLdapAuthoritiesPopulator extends DefaultLdapAuthoritiesPopula
         this.maxSearchDepth = maxSearchDepth;
     }
 
+    /**
+     * @param maxGroupsPerSearch the maximum number of groups combined in a
+     *            single search filter
+     */
+    public void setMaxGroupsPerSearch(int maxGroupsPerSearch) {
+        this.maxGroupsPerSearch = Math.max(1, maxGroupsPerSearch);
+    }
+
+    /**
+     * @param groupCacheMaxEntries the maximum number of groups whose parent
+     *            groups are cached, 0 or less to turn the cache off
+     */
+    public void setGroupCacheMaxEntries(int groupCacheMaxEntries) {
+        this.groupCacheMaxEntries = groupCacheMaxEntries;
+        createCache();
+    }
 
+    /**
+     * @param groupCacheExpirationSeconds how long the parent groups of a group
+     *            are cached, 0 or less to turn the cache off
+     */
+    public void setGroupCacheExpirationSeconds(int groupCacheExpirationSeconds) {
+        this.groupCacheExpirationSeconds = groupCacheExpirationSeconds;
+        createCache();
+    }
 
 }
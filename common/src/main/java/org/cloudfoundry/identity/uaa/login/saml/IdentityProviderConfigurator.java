@@ -25,12 +25,14 @@ import org.opensaml.xml.parse.BasicParserPool;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -38,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class IdentityProviderConfigurator implements InitializingBean {
 
@@ -51,6 +54,16 @@ public class IdentityProviderConfigurator implements InitializingBean {
     private Timer metadataFetchingHttpClientTimer;
     private HttpClient httpClient;
     private BasicParserPool parserPool;
+    private String metadataSnapshotDirectory;
+    private int metadataSnapshotMaxAgeSeconds = 7 * 24 * 3600;
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @return a number that changes whenever the provider definitions change
+     */
+    public long getVersion() {
+        return version.get();
+    }
 
     public List<IdentityProviderDefinition> getIdentityProviderDefinitions() {
         return Collections.unmodifiableList(identityProviders);
@@ -107,6 +120,7 @@ public class IdentityProviderConfigurator implements InitializingBean {
             uniqueAlias.add(alias);
         }
         identityProviders = providerDefinitions;
+        version.incrementAndGet();
         return getIdentityProviderDefinitions();
     }
 
@@ -136,6 +150,7 @@ public class IdentityProviderConfigurator implements InitializingBean {
         }
         IdentityProviderDefinition clone = providerDefinition.clone();
         identityProviders.add(clone);
+        version.incrementAndGet();
         return getExtendedMetadataDelegate(clone);
     }
 
@@ -147,6 +162,7 @@ public class IdentityProviderConfigurator implements InitializingBean {
         //reset the legacy data so it doesn't become an IDP. We overwrite all of them
         legacyIdpMetaData = null;
         identityProviders = newProviders;
+        version.incrementAndGet();
         return getIdentityProviderDefinitions();
     }
 
@@ -228,6 +244,10 @@ public class IdentityProviderConfigurator implements InitializingBean {
             fixedHttpMetaDataProvider.setParserPool(getParserPool());
             //TODO - we have no way of actually instantiating this object unless it has a zero arg constructor
             fixedHttpMetaDataProvider.setSocketFactory(socketFactory.newInstance());
+            if (StringUtils.hasText(getMetadataSnapshotDirectory())) {
+                fixedHttpMetaDataProvider.setSnapshotFile(getMetadataSnapshotFile(def));
+                fixedHttpMetaDataProvider.setSnapshotMaxAge(getMetadataSnapshotMaxAgeSeconds() * 1000l);
+            }
             ExtendedMetadataDelegate delegate = new ExtendedMetadataDelegate(fixedHttpMetaDataProvider, extendedMetadata);
             delegate.setMetadataTrustCheck(def.isMetadataTrustCheck());
             return delegate;
@@ -244,6 +264,17 @@ public class IdentityProviderConfigurator implements InitializingBean {
         }
     }
 
+    /**
+     * The snapshot of a provider is named after its alias and a hash of the
+     * configuration the metadata is fetched with, so that a changed
+     * configuration never loads the metadata of the old one.
+     */
+    protected File getMetadataSnapshotFile(IdentityProviderDefinition def) {
+        String config = def.getZoneId() + "\n" + def.getMetaDataLocation() + "\n" + def.getSocketFactoryClassName();
+        String alias = def.getIdpEntityAlias().replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(getMetadataSnapshotDirectory(), alias + "-" + DigestUtils.md5DigestAsHex(config.getBytes(StandardCharsets.UTF_8)) + ".xml");
+    }
+
     protected String adjustURIForPort(String uri) throws URISyntaxException {
         URI metadataURI = new URI(uri);
         if (metadataURI.getPort()<0) {
@@ -259,6 +290,7 @@ public class IdentityProviderConfigurator implements InitializingBean {
 
     public void setIdentityProviders(Map<String, Map<String, Object>> providers) {
         identityProviders.clear();
+        version.incrementAndGet();
         if (providers == null) {
             return;
         }
@@ -294,6 +326,7 @@ public class IdentityProviderConfigurator implements InitializingBean {
             def.setZoneId(StringUtils.hasText(zoneId) ? zoneId : IdentityZone.getUaa().getId());
             identityProviders.add(def);
         }
+        version.incrementAndGet();
     }
 
     public String getLegacyIdpIdentityAlias() {
@@ -368,6 +401,27 @@ public class IdentityProviderConfigurator implements InitializingBean {
         this.parserPool = parserPool;
     }
 
+    public String getMetadataSnapshotDirectory() {
+        return metadataSnapshotDirectory;
+    }
+
+    /**
+     * @param metadataSnapshotDirectory where the last good metadata of URL
+     *            providers is kept so that it can be loaded at startup, null
+     *            or empty to not keep snapshots
+     */
+    public void setMetadataSnapshotDirectory(String metadataSnapshotDirectory) {
+        this.metadataSnapshotDirectory = metadataSnapshotDirectory;
+    }
+
+    public int getMetadataSnapshotMaxAgeSeconds() {
+        return metadataSnapshotMaxAgeSeconds;
+    }
+
+    public void setMetadataSnapshotMaxAgeSeconds(int metadataSnapshotMaxAgeSeconds) {
+        this.metadataSnapshotMaxAgeSeconds = metadataSnapshotMaxAgeSeconds;
+    }
+
     public boolean isLegacyShowSamlLink() {
         return legacyShowSamlLink;
     }
@@ -53,6 +53,7 @@ public class ProviderChangedListener implements ApplicationListener<IdentityProv
             try {
                 ZoneAwareMetadataManager.ExtensionMetadataManager manager = metadataManager.getManager(zone);
                 manager.addMetadataProvider(delegate);
+                metadataManager.providerLoaded(provider);
                 for (MetadataProvider idp : manager.getProviders()) {
                     idp.getMetadata();
                 }
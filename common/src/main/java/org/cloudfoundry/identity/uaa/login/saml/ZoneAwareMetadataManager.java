@@ -47,6 +47,8 @@ import org.springframework.security.saml.trust.httpclient.TLSProtocolConfigurer;
 import javax.annotation.PostConstruct;
 import javax.xml.namespace.QName;
 import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -64,7 +66,9 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
     private KeyManager keyManager;
     private Map<IdentityZone,ExtensionMetadataManager> metadataManagers;
     private long refreshInterval = 30000l;
-    private long lastRefresh = 0;
+    private static final long CLOCK_SKEW_MILLIS = 60 * 1000;
+    private volatile long lastRefresh = 0;
+    private final Map<String, Long> loadedProviders = new ConcurrentHashMap<>();
     private Timer timer;
     private String beanName = ZoneAwareMetadataManager.class.getName()+"-"+System.identityHashCode(this);
     private ProviderChangedListener providerChangedListener;
@@ -115,26 +119,58 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
         providerChangedListener.setMetadataManager(this);
     }
 
+    /**
+     * Loads the SAML providers modified since the last refresh in all zones
+     * with a single query. The watermark is the latest modification time seen
+     * in the database rather than the local clock, and the query looks back
+     * a little further than the watermark so that a provider saved by a node
+     * whose clock is behind is not missed. Providers that were already loaded
+     * with the same modification time are skipped.
+     */
     protected void refreshAllProviders() throws MetadataProviderException {
-        for (IdentityZone zone : zoneDao.retrieveAll()) {
-            ExtensionMetadataManager manager = getManager(zone);
-            boolean hasChanges = false;
-            for (IdentityProvider provider : providerDao.retrieveAll(zone.getId())) {
-                if (Origin.SAML.equals(provider.getType()) && lastRefresh < provider.getLastModified().getTime()) {
-                    try {
-                        IdentityProviderDefinition definition = JsonUtils.readValue(provider.getConfig(), IdentityProviderDefinition.class);
-                        manager.addMetadataProvider(configurator.addIdentityProviderDefinition(definition));
-                        hasChanges = true;
-                    } catch (JsonUtils.JsonUtilException x) {
-                        logger.error("Unable to load provider:"+provider, x);
-                    }
-                }
-            }
-            if (hasChanges) {
-                refreshZoneManager(manager);
+        Date since = new Date(Math.max(0, lastRefresh - CLOCK_SKEW_MILLIS));
+        Map<String, ExtensionMetadataManager> changed = new LinkedHashMap<>();
+        for (IdentityProvider provider : providerDao.retrieveModifiedSince(Origin.SAML, since)) {
+            lastRefresh = Math.max(lastRefresh, provider.getLastModified().getTime());
+            ExtensionMetadataManager manager = addProvider(provider);
+            if (manager != null) {
+                changed.put(provider.getIdentityZoneId(), manager);
             }
         }
-        lastRefresh = System.currentTimeMillis();
+        for (ExtensionMetadataManager manager : changed.values()) {
+            refreshZoneManager(manager);
+        }
+    }
+
+    /**
+     * @return the manager of the zone of the provider, or null if the
+     *         provider was already loaded or could not be loaded
+     */
+    private ExtensionMetadataManager addProvider(IdentityProvider provider) throws MetadataProviderException {
+        Long loaded = loadedProviders.get(provider.getId());
+        if (loaded != null && loaded == provider.getLastModified().getTime()) {
+            return null;
+        }
+        try {
+            IdentityProviderDefinition definition = JsonUtils.readValue(provider.getConfig(), IdentityProviderDefinition.class);
+            ExtensionMetadataManager manager = getManager(zoneDao.retrieve(provider.getIdentityZoneId()));
+            manager.addMetadataProvider(configurator.addIdentityProviderDefinition(definition));
+            providerLoaded(provider);
+            return manager;
+        } catch (JsonUtils.JsonUtilException x) {
+            logger.error("Unable to load provider:"+provider, x);
+            return null;
+        }
+    }
+
+    /**
+     * Records that a provider was loaded, so that the next refresh does not
+     * load it again, called when a change is applied in process.
+     */
+    void providerLoaded(IdentityProvider provider) {
+        if (provider.getLastModified() != null) {
+            loadedProviders.put(provider.getId(), provider.getLastModified().getTime());
+        }
     }
 
     protected ExtensionMetadataManager getManager(IdentityZone zone) {
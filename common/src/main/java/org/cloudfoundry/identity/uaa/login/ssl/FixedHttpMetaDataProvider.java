@@ -13,13 +13,22 @@
 
 package org.cloudfoundry.identity.uaa.login.ssl;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Timer;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.DateTime;
 import org.opensaml.saml2.metadata.provider.HTTPMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.XMLObject;
+import org.w3c.dom.Document;
 
 /**
  * This class works around the problem described in {@link https
@@ -29,6 +38,12 @@ import org.opensaml.saml2.metadata.provider.MetadataProviderException;
  * subsequent GET Methods should be executed using a relative URL, otherwise the
  * HttpClient
  * resets the underlying socket factory.
+ * <p>
+ * When a snapshot file is set, every metadata document that was fetched and
+ * passed the metadata filters is also written to the file. At startup a
+ * recent enough snapshot is loaded instead of fetching the metadata, so that
+ * logins can be served even when the IDP is slow or down, and the metadata
+ * is then fetched again in the background shortly after.
  * 
  * @author Filip Hanik
  * 
@@ -40,6 +55,19 @@ public class FixedHttpMetaDataProvider extends HTTPMetadataProvider {
      */
     private boolean socketFactorySet = false;
 
+    private static final long SNAPSHOT_REFRESH_DELAY = 30 * 1000;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private File snapshotFile;
+
+    private long snapshotMaxAge = 7 * 24 * 3600 * 1000l;
+
+    /**
+     * Set while the metadata being processed was read from the snapshot
+     */
+    private boolean snapshotLoading = false;
+
     public FixedHttpMetaDataProvider(Timer backgroundTaskTimer, HttpClient client,
                     String metadataURL) throws MetadataProviderException {
         super(backgroundTaskTimer, client, metadataURL);
@@ -89,4 +117,94 @@ public class FixedHttpMetaDataProvider extends HTTPMetadataProvider {
         return socketFactorySet;
     }
 
+    /**
+     * @param snapshotFile the file the last good metadata is kept in, null to
+     *            not keep a snapshot
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * @param snapshotMaxAge how old in milliseconds a snapshot can be and
+     *            still be loaded at startup
+     */
+    public void setSnapshotMaxAge(long snapshotMaxAge) {
+        this.snapshotMaxAge = snapshotMaxAge;
+    }
+
+    @Override
+    protected byte[] fetchMetadata() throws MetadataProviderException {
+        if (!isInitialized() && snapshotFile != null && snapshotFile.isFile()
+                        && snapshotFile.lastModified() > System.currentTimeMillis() - snapshotMaxAge) {
+            try {
+                byte[] metadata = Files.readAllBytes(snapshotFile.toPath());
+                logger.info("Loading metadata for " + getMetadataIdentifier() + " from snapshot " + snapshotFile);
+                snapshotLoading = true;
+                return metadata;
+            } catch (IOException e) {
+                logger.warn("Unable to read metadata snapshot " + snapshotFile, e);
+            }
+        }
+        snapshotLoading = false;
+        return super.fetchMetadata();
+    }
+
+    @Override
+    protected void postProcessMetadata(byte[] metadataBytes, Document metadataDom, XMLObject metadata)
+                    throws MetadataProviderException {
+        super.postProcessMetadata(metadataBytes, metadataDom, metadata);
+        if (snapshotFile != null && !snapshotLoading) {
+            writeSnapshot(metadataBytes);
+        }
+    }
+
+    @Override
+    protected long computeNextRefreshDelay(DateTime expectedExpiration) {
+        if (snapshotLoading) {
+            // fetch the current metadata in the background soon, not so soon
+            // that the refresh is due before it is scheduled
+            snapshotLoading = false;
+            return SNAPSHOT_REFRESH_DELAY;
+        }
+        return super.computeNextRefreshDelay(expectedExpiration);
+    }
+
+    @Override
+    protected void processPreExpiredMetadata(String metadataIdentifier, DateTime refreshStart, byte[] metadataBytes,
+                    XMLObject metadata) {
+        if (snapshotLoading) {
+            // an expired snapshot is no use, fetch the metadata instead
+            snapshotLoading = false;
+            try {
+                byte[] fetched = super.fetchMetadata();
+                if (fetched != null) {
+                    processNewMetadata(metadataIdentifier, refreshStart, fetched);
+                    return;
+                }
+            } catch (MetadataProviderException e) {
+                logger.warn("Unable to fetch metadata for " + metadataIdentifier, e);
+            }
+        }
+        super.processPreExpiredMetadata(metadataIdentifier, refreshStart, metadataBytes, metadata);
+    }
+
+    private void writeSnapshot(byte[] metadataBytes) {
+        try {
+            File directory = snapshotFile.getAbsoluteFile().getParentFile();
+            Files.createDirectories(directory.toPath());
+            // readers never see a partly written snapshot
+            File temp = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+            try {
+                Files.write(temp.toPath(), metadataBytes);
+                Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write metadata snapshot " + snapshotFile, e);
+        }
+    }
+
 }
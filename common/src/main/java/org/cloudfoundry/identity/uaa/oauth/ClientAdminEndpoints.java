@@ -37,6 +37,7 @@ import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.StreamingSearchResults;
 import org.cloudfoundry.identity.uaa.security.DefaultSecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
@@ -455,6 +456,43 @@ public class ClientAdminEndpoints implements InitializingBean {
         }
     }
 
+    /**
+     * Lists clients like {@link #listClientDetails(String, String, String, String, int, int)}
+     * but writes them to the response batch by batch while they are read, for
+     * exports of pages too large to hold in memory.
+     */
+    @RequestMapping(value = "/oauth/clients", method = RequestMethod.GET, params = "stream=true")
+    @ResponseBody
+    public StreamingSearchResults<ClientDetails> streamClientDetails(
+                    @RequestParam(value = "attributes", required = false) String attributesCommaSeparated,
+                    @RequestParam(required = false, defaultValue = "client_id pr") String filter,
+                    @RequestParam(required = false, defaultValue = "client_id") String sortBy,
+                    @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
+                    @RequestParam(required = false, defaultValue = "1") int startIndex,
+                    @RequestParam(required = false, defaultValue = "100") int count) throws Exception {
+        String[] attributes = null;
+        if (StringUtils.hasLength(attributesCommaSeparated)) {
+            attributes = attributesCommaSeparated.split(",");
+        }
+        try {
+            return new StreamingSearchResults<ClientDetails>(Arrays.asList(SCIM_CLIENTS_SCHEMA_URI),
+                            clientDetailsService, filter, sortBy, "ascending".equalsIgnoreCase(sortOrder), startIndex,
+                            count, attributes, attributeNameMapper) {
+                @Override
+                protected List<?> process(List<ClientDetails> clients) {
+                    List<ClientDetails> result = new ArrayList<ClientDetails>();
+                    for (ClientDetails client : clients) {
+                        result.add(removeSecret(client));
+                    }
+                    return result;
+                }
+            };
+        } catch (SpelParseException e) {
+            throw new UaaException("Invalid attributes: [" + attributesCommaSeparated + "]",
+                            HttpStatus.BAD_REQUEST.value());
+        }
+    }
+
     @RequestMapping(value = "/oauth/clients/{client}/secret", method = RequestMethod.PUT)
     @ResponseBody
     public SimpleMessage changeSecret(@PathVariable String client, @RequestBody SecretChangeRequest change) {
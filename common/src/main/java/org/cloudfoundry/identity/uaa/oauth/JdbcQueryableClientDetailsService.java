@@ -19,7 +19,9 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -63,13 +65,33 @@ public class JdbcQueryableClientDetailsService extends AbstractQueryable<ClientD
         return CLIENT_DETAILS_TABLE;
     }
 
+    @Override
+    protected String getKeyColumn() {
+        return "client_id";
+    }
+
     @Override
     public List<ClientDetails> query(String filter, String sortBy, boolean ascending) {
-    	if (StringUtils.hasText(filter)) {
+    	return super.query(getZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public CursorPage<ClientDetails> query(String filter, String sortBy, boolean ascending, String cursor, int count,
+                    boolean countTotal) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, cursor, count, countTotal);
+    }
+
+    @Override
+    public int query(String filter, String sortBy, boolean ascending, int startIndex, int count,
+                    ResultHandler<ClientDetails> handler) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, startIndex, count, handler);
+    }
+
+    private String getZoneFilter(String filter) {
+        if (StringUtils.hasText(filter)) {
             filter += " and";
         }
-        filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-    	return super.query(filter, sortBy, ascending);
+        return filter + " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
     }
 
     @Override
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.APPROVED;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Write-through cache of the approvals of a user for a client in front of
+ * another {@link ApprovalStore}, so that the approval checks made on every
+ * authorization and token check do not query the database.
+ * <p>
+ * The approvals are cached by zone, user and client. An added or refreshed
+ * approval replaces the cached approval for the same scope, both when it is
+ * added through this store and when an {@link ApprovalModifiedEvent} is
+ * published for it. Revocations by filter can match any user or client, so
+ * they drop all cached approvals. Filter queries are not cached. Entries
+ * expire after the configured time to live, which bounds how long a change
+ * made on another node can go unnoticed.
+ *
+ */
+@ManagedResource
+public class CachingApprovalStore implements ApprovalStore, ApplicationListener<ApprovalModifiedEvent> {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ApprovalStore delegate;
+
+    private final AtomicLong modifications = new AtomicLong();
+
+    private int maxEntries = 10000;
+
+    private int expirationSeconds = 60;
+
+    private ExpiringCache<String, List<Approval>> approvals;
+
+    public CachingApprovalStore(ApprovalStore delegate) {
+        Assert.notNull(delegate, "An approval store to delegate to is required");
+        this.delegate = delegate;
+        createCache();
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached user and client pairs, 0
+     *            or less to turn the cache off
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        createCache();
+    }
+
+    /**
+     * @param expirationSeconds how long approvals are cached, 0 or less to
+     *            turn the cache off
+     */
+    public void setExpirationSeconds(int expirationSeconds) {
+        this.expirationSeconds = expirationSeconds;
+        createCache();
+    }
+
+    private void createCache() {
+        if (maxEntries > 0 && expirationSeconds > 0) {
+            approvals = new ExpiringCache<>(maxEntries, expirationSeconds * 1000l);
+        } else {
+            approvals = null;
+        }
+    }
+
+    @Override
+    public boolean addApproval(Approval approval) {
+        boolean added = delegate.addApproval(approval);
+        cache(approval);
+        return added;
+    }
+
+    @Override
+    public boolean revokeApproval(Approval approval) {
+        try {
+            return delegate.revokeApproval(approval);
+        } finally {
+            evict(approval.getUserId(), approval.getClientId());
+        }
+    }
+
+    @Override
+    public boolean revokeApprovals(String filter) {
+        try {
+            return delegate.revokeApprovals(filter);
+        } finally {
+            evictAll();
+        }
+    }
+
+    @Override
+    public List<Approval> getApprovals(String filter) {
+        return delegate.getApprovals(filter);
+    }
+
+    /**
+     * @return an unmodifiable list of the approvals
+     */
+    @Override
+    public List<Approval> getApprovals(String userId, String clientId) {
+        if (approvals == null) {
+            return delegate.getApprovals(userId, clientId);
+        }
+        String key = getKey(userId, clientId);
+        List<Approval> result = approvals.get(key);
+        if (result == null) {
+            // a change made while the approvals are read would be lost if
+            // they were cached
+            long modified = modifications.get();
+            result = Collections.unmodifiableList(new ArrayList<>(delegate.getApprovals(userId, clientId)));
+            if (modifications.get() == modified) {
+                approvals.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onApplicationEvent(ApprovalModifiedEvent event) {
+        cache(event.getSource());
+    }
+
+    /**
+     * Drops the cached approvals of a user for a client.
+     */
+    public void evict(String userId, String clientId) {
+        modifications.incrementAndGet();
+        if (approvals != null) {
+            approvals.remove(getKey(userId, clientId));
+        }
+    }
+
+    @ManagedOperation(description = "Drops all cached approvals")
+    public void evictAll() {
+        modifications.incrementAndGet();
+        if (approvals != null) {
+            logger.debug("Dropping all cached approvals");
+            approvals.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Hits")
+    public long getCacheHits() {
+        return approvals == null ? 0 : approvals.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Misses")
+    public long getCacheMisses() {
+        return approvals == null ? 0 : approvals.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Evictions")
+    public long getCacheEvictions() {
+        return approvals == null ? 0 : approvals.getEvictions();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Approval Cache Size")
+    public int getCacheSize() {
+        return approvals == null ? 0 : approvals.size();
+    }
+
+    private void cache(Approval approval) {
+        modifications.incrementAndGet();
+        if (approvals == null) {
+            return;
+        }
+        String key = getKey(approval.getUserId(), approval.getClientId());
+        List<Approval> cached = approvals.get(key);
+        if (cached == null) {
+            return;
+        }
+        List<Approval> updated = new ArrayList<>(cached.size() + 1);
+        for (Approval existing : cached) {
+            if (!existing.getScope().equals(approval.getScope())) {
+                updated.add(existing);
+            }
+        }
+        // stored the same way as the database stores it, and copied so that
+        // later changes by the caller are not seen
+        Approval copy = new Approval(approval);
+        if (copy.getStatus() == null) {
+            copy.setStatus(APPROVED);
+        }
+        updated.add(copy);
+        approvals.put(key, Collections.unmodifiableList(updated));
+    }
+
+    private static String getKey(String userId, String clientId) {
+        return IdentityZoneHolder.get().getId() + "|" + userId + "|" + clientId;
+    }
+
+}
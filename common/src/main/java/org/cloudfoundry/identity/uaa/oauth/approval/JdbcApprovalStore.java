@@ -68,6 +68,13 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    /**
+     * Compares the ids as they are stored, so that the lookup can use the
+     * primary key instead of matching the lower cased ids of every row like a
+     * filter query does.
+     */
+    public static final String GET_USER_CLIENT_AUTHZ_SQL = GET_AUTHZ_SQL + " where user_id=? and client_id=?";
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -198,7 +205,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     @Override
     public List<Approval> getApprovals(String userId, String clientId) {
-        return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
+        return jdbcTemplate.query(GET_USER_CLIENT_AUTHZ_SQL, rowMapper, userId, clientId);
     }
 
     @Override
@@ -12,18 +12,24 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.token;
 
-import java.lang.reflect.Field;
-import java.math.BigInteger;
-import java.security.interfaces.RSAPublicKey;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.codec.Codecs;
 import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
 import org.springframework.security.jwt.crypto.sign.MacSigner;
 import org.springframework.security.jwt.crypto.sign.RsaSigner;
-import org.springframework.security.jwt.crypto.sign.RsaVerifier;
 import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.jwt.crypto.sign.Signer;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
@@ -32,26 +38,40 @@ import org.springframework.util.Assert;
 /**
  * A class that knows how to provide the signing and verification keys
  * 
+ * The verification keys are parsed once, when they are configured, and held in
+ * an immutable snapshot keyed by key id. The snapshot is replaced as a whole
+ * whenever a key changes, so readers always see a consistent key set without
+ * locking. Keys of previous signing keys can be registered through
+ * {@link #setAdditionalVerifierKeys(Map)} so that tokens issued before a key
+ * rotation remain valid until they expire.
+ * 
+ * Tokens are signed with the key id of the signing key in their header, and a
+ * token is verified with the key its key id names before any other key is
+ * tried.
  *
  */
 public class SignerProvider implements InitializingBean {
 
+    public static final String DEFAULT_KEY_ID = "legacy-token-key";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private final Log logger = LogFactory.getLog(getClass());
     private String verifierKey = new RandomValueStringGenerator().generate();
     private String signingKey = verifierKey;
     private Signer signer = new MacSigner(verifierKey);
     private String type = "MAC";
+    private String keyId = DEFAULT_KEY_ID;
+    private String header = buildHeader();
+    private Map<String, String> additionalVerifierKeys = Collections.emptyMap();
+    private final AtomicLong keySetVersion = new AtomicLong();
+    private volatile VerificationKeys verificationKeys = buildVerificationKeys();
 
     @Override
     public void afterPropertiesSet() throws Exception {
         if (signer instanceof RsaSigner) {
             type = "RSA";
-            RsaVerifier verifier;
-            try {
-                verifier = new RsaVerifier(verifierKey);
-            } catch (Exception e) {
-                throw new RuntimeException("Unable to create an RSA verifier from verifierKey", e);
-            }
+            SignatureVerifier verifier = getVerifier();
 
             byte[] test = "test".getBytes();
             try {
@@ -86,16 +106,137 @@ public class SignerProvider implements InitializingBean {
      * @return true if the signer represents a public (asymmetric) key pair
      */
     public boolean isPublic() {
-        return verifierKey.startsWith("-----BEGIN");
+        return VerificationKey.isAssymetricKey(verifierKey);
     }
 
+    /**
+     * @return the pre-parsed verifier for the key currently used for signing
+     */
     public SignatureVerifier getVerifier() {
-        if (isAssymetricKey(signingKey)) {
-            return new RsaVerifier(verifierKey);
+        return verificationKeys.active.getVerifier();
+    }
+
+    /**
+     * @param keyId the key id (<code>kid</code>) to look up
+     * @return the pre-parsed verifier for the key id or null if there is no
+     *         such key
+     */
+    public SignatureVerifier getVerifier(String keyId) {
+        VerificationKey key = verificationKeys.keys.get(keyId);
+        return key == null ? null : key.getVerifier();
+    }
+
+    /**
+     * @return the verification key matching the current signing key
+     */
+    public VerificationKey getVerificationKey() {
+        return verificationKeys.active;
+    }
+
+    /**
+     * @return all keys that are accepted for verification, the key matching
+     *         the current signing key first
+     */
+    public Collection<VerificationKey> getVerificationKeys() {
+        return verificationKeys.keys.values();
+    }
+
+    /**
+     * @return a number that changes every time the set of verification keys
+     *         changes, so that anything derived from a verified token can be
+     *         discarded when a key is replaced
+     */
+    public long getKeySetVersion() {
+        return verificationKeys.version;
+    }
+
+    /**
+     * Encodes and signs a token with the current signing key, naming the key
+     * in the <code>kid</code> header.
+     * 
+     * @param content the claims of the token
+     * @return the encoded token
+     */
+    public String encode(String content) {
+        String signed = header + "." + new String(Codecs.b64UrlEncode(content.getBytes(UTF8)), UTF8);
+        return signed + "." + new String(Codecs.b64UrlEncode(signer.sign(signed.getBytes(UTF8))), UTF8);
+    }
+
+    /**
+     * Verifies the signature of a decoded token, trying the key named by its
+     * key id first, or the key matching the current signing key if it has
+     * none, and then any other keys.
+     * 
+     * @param jwt the decoded token
+     * @throws InvalidSignatureException if no key verifies the signature
+     */
+    public void verifySignature(Jwt jwt) throws InvalidSignatureException {
+        VerificationKeys keys = verificationKeys;
+        String tokenKeyId = getKeyId(jwt);
+        VerificationKey first = tokenKeyId == null ? null : keys.keys.get(tokenKeyId);
+        if (first == null) {
+            first = keys.active;
         }
-        else {
-            return new MacSigner(verifierKey);
+        try {
+            jwt.verifySignature(first.getVerifier());
+            return;
+        } catch (InvalidSignatureException e) {
+            if (keys.keys.size() == 1) {
+                throw e;
+            }
+        }
+        for (VerificationKey key : keys.keys.values()) {
+            if (key == first) {
+                continue;
+            }
+            try {
+                jwt.verifySignature(key.getVerifier());
+                return;
+            } catch (InvalidSignatureException e) {
+                logger.debug("Token signature does not match key: " + key.getKeyId());
+            }
+        }
+        throw new InvalidSignatureException("Token signature does not match any verification key");
+    }
+
+    /**
+     * @return the key id (<code>kid</code>) of the current signing key
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * The key id (<code>kid</code>) published for the current signing key.
+     * Defaults to {@link #DEFAULT_KEY_ID}.
+     * 
+     * @param keyId the key id
+     */
+    public void setKeyId(String keyId) {
+        Assert.hasText(keyId);
+        this.keyId = keyId;
+        this.header = buildHeader();
+        this.verificationKeys = buildVerificationKeys();
+    }
+
+    /**
+     * Verification keys, keyed by key id, that are accepted in addition to
+     * the one matching the current signing key. This is used during a key
+     * rotation so that tokens signed with the previous key remain valid.
+     * 
+     * @param additionalVerifierKeys the keys to accept, may be null
+     */
+    public void setAdditionalVerifierKeys(Map<String, String> additionalVerifierKeys) {
+        Map<String, String> keys = new LinkedHashMap<String, String>();
+        if (additionalVerifierKeys != null) {
+            for (Map.Entry<String, String> entry : additionalVerifierKeys.entrySet()) {
+                Assert.hasText(entry.getValue(), "Missing verification key for key id: " + entry.getKey());
+                assertNotPrivateKey(entry.getValue());
+                keys.put(entry.getKey(), entry.getValue().trim());
+            }
         }
+        this.additionalVerifierKeys = Collections.unmodifiableMap(keys);
+        this.verificationKeys = buildVerificationKeys();
     }
 
     /**
@@ -111,7 +252,7 @@ public class SignerProvider implements InitializingBean {
 
         this.signingKey = key;
 
-        if (isAssymetricKey(key)) {
+        if (VerificationKey.isAssymetricKey(key)) {
             signer = new RsaSigner(key);
             logger.debug("Configured with RSA signing key");
         }
@@ -119,14 +260,9 @@ public class SignerProvider implements InitializingBean {
             // Assume it's an HMAC key
             this.verifierKey = key;
             signer = new MacSigner(key);
+            this.verificationKeys = buildVerificationKeys();
         }
-    }
-
-    /**
-     * @return true if the key has a public verifier
-     */
-    private boolean isAssymetricKey(String key) {
-        return key.startsWith("-----BEGIN");
+        this.header = buildHeader();
     }
 
     /**
@@ -143,9 +279,15 @@ public class SignerProvider implements InitializingBean {
      *            public key)
      */
     public void setVerifierKey(String verifierKey) {
+        assertNotPrivateKey(verifierKey);
+        this.verifierKey = verifierKey;
+        this.verificationKeys = buildVerificationKeys();
+    }
+
+    private void assertNotPrivateKey(String key) {
         boolean valid = false;
         try {
-            new RsaSigner(verifierKey);
+            new RsaSigner(key);
         } catch (Exception expected) {
             // Expected
             valid = true;
@@ -153,9 +295,65 @@ public class SignerProvider implements InitializingBean {
         if (!valid) {
             throw new IllegalArgumentException("Private key cannot be set as verifierKey property");
         }
-        this.verifierKey = verifierKey;
     }
 
+    /**
+     * @return the encoded header JwtHelper writes for the signer, with the key
+     *         id added
+     */
+    private String buildHeader() {
+        String token = JwtHelper.encode("{}", signer).getEncoded();
+        Map<String, Object> fields = readHeader(token);
+        fields.put("kid", keyId);
+        return new String(Codecs.b64UrlEncode(JsonUtils.writeValueAsBytes(fields)), UTF8);
+    }
 
+    private static String getKeyId(Jwt jwt) {
+        try {
+            Object kid = readHeader(jwt.getEncoded()).get("kid");
+            return kid instanceof String ? (String) kid : null;
+        } catch (RuntimeException e) {
+            // JwtHelper has decoded the header already, so this is unexpected
+            return null;
+        }
+    }
+
+    private static Map<String, Object> readHeader(String token) {
+        String header = token.substring(0, token.indexOf('.'));
+        return JsonUtils.readValue(new String(Codecs.b64UrlDecode(header), UTF8),
+                        new TypeReference<LinkedHashMap<String, Object>>() {
+                        });
+    }
+
+    private VerificationKeys buildVerificationKeys() {
+        VerificationKey active = new VerificationKey(keyId, verifierKey);
+        Map<String, VerificationKey> keys = new LinkedHashMap<String, VerificationKey>();
+        keys.put(keyId, active);
+        for (Map.Entry<String, String> entry : additionalVerifierKeys.entrySet()) {
+            if (!keys.containsKey(entry.getKey())) {
+                keys.put(entry.getKey(), new VerificationKey(entry.getKey(), entry.getValue()));
+            }
+        }
+        return new VerificationKeys(active, keys, keySetVersion.incrementAndGet());
+    }
+
+    /**
+     * Immutable snapshot of the verification keys, replaced as a whole when
+     * the configuration changes.
+     */
+    private static final class VerificationKeys {
+
+        private final VerificationKey active;
+
+        private final Map<String, VerificationKey> keys;
+
+        private final long version;
+
+        private VerificationKeys(VerificationKey active, Map<String, VerificationKey> keys, long version) {
+            this.active = active;
+            this.keys = Collections.unmodifiableMap(keys);
+            this.version = version;
+        }
+    }
 
 }
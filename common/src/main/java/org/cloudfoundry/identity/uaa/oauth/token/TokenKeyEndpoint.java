@@ -12,11 +12,12 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.token;
 
-import java.lang.reflect.Field;
-import java.math.BigInteger;
 import java.security.Principal;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -25,8 +26,6 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.crypto.codec.Base64;
-import org.springframework.security.jwt.crypto.sign.RsaVerifier;
-import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.Assert;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -75,38 +74,50 @@ public class TokenKeyEndpoint implements InitializingBean {
         result.put("kty", signerProvider.getType());
         result.put("use", "sig");
         if (signerProvider.isPublic() && "RSA".equals(signerProvider.getType())) {
-            SignatureVerifier verifier = signerProvider.getVerifier();
-            if (verifier!=null && verifier instanceof RsaVerifier) {
-                RSAPublicKey rsaKey = extractRsaPublicKey((RsaVerifier) verifier) ;
-                if (rsaKey!=null) {
-                    String n = new String(Base64.encode(rsaKey.getModulus().toByteArray()));
-                    String e = new String(Base64.encode(rsaKey.getPublicExponent().toByteArray()));
-                    result.put("n", n);
-                    result.put("e", e);
-                }
-            }
+            putRsaValues(result, signerProvider.getVerificationKey().getPublicKey());
         }
         return result;
     }
 
-
-    private RSAPublicKey extractRsaPublicKey(RsaVerifier verifier) {
-        try {
-            Field f = verifier.getClass().getDeclaredField("key");
-            if (f != null) {
-                f.setAccessible(true);
-                if (f.get(verifier) instanceof RSAPublicKey) {
-                    return (RSAPublicKey) f.get(verifier);
-                }
+    /**
+     * Get all keys that are currently accepted for verifying token signatures,
+     * the key used for signing new tokens first. Shared (MAC) keys are only
+     * returned to authenticated callers.
+     * 
+     * @param principal the currently authenticated user if there is one
+     * @return the verification keys in JSON Web Key Set format
+     */
+    @RequestMapping(value = "/token_keys", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, List<Map<String, String>>> getKeys(Principal principal) {
+        boolean anonymous = principal == null || principal instanceof AnonymousAuthenticationToken;
+        List<Map<String, String>> keys = new ArrayList<Map<String, String>>();
+        for (VerificationKey key : signerProvider.getVerificationKeys()) {
+            if (anonymous && !key.isPublic()) {
+                continue;
             }
-        } catch (NoSuchFieldException e) {
-
-        } catch (IllegalAccessException e) {
-
-        } catch (ClassCastException x) {
+            Map<String, String> result = new LinkedHashMap<String, String>();
+            result.put("kid", key.getKeyId());
+            result.put("alg", key.getAlgorithm());
+            result.put("value", key.getValue());
+            result.put("kty", key.getType());
+            result.put("use", "sig");
+            putRsaValues(result, key.getPublicKey());
+            keys.add(result);
+        }
+        if (keys.isEmpty()) {
+            throw new AccessDeniedException("You need to authenticate to see a shared key");
+        }
+        return Collections.singletonMap("keys", keys);
+    }
 
+    private void putRsaValues(Map<String, String> result, RSAPublicKey rsaKey) {
+        if (rsaKey!=null) {
+            String n = new String(Base64.encode(rsaKey.getModulus().toByteArray()));
+            String e = new String(Base64.encode(rsaKey.getPublicExponent().toByteArray()));
+            result.put("n", n);
+            result.put("e", e);
         }
-        return null;
     }
 
     @Override
@@ -25,6 +25,7 @@ import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
 import org.cloudfoundry.identity.uaa.util.UaaTokenUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -32,6 +33,11 @@ import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
@@ -67,6 +73,8 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -102,7 +110,13 @@ import static org.cloudfoundry.identity.uaa.oauth.Claims.ZONE_ID;
  * This class provides token services for the UAA. It handles the production and
  * consumption of UAA tokens.
  * 
+ * The claims of tokens that passed signature verification are cached until the
+ * token expires, so that repeated checks of the same token skip the signature
+ * check and the JSON parsing. The cache is keyed by a digest of the token and
+ * the version of the signing key set, so replacing a key invalidates it.
+ * 
  */
+@ManagedResource
 public class UaaTokenServices implements AuthorizationServerTokenServices, ResourceServerTokenServices,
                 InitializingBean, ApplicationEventPublisherAware {
 
@@ -132,6 +146,10 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
     private ApplicationEventPublisher applicationEventPublisher;
     private String host;
 
+    private ExpiringCache<String, Map<String, Object>> claimsCache = new ExpiringCache<>(10000, 0);
+
+    private volatile long claimsCacheKeySetVersion = -1;
+
     @Override
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -311,7 +329,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         } catch (Exception e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String token = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        String token = signerProvider.encode(content);
 
         // This setter copies the value and returns. Don't change.
         accessToken.setValue(token);
@@ -510,7 +528,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         } catch (Exception e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String jwtToken = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        String jwtToken = signerProvider.encode(content);
 
         ExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(jwtToken, token.getExpiration());
 
@@ -761,9 +779,39 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
     }
 
     private Map<String, Object> getClaimsForToken(String token) {
+        Map<String, Object> claims = null;
+        String cacheKey = null;
+        if (claimsCache != null) {
+            long keySetVersion = signerProvider.getKeySetVersion();
+            if (keySetVersion != claimsCacheKeySetVersion) {
+                // entries of the previous key set can never be hit again
+                claimsCache.clear();
+                claimsCacheKeySetVersion = keySetVersion;
+            }
+            cacheKey = keySetVersion + ":" + digest(token);
+            claims = claimsCache.get(cacheKey);
+        }
+
+        if (claims == null) {
+            claims = verifyAndDecode(token);
+            Object exp = claims.get(EXP);
+            if (cacheKey != null && exp instanceof Number) {
+                claimsCache.put(cacheKey, claims, ((Number) exp).longValue() * 1000l);
+            }
+        }
+
+        if (getTokenEndpoint()!=null && !getTokenEndpoint().equals(claims.get(ISS))) {
+            throw new InvalidTokenException("Invalid issuer for token:"+claims.get(ISS));
+        }
+
+        return claims;
+    }
+
+    private Map<String, Object> verifyAndDecode(String token) {
         Jwt tokenJwt = null;
         try {
-            tokenJwt = JwtHelper.decodeAndVerify(token, signerProvider.getVerifier());
+            tokenJwt = JwtHelper.decode(token);
+            signerProvider.verifySignature(tokenJwt);
         } catch (Throwable t) {
             logger.debug("Invalid token (could not decode)");
             throw new InvalidTokenException("Invalid token (could not decode): " + token);
@@ -776,12 +824,15 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         } catch (Exception e) {
             throw new IllegalStateException("Cannot read token claims", e);
         }
+        return Collections.unmodifiableMap(claims);
+    }
 
-        if (getTokenEndpoint()!=null && !getTokenEndpoint().equals(claims.get(ISS))) {
-            throw new InvalidTokenException("Invalid issuer for token:"+claims.get(ISS));
+    private String digest(String token) {
+        try {
+            return new String(Hex.encode(MessageDigest.getInstance("SHA-256").digest(Utf8.encode(token))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
         }
-
-        return claims;
     }
 
     /**
@@ -825,6 +876,36 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.approvalStore = approvalStore;
     }
 
+    /**
+     * The maximum number of verified tokens whose claims are cached. Set to 0
+     * to verify and decode every token on every call.
+     * 
+     * @param maxEntries the maximum number of cached tokens
+     */
+    public void setClaimsCacheMaxEntries(int maxEntries) {
+        this.claimsCache = maxEntries > 0 ? new ExpiringCache<String, Map<String, Object>>(maxEntries, 0) : null;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Hits")
+    public long getClaimsCacheHits() {
+        return claimsCache == null ? 0 : claimsCache.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Misses")
+    public long getClaimsCacheMisses() {
+        return claimsCache == null ? 0 : claimsCache.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Claims Cache Evictions")
+    public long getClaimsCacheEvictions() {
+        return claimsCache == null ? 0 : claimsCache.getEvictions();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Claims Cache Size")
+    public int getClaimsCacheSize() {
+        return claimsCache == null ? 0 : claimsCache.size();
+    }
+
     private void publish(TokenIssuedEvent event) {
         if (applicationEventPublisher != null) {
             applicationEventPublisher.publishEvent(event);
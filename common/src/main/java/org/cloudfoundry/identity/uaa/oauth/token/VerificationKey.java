@@ -0,0 +1,133 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.lang.reflect.Field;
+import java.security.interfaces.RSAPublicKey;
+
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.util.Assert;
+
+/**
+ * An immutable, pre-parsed token verification key. The key material is parsed
+ * exactly once, when the instance is created, so that verifying a token signature
+ * does not have to decode the PEM or build a MAC key again.
+ *
+ */
+public final class VerificationKey {
+
+    public static final String RSA = "RSA";
+
+    public static final String MAC = "MAC";
+
+    private final String keyId;
+
+    private final String value;
+
+    private final String type;
+
+    private final SignatureVerifier verifier;
+
+    private final RSAPublicKey publicKey;
+
+    public VerificationKey(String keyId, String value) {
+        Assert.hasText(keyId, "A key id is required");
+        Assert.hasText(value, "A verification key is required");
+        this.keyId = keyId;
+        this.value = value;
+        if (isAssymetricKey(value)) {
+            RsaVerifier rsaVerifier;
+            try {
+                rsaVerifier = new RsaVerifier(value);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unable to create an RSA verifier for key id: " + keyId, e);
+            }
+            this.type = RSA;
+            this.verifier = rsaVerifier;
+            this.publicKey = extractRsaPublicKey(rsaVerifier);
+        }
+        else {
+            this.type = MAC;
+            this.verifier = new MacSigner(value);
+            this.publicKey = null;
+        }
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * @return the verification key as configured (PEM for RSA keys, the shared
+     *         secret for MAC keys)
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getAlgorithm() {
+        return verifier.algorithm();
+    }
+
+    public SignatureVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return the parsed RSA public key or null if this is not an RSA key
+     */
+    public RSAPublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * @return true if this key can be shared with anonymous callers
+     */
+    public boolean isPublic() {
+        return RSA.equals(type);
+    }
+
+    static boolean isAssymetricKey(String key) {
+        return key.startsWith("-----BEGIN");
+    }
+
+    private static RSAPublicKey extractRsaPublicKey(RsaVerifier verifier) {
+        try {
+            Field f = verifier.getClass().getDeclaredField("key");
+            if (f != null) {
+                f.setAccessible(true);
+                if (f.get(verifier) instanceof RSAPublicKey) {
+                    return (RSAPublicKey) f.get(verifier);
+                }
+            }
+        } catch (NoSuchFieldException e) {
+
+        } catch (IllegalAccessException e) {
+
+        } catch (ClassCastException x) {
+
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationKey[keyId=" + keyId + ", type=" + type + "]";
+    }
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.util.List;
+
+/**
+ * One page of a query that is paged with an opaque cursor rather than an
+ * offset.
+ */
+public class CursorPage<T> {
+
+    private final List<T> resources;
+
+    private final int startIndex;
+
+    private final int totalResults;
+
+    private final String nextCursor;
+
+    /**
+     * @param totalResults the number of results counted, or -1 if they were
+     *            not counted
+     */
+    public CursorPage(List<T> resources, int startIndex, int totalResults, String nextCursor) {
+        this.resources = resources;
+        this.startIndex = startIndex;
+        this.totalResults = totalResults;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getResources() {
+        return resources;
+    }
+
+    /**
+     * @return the 1 based position of the first resource in the whole result
+     */
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    /**
+     * @return the number of results counted when the first page was read or,
+     *         if they were not counted, the results read so far plus one if
+     *         there are more
+     */
+    public int getTotalResults() {
+        if (totalResults >= 0) {
+            return totalResults;
+        }
+        return startIndex - 1 + resources.size() + (nextCursor == null ? 0 : 1);
+    }
+
+    /**
+     * @return the cursor of the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+}
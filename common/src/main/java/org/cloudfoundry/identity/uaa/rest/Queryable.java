@@ -20,6 +20,29 @@ public interface Queryable<T> {
 
     List<T> query(String filter, String sortBy, boolean ascending);
 
+    /**
+     * Reads one page of results after the position recorded in a cursor, so
+     * that reading a page costs the same however deep into the results it is.
+     *
+     * @param cursor the next cursor of the previous page, or null or empty
+     *            for the first page
+     * @param count the maximum number of results on the page
+     * @param countTotal whether to count the results when reading the first
+     *            page, the count is carried over to later pages
+     */
+    CursorPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count, boolean countTotal);
+
+    /**
+     * Reads the results from startIndex on and passes them to a handler in
+     * batches while they are read, so that a large page never has to be held
+     * in memory all at once.
+     *
+     * @param startIndex the 1 based position of the first result
+     * @param count the maximum number of results to read
+     * @return the number of results that match the filter
+     */
+    int query(String filter, String sortBy, boolean ascending, int startIndex, int count, ResultHandler<T> handler);
+
     int delete(String filter);
 
 }
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.util.List;
+
+/**
+ * Receives the results of a query in batches while they are being read.
+ */
+public interface ResultHandler<T> {
+
+    /**
+     * @param results the next batch of results
+     * @return true to carry on reading, false to stop
+     */
+    boolean handle(List<T> results);
+
+}
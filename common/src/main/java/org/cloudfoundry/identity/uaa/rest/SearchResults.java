@@ -15,6 +15,8 @@ package org.cloudfoundry.identity.uaa.rest;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
 /**
  * @author Dave Syer
  * 
@@ -26,14 +28,21 @@ public class SearchResults<T> {
     private final int itemsPerPage;
     private final int totalResults;
     private final Collection<String> schemas;
+    private final String nextCursor;
 
     public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
                     int totalResults) {
+        this(schemas, resources, startIndex, itemsPerPage, totalResults, null);
+    }
+
+    public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
+                    int totalResults, String nextCursor) {
         this.schemas = new ArrayList<String>(schemas);
         this.resources = new ArrayList<T>(resources);
         this.startIndex = startIndex;
         this.itemsPerPage = itemsPerPage;
         this.totalResults = totalResults;
+        this.nextCursor = nextCursor;
     }
 
     public Collection<String> getSchemas() {
@@ -56,6 +65,15 @@ public class SearchResults<T> {
         return resources;
     }
 
+    /**
+     * @return the cursor of the next page when paging with cursors, null
+     *         otherwise
+     */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("SearchResults[schemas:");
@@ -89,6 +89,19 @@ public class SearchResultsFactory {
         AttributeNameMapper mapper,
         List<String> schemas) {
 
+        return buildSearchResultFrom(input, startIndex, count, total, attributes, mapper, schemas, null);
+    }
+
+    public static <T> SearchResults<Map<String, Object>> buildSearchResultFrom(
+        List<T> input,
+        int startIndex,
+        int count,
+        int total,
+        String[] attributes,
+        AttributeNameMapper mapper,
+        List<String> schemas,
+        String nextCursor) {
+
         Assert.state(input.size() <= count,
                         "Cannot build search results from parent list. Use subList before you call this method.");
         Map<String, Expression> expressions = buildExpressions(attributes, mapper);
@@ -102,10 +115,10 @@ public class SearchResultsFactory {
             results.add(map);
         }
 
-        return new SearchResults<Map<String, Object>>(schemas, results, startIndex, count, total);
+        return new SearchResults<Map<String, Object>>(schemas, results, startIndex, count, total, nextCursor);
     }
 
-    private static Map<String, Expression> buildExpressions(String[] attributes, AttributeNameMapper mapper) {
+    static Map<String, Expression> buildExpressions(String[] attributes, AttributeNameMapper mapper) {
         Map<String, Expression> expressions = new LinkedHashMap<String, Expression>();
         for (String attribute : attributes) {
             String spel = mapper != null ? mapper.mapToInternal(attribute) : attribute;
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializableWithType;
+import org.codehaus.jackson.map.SerializerProvider;
+import org.codehaus.jackson.map.TypeSerializer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+/**
+ * Search results in the same JSON format as {@link SearchResults}, but whose
+ * resources are read from a {@link Queryable} while they are serialized. Each
+ * batch of resources is written to the response as soon as it is read, so the
+ * memory used doesn't grow with the size of the page. Subclasses can enrich or
+ * filter each batch in {@link #process(List)}.
+ * <p>
+ * The response is committed once the first batch has been written, so errors
+ * after that can only cut it short.
+ *
+ * @param <T> the resource type
+ */
+public class StreamingSearchResults<T> implements JsonSerializableWithType {
+
+    private final Collection<String> schemas;
+
+    private final Queryable<T> queryable;
+
+    private final String filter;
+
+    private final String sortBy;
+
+    private final boolean ascending;
+
+    private final int startIndex;
+
+    private final int count;
+
+    private final Map<String, Expression> expressions;
+
+    public StreamingSearchResults(Collection<String> schemas, Queryable<T> queryable, String filter, String sortBy,
+                    boolean ascending, int startIndex, int count) {
+        this(schemas, queryable, filter, sortBy, ascending, startIndex, count, null, null);
+    }
+
+    /**
+     * @param attributes the attributes to write for each resource, or null to
+     *            write whole resources
+     */
+    public StreamingSearchResults(Collection<String> schemas, Queryable<T> queryable, String filter, String sortBy,
+                    boolean ascending, int startIndex, int count, String[] attributes, AttributeNameMapper mapper) {
+        this.schemas = new ArrayList<String>(schemas);
+        this.queryable = queryable;
+        this.filter = filter;
+        this.sortBy = sortBy;
+        this.ascending = ascending;
+        this.startIndex = startIndex < 1 ? 1 : startIndex;
+        this.count = count;
+        // parsed up front so that invalid attributes fail before anything is
+        // written
+        this.expressions = attributes == null ? null : SearchResultsFactory.buildExpressions(attributes, mapper);
+    }
+
+    /**
+     * Prepares a batch of resources for writing.
+     *
+     * @return the resources to write, which may be fewer than were read
+     */
+    protected List<?> process(List<T> resources) {
+        return resources;
+    }
+
+    /**
+     * @return the maximum number of resources to read, which needs to be more
+     *         than the count if {@link #process(List)} leaves some out
+     */
+    protected int getReadLimit() {
+        return count;
+    }
+
+    @Override
+    public void serialize(final JsonGenerator jgen, final SerializerProvider provider) throws IOException {
+        final StandardEvaluationContext context = new StandardEvaluationContext();
+        // nothing is written until the first batch is ready, so that a bad
+        // filter or attribute fails before the response is committed
+        final int[] written = { -1 };
+        int totalResults;
+        try {
+            totalResults = queryable.query(filter, sortBy, ascending, startIndex, getReadLimit(),
+                            new ResultHandler<T>() {
+                                @Override
+                                public boolean handle(List<T> results) {
+                                    List<Object> resources = new ArrayList<Object>();
+                                    for (Object resource : process(results)) {
+                                        resources.add(getAttributes(resource, context));
+                                    }
+                                    try {
+                                        if (written[0] < 0) {
+                                            writeStart(jgen);
+                                            written[0] = 0;
+                                        }
+                                        for (Object resource : resources) {
+                                            if (written[0] >= count) {
+                                                return false;
+                                            }
+                                            provider.defaultSerializeValue(resource, jgen);
+                                            written[0]++;
+                                        }
+                                        jgen.flush();
+                                    } catch (IOException e) {
+                                        throw new WriteFailedException(e);
+                                    }
+                                    return written[0] < count;
+                                }
+                            });
+        } catch (WriteFailedException e) {
+            throw (IOException) e.getCause();
+        }
+        if (written[0] < 0) {
+            writeStart(jgen);
+            written[0] = 0;
+        }
+        jgen.writeEndArray();
+        jgen.writeNumberField("startIndex", startIndex);
+        jgen.writeNumberField("itemsPerPage", written[0]);
+        jgen.writeNumberField("totalResults", totalResults);
+        jgen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator jgen, SerializerProvider provider, TypeSerializer typeSer)
+                    throws IOException {
+        // search results carry no type information
+        serialize(jgen, provider);
+    }
+
+    private void writeStart(JsonGenerator jgen) throws IOException {
+        jgen.writeStartObject();
+        jgen.writeArrayFieldStart("schemas");
+        for (String schema : schemas) {
+            jgen.writeString(schema);
+        }
+        jgen.writeEndArray();
+        jgen.writeArrayFieldStart("resources");
+    }
+
+    private Object getAttributes(Object resource, StandardEvaluationContext context) {
+        if (expressions == null) {
+            return resource;
+        }
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String attribute : expressions.keySet()) {
+            map.put(attribute, expressions.get(attribute).getValue(context, resource));
+        }
+        return map;
+    }
+
+    private static class WriteFailedException extends RuntimeException {
+
+        public WriteFailedException(IOException cause) {
+            super(cause);
+        }
+
+    }
+
+}
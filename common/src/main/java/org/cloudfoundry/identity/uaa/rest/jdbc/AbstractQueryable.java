@@ -12,20 +12,44 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.Queryable;
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ObjectUtils;
+import org.springframework.util.StringUtils;
 
 public abstract class AbstractQueryable<T> implements Queryable<T> {
 
     private NamedParameterJdbcTemplate jdbcTemplate;
 
+    private DataSource dataSource;
+
+    private TransactionTemplate streamingTransactionTemplate;
+
+    private volatile Boolean mysql;
+
     private JdbcPagingListFactory pagingListFactory;
 
     private RowMapper<T> rowMapper;
@@ -39,6 +63,9 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
     protected AbstractQueryable(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory,
                     RowMapper<T> rowMapper) {
         this.jdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.dataSource = jdbcTemplate.getDataSource();
+        this.streamingTransactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        this.streamingTransactionTemplate.setReadOnly(true);
         this.pagingListFactory = pagingListFactory;
         this.rowMapper = rowMapper;
     }
@@ -101,6 +128,189 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         }
     }
 
+    /**
+     * Reads a page with a keyset (seek) query: the rows are ordered by the
+     * sort column and then the key column, and each page starts after the
+     * sort value and key of the last row of the previous page instead of at an
+     * offset. Rows whose sort column is null are not returned after the first
+     * page, so this is meant for sorting on non null columns.
+     */
+    @Override
+    public CursorPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count,
+                    boolean countTotal) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+        KeysetCursor previous = StringUtils.hasText(cursor) ? KeysetCursor.decode(cursor) : null;
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
+        String filterSql = where.getSql();
+        String sortColumn = null;
+        if (filterSql != null && filterSql.contains(" ORDER BY ")) {
+            sortColumn = filterSql.substring(filterSql.lastIndexOf(" ORDER BY ") + 10).replaceAll(" (ASC|DESC)$", "");
+            filterSql = filterSql.substring(0, filterSql.lastIndexOf(" ORDER BY "));
+        }
+        if (previous != null && !ObjectUtils.nullSafeEquals(previous.getSortColumn(), sortColumn)) {
+            throw new IllegalArgumentException("Invalid cursor for sort order " + sortBy + ": " + cursor);
+        }
+
+        final String sortKey = sortColumn;
+        final String keyColumn = getKeyColumn();
+        String direction = ascending ? " ASC" : " DESC";
+        String comparator = ascending ? " > " : " < ";
+        Map<String, Object> params = new HashMap<String, Object>(where.getParams());
+        try {
+            int total = -1;
+            if (previous != null) {
+                total = previous.getTotal();
+            } else if (countTotal) {
+                String countSql = "select count(*) from ("
+                                + getQuerySQL(filterSql, new SearchQueryConverter.ProcessedFilter(filterSql, params))
+                                + ") counted";
+                total = jdbcTemplate.queryForObject(countSql, params, Integer.class);
+            }
+
+            if (previous != null) {
+                String keyset = keyColumn + comparator + ":__keyset_key";
+                if (sortKey != null) {
+                    keyset = "(" + sortKey + comparator + ":__keyset_sort OR (" + sortKey + " = :__keyset_sort AND "
+                                    + keyset + "))";
+                    params.put("__keyset_sort", previous.getSortValue());
+                }
+                params.put("__keyset_key", previous.getKey());
+                filterSql = filterSql == null ? keyset : "(" + filterSql + ") AND " + keyset;
+            }
+            String completeSql = getQuerySQL(filterSql, new SearchQueryConverter.ProcessedFilter(filterSql, params))
+                            + " ORDER BY " + (sortKey == null ? "" : sortKey + direction + ", ") + keyColumn + direction;
+            logger.debug("keyset sql: " + completeSql + ", params: " + params);
+
+            // one more row than requested tells whether there is a next page
+            final int last = count - 1;
+            final Object[] lastRow = new Object[2];
+            List<T> rows = jdbcTemplate.query(
+                            pagingListFactory.getLimitSqlAdapter().getLimitSql(completeSql, 0, count + 1), params,
+                            new RowMapper<T>() {
+                                @Override
+                                public T mapRow(ResultSet rs, int rowNum) throws SQLException {
+                                    if (rowNum == last) {
+                                        lastRow[0] = sortKey == null ? null : rs.getObject(sortKey);
+                                        lastRow[1] = rs.getString(keyColumn);
+                                    }
+                                    return rowMapper.mapRow(rs, rowNum);
+                                }
+                            });
+
+            int startIndex = previous == null ? 1 : previous.getPosition();
+            String nextCursor = null;
+            if (rows.size() > count) {
+                rows = new ArrayList<T>(rows.subList(0, count));
+                nextCursor = new KeysetCursor(sortKey, lastRow[0], (String) lastRow[1], startIndex + count, total)
+                                .encode();
+            }
+            return new CursorPage<T>(rows, startIndex, total, nextCursor);
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    /**
+     * Streams a page with a single query, with the rows fetched from the
+     * database and passed to the handler {@link #getPageSize() page size} rows
+     * at a time. The query runs in a read only transaction, which PostgreSQL
+     * needs to use a server side cursor. MySQL only streams rows with a fetch
+     * size of {@link Integer#MIN_VALUE} and then allows no other statement on
+     * the connection until the rows are read, so there the query runs outside
+     * of a transaction and the handler's own queries use other connections.
+     */
+    @Override
+    public int query(final String filter, final String sortBy, final boolean ascending, final int startIndex,
+                    final int count, final ResultHandler<T> handler) {
+        if (isMySql()) {
+            return stream(filter, sortBy, ascending, startIndex, count, handler, Integer.MIN_VALUE);
+        }
+        return streamingTransactionTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                return stream(filter, sortBy, ascending, startIndex, count, handler, pageSize > 0 ? pageSize : 0);
+            }
+        });
+    }
+
+    private int stream(String filter, String sortBy, boolean ascending, int startIndex, int count,
+                    final ResultHandler<T> handler, int fetchSize) {
+        if (startIndex < 1) {
+            startIndex = 1;
+        }
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, sortBy, ascending);
+        String filterSql = where.getSql();
+        if (filterSql != null && filterSql.contains(" ORDER BY ")) {
+            filterSql = filterSql.substring(0, filterSql.lastIndexOf(" ORDER BY "));
+        }
+        try {
+            String countSql = "select count(*) from ("
+                            + getQuerySQL(filterSql, new SearchQueryConverter.ProcessedFilter(filterSql, where.getParams()))
+                            + ") counted";
+            int total = jdbcTemplate.queryForObject(countSql, where.getParams(), Integer.class);
+            if (count <= 0 || startIndex > total) {
+                return total;
+            }
+            String completeSql = pagingListFactory.getLimitSqlAdapter().getLimitSql(getQuerySQL(filter, where),
+                            startIndex - 1, count);
+            logger.debug("streaming sql: " + completeSql + ", params: " + where.getParams());
+            final int batchSize = pageSize > 0 ? Math.min(pageSize, count) : count;
+            // a separate template so that only streamed queries ask the
+            // driver to fetch rows in batches
+            JdbcTemplate template = new JdbcTemplate(dataSource);
+            template.setFetchSize(fetchSize);
+            new NamedParameterJdbcTemplate(template).query(completeSql, where.getParams(),
+                            new ResultSetExtractor<Void>() {
+                                @Override
+                                public Void extractData(ResultSet rs) throws SQLException {
+                                    List<T> batch = new ArrayList<T>(batchSize);
+                                    int rowNum = 0;
+                                    while (rs.next()) {
+                                        batch.add(rowMapper.mapRow(rs, rowNum++));
+                                        if (batch.size() == batchSize) {
+                                            if (!handler.handle(batch)) {
+                                                return null;
+                                            }
+                                            batch = new ArrayList<T>(batchSize);
+                                        }
+                                    }
+                                    if (!batch.isEmpty()) {
+                                        handler.handle(batch);
+                                    }
+                                    return null;
+                                }
+                            });
+            return total;
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    private boolean isMySql() {
+        if (mysql == null) {
+            try {
+                String product = (String) JdbcUtils.extractDatabaseMetaData(dataSource, "getDatabaseProductName");
+                mysql = product != null && product.toLowerCase().contains("mysql");
+            } catch (MetaDataAccessException e) {
+                logger.debug("Could not read the database product name", e);
+                mysql = false;
+            }
+        }
+        return mysql;
+    }
+
+    /**
+     * @return the unique column that orders rows with the same sort value in
+     *         keyset queries
+     */
+    protected String getKeyColumn() {
+        return "id";
+    }
+
     protected String getQuerySQL(String filter, SearchQueryConverter.ProcessedFilter where) {
         return filter == null || filter.trim().length()==0 ?
         getBaseSqlQuery() :
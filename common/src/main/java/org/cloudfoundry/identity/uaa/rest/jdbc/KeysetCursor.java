@@ -0,0 +1,124 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.crypto.codec.Utf8;
+
+/**
+ * The position of a keyset paged query: the sort value and key of the last
+ * row read, the position of the next row and the total counted on the first
+ * page. Encoded as url safe base 64 JSON so that clients treat it as opaque.
+ */
+final class KeysetCursor {
+
+    private final String sortColumn;
+
+    private final Object sortValue;
+
+    private final String key;
+
+    private final int position;
+
+    private final int total;
+
+    KeysetCursor(String sortColumn, Object sortValue, String key, int position, int total) {
+        this.sortColumn = sortColumn;
+        this.sortValue = sortValue;
+        this.key = key;
+        this.position = position;
+        this.total = total;
+    }
+
+    String getSortColumn() {
+        return sortColumn;
+    }
+
+    Object getSortValue() {
+        return sortValue;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    int getTotal() {
+        return total;
+    }
+
+    String encode() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("c", sortColumn);
+        values.put("k", key);
+        values.put("p", position);
+        values.put("t", total);
+        if (sortValue instanceof Timestamp) {
+            // keep the nanos, timestamps are more precise than millis on
+            // most databases
+            values.put("ts", ((Timestamp) sortValue).getTime());
+            values.put("tn", ((Timestamp) sortValue).getNanos());
+        } else if (sortValue instanceof Date) {
+            values.put("d", ((Date) sortValue).getTime());
+        } else if (sortValue instanceof Number) {
+            values.put("n", sortValue.toString());
+        } else if (sortValue instanceof Boolean) {
+            values.put("b", sortValue);
+        } else if (sortValue != null) {
+            values.put("s", sortValue.toString());
+        }
+        String encoded = Utf8.decode(Base64.encode(JsonUtils.writeValueAsBytes(values)));
+        return encoded.replace('+', '-').replace('/', '_').replace("=", "");
+    }
+
+    static KeysetCursor decode(String cursor) {
+        try {
+            StringBuilder encoded = new StringBuilder(cursor.replace('-', '+').replace('_', '/'));
+            while (encoded.length() % 4 != 0) {
+                encoded.append('=');
+            }
+            Map<String, Object> values = JsonUtils.readValue(Utf8.decode(Base64.decode(Utf8.encode(encoded.toString()))),
+                            new TypeReference<Map<String, Object>>() {});
+            Object sortValue = null;
+            if (values.containsKey("ts")) {
+                Timestamp timestamp = new Timestamp(((Number) values.get("ts")).longValue());
+                timestamp.setNanos(((Number) values.get("tn")).intValue());
+                sortValue = timestamp;
+            } else if (values.containsKey("d")) {
+                sortValue = new Date(((Number) values.get("d")).longValue());
+            } else if (values.containsKey("n")) {
+                sortValue = new BigDecimal((String) values.get("n"));
+            } else if (values.containsKey("b")) {
+                sortValue = values.get("b");
+            } else if (values.containsKey("s")) {
+                sortValue = values.get("s");
+            }
+            return new KeysetCursor((String) values.get("c"), sortValue, (String) values.get("k"),
+                            ((Number) values.get("p")).intValue(), ((Number) values.get("t")).intValue());
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+}
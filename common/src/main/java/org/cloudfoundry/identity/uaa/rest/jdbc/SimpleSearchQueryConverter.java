@@ -16,9 +16,14 @@ package org.cloudfoundry.identity.uaa.rest.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.unboundid.scim.sdk.SCIMException;
 import com.unboundid.scim.sdk.SCIMFilter;
@@ -26,16 +31,65 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.StringUtils;
 
+/**
+ * Converts SCIM filters into SQL where clauses with named parameters.
+ * <p>
+ * Filters that differ only in their literal values, like the
+ * <code>userName eq "..."</code> lookups made on every login, share a shape.
+ * The SQL of each shape is compiled once and kept in a bounded cache together
+ * with how its literals become parameters, so that converting a filter of a
+ * known shape only has to scan it for its literals instead of parsing it.
+ * Parameters are named deterministically for the same reason.
+ */
 public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
+    public static final int DEFAULT_MAX_CACHED_FILTERS = 1000;
+
+    private static final String PARAM_PREFIX = "__value_";
+
+    private static final Set<String> COMPARISON_OPERATORS = new HashSet<String>(Arrays.asList("eq", "co", "sw", "gt",
+                    "ge", "lt", "le"));
+
+    private static final char STRING_SLOT = '\u0001';
+    private static final char DATE_SLOT = '\u0002';
+    private static final char NUMBER_SLOT = '\u0003';
+    private static final char BOOLEAN_SLOT = '\u0004';
+
+    private static final String[][] LIKE_AFFIXES = { { "", "" }, { "%", "%" }, { "", "%" }, { "%", "" } };
+
     private static Log logger = LogFactory.getLog(SimpleSearchQueryConverter.class);
     private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> emptyMap());
 
+    private volatile ExpiringCache<String, FilterTemplate> templates = new ExpiringCache<String, FilterTemplate>(
+                    DEFAULT_MAX_CACHED_FILTERS, 0);
+
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
+        clearCache();
+    }
+
+    /**
+     * @param maxCachedFilters the maximum number of filter shapes to keep
+     *            compiled, 0 or less to parse every filter
+     */
+    public void setMaxCachedFilters(int maxCachedFilters) {
+        templates = maxCachedFilters > 0 ? new ExpiringCache<String, FilterTemplate>(maxCachedFilters, 0) : null;
+    }
+
+    public void clearCache() {
+        ExpiringCache<String, FilterTemplate> templates = this.templates;
+        if (templates != null) {
+            templates.clear();
+        }
+    }
+
+    public int getCachedFilterCount() {
+        ExpiringCache<String, FilterTemplate> templates = this.templates;
+        return templates == null ? 0 : templates.size();
     }
 
     @Override
@@ -45,15 +99,143 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     @Override
     public ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
+        ExpiringCache<String, FilterTemplate> templates = this.templates;
+        FilterShape shape = null;
+        String key = null;
+        if (templates != null && mapper == this.mapper && StringUtils.hasText(filter) && !filter.contains(PARAM_PREFIX)) {
+            shape = getShape(filter);
+            if (shape != null) {
+                key = shape.getKey() + '\u0000' + (sortBy == null ? "-" : "+" + sortBy) + '\u0000' + ascending;
+                FilterTemplate template = templates.get(key);
+                if (template != null) {
+                    return template.apply(shape.getLiterals());
+                }
+            }
+        }
         String paramPrefix = generateParameterPrefix(filter);
         Map<String, Object> values = new HashMap<String, Object>();
         String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix) : null;
+        if (key != null && PARAM_PREFIX.equals(paramPrefix)) {
+            FilterTemplate template = compile(where, values, shape.getLiterals());
+            if (template != null) {
+                templates.put(key, template);
+            }
+        }
         ProcessedFilter pf = new ProcessedFilter(where, values);
         pf.setParamPrefix(paramPrefix);
         return pf;
     }
 
+    /**
+     * Scans a filter for the literal values of its comparisons and replaces
+     * each of them with a marker of its type. Returns null if the filter has
+     * anything that the scan can't be sure to read the same way as the
+     * parser, like escapes or legacy single quotes, so that it is parsed.
+     */
+    private FilterShape getShape(String filter) {
+        StringBuilder key = new StringBuilder(filter.length());
+        List<Object> literals = new ArrayList<Object>();
+        String previous = null;
+        int length = filter.length();
+        int i = 0;
+        while (i < length) {
+            char c = filter.charAt(i);
+            if (c == '"') {
+                int end = filter.indexOf('"', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                String literal = filter.substring(i + 1, end);
+                if (literal.indexOf('\\') >= 0) {
+                    return null;
+                }
+                Object value = getStringOrDate(literal);
+                key.append(value instanceof String ? STRING_SLOT : DATE_SLOT);
+                literals.add(value);
+                previous = null;
+                i = end + 1;
+            } else if (c == '\'' || c < ' ' && !Character.isWhitespace(c)) {
+                return null;
+            } else if (Character.isWhitespace(c)) {
+                key.append(c);
+                i++;
+            } else if (c == '(' || c == ')') {
+                key.append(c);
+                previous = null;
+                i++;
+            } else {
+                int start = i;
+                while (i < length && !isDelimiter(filter.charAt(i))) {
+                    i++;
+                }
+                String token = filter.substring(start, i);
+                if (previous != null && COMPARISON_OPERATORS.contains(previous.toLowerCase())) {
+                    Object value = getUnquotedValue(token);
+                    if (value == null) {
+                        return null;
+                    }
+                    key.append(value instanceof Boolean ? BOOLEAN_SLOT : NUMBER_SLOT);
+                    literals.add(value);
+                } else {
+                    key.append(token);
+                }
+                previous = token;
+            }
+        }
+        return new FilterShape(key.toString(), literals);
+    }
+
+    private boolean isDelimiter(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '"' || c == '\'';
+    }
+
+    private Object getUnquotedValue(String token) {
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException x) {
+            if ("true".equalsIgnoreCase(token)) {
+                return Boolean.TRUE;
+            } else if ("false".equalsIgnoreCase(token)) {
+                return Boolean.FALSE;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Works out how the literals of a filter became the parameters of its
+     * converted SQL. Returns null if a parameter can't be matched to its
+     * literal, in which case the shape isn't cached.
+     */
+    private FilterTemplate compile(String sql, Map<String, Object> values, List<Object> literals) {
+        if (values.size() != literals.size()) {
+            return null;
+        }
+        String[][] affixes = new String[literals.size()][];
+        for (int i = 0; i < literals.size(); i++) {
+            Object value = values.get(PARAM_PREFIX + i);
+            Object literal = literals.get(i);
+            if (value instanceof String && literal instanceof String) {
+                for (String[] affix : LIKE_AFFIXES) {
+                    if (value.equals(affix[0] + literal + affix[1])) {
+                        affixes[i] = affix;
+                        break;
+                    }
+                }
+                if (affixes[i] == null) {
+                    return null;
+                }
+            } else if (value == null || !value.equals(literal)) {
+                return null;
+            }
+        }
+        return new FilterTemplate(sql, affixes);
+    }
+
     protected String generateParameterPrefix(String filter) {
+        if (filter == null || !filter.contains(PARAM_PREFIX)) {
+            return PARAM_PREFIX;
+        }
         while (true) {
             String s = new RandomValueStringGenerator().generate().toLowerCase();
             if (!filter.contains(s)) {
@@ -173,6 +355,49 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         }
     }
 
+    private static final class FilterShape {
+
+        private final String key;
+
+        private final List<Object> literals;
+
+        FilterShape(String key, List<Object> literals) {
+            this.key = key;
+            this.literals = literals;
+        }
 
+        String getKey() {
+            return key;
+        }
+
+        List<Object> getLiterals() {
+            return literals;
+        }
+
+    }
+
+    private static final class FilterTemplate {
+
+        private final String sql;
+
+        private final String[][] affixes;
+
+        FilterTemplate(String sql, String[][] affixes) {
+            this.sql = sql;
+            this.affixes = affixes;
+        }
+
+        ProcessedFilter apply(List<Object> literals) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (int i = 0; i < literals.size(); i++) {
+                Object literal = literals.get(i);
+                values.put(PARAM_PREFIX + i, affixes[i] == null ? literal : affixes[i][0] + literal + affixes[i][1]);
+            }
+            ProcessedFilter pf = new ProcessedFilter(sql, values);
+            pf.setParamPrefix(PARAM_PREFIX);
+            return pf;
+        }
+
+    }
 
 }
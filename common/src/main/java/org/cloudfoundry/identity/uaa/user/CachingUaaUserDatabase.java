@@ -0,0 +1,213 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+
+/**
+ * Read-through cache in front of another {@link UaaUserDatabase}.
+ * <p>
+ * Users are cached by id. Lookups by name go through a small index from
+ * zone, origin and lower case username to the user id, and the user found in
+ * the id cache is checked against the requested name before it is returned,
+ * so a renamed user is never returned for its old name.
+ * <p>
+ * Entries are dropped when a {@link UserModifiedEvent} is published for the
+ * user, when any group changes (group membership drives the authorities of a
+ * user), when {@link #evict(String)} or {@link #evictAll()} is called by the
+ * provisioning layer and in any case after the configured time to live, which
+ * bounds how long a change made on another node can go unnoticed.
+ *
+ */
+@ManagedResource
+public class CachingUaaUserDatabase implements UaaUserDatabase, ApplicationListener<AbstractUaaEvent> {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final UaaUserDatabase delegate;
+
+    private final AtomicLong modifications = new AtomicLong();
+
+    private int maxEntries = 10000;
+
+    private int expirationSeconds = 60;
+
+    private ExpiringCache<String, UaaUser> usersById;
+
+    private ExpiringCache<String, String> userIdsByName;
+
+    public CachingUaaUserDatabase(UaaUserDatabase delegate) {
+        Assert.notNull(delegate, "A user database to delegate to is required");
+        this.delegate = delegate;
+        createCaches();
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached users, 0 or less to turn
+     *            the cache off
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        createCaches();
+    }
+
+    /**
+     * @param expirationSeconds how long a user is cached, 0 or less to turn
+     *            the cache off
+     */
+    public void setExpirationSeconds(int expirationSeconds) {
+        this.expirationSeconds = expirationSeconds;
+        createCaches();
+    }
+
+    private void createCaches() {
+        if (maxEntries > 0 && expirationSeconds > 0) {
+            usersById = new ExpiringCache<>(maxEntries, expirationSeconds * 1000l);
+            userIdsByName = new ExpiringCache<>(maxEntries, expirationSeconds * 1000l);
+        } else {
+            usersById = null;
+            userIdsByName = null;
+        }
+    }
+
+    @Override
+    public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
+        if (usersById == null) {
+            return delegate.retrieveUserByName(username, origin);
+        }
+        String zoneId = IdentityZoneHolder.get().getId();
+        String nameKey = getNameKey(username, origin, zoneId);
+        String id = userIdsByName.get(nameKey);
+        if (id != null) {
+            UaaUser user = usersById.get(id);
+            if (user != null && matches(user, username, origin, zoneId)) {
+                return user;
+            }
+        }
+        long modified = modifications.get();
+        UaaUser user = delegate.retrieveUserByName(username, origin);
+        cache(user, modified);
+        return user;
+    }
+
+    @Override
+    public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+        if (usersById == null) {
+            return delegate.retrieveUserById(id);
+        }
+        UaaUser user = usersById.get(id);
+        if (user == null) {
+            long modified = modifications.get();
+            user = delegate.retrieveUserById(id);
+            cache(user, modified);
+        }
+        return user;
+    }
+
+    /**
+     * Drops the cached copy of a user, to be called whenever the user or its
+     * group memberships change.
+     *
+     * @param userId the id of the user
+     */
+    public void evict(String userId) {
+        modifications.incrementAndGet();
+        if (usersById != null && userId != null) {
+            // the name index is validated against the user on every lookup
+            usersById.remove(userId);
+        }
+    }
+
+    @ManagedOperation(description = "Drops all cached users")
+    public void evictAll() {
+        modifications.incrementAndGet();
+        if (usersById != null) {
+            usersById.clear();
+            userIdsByName.clear();
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof UserModifiedEvent) {
+            evict(((UserModifiedEvent) event).getUserId());
+        } else if (event instanceof GroupModifiedEvent) {
+            logger.debug("Group modified, dropping all cached users");
+            evictAll();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Hits")
+    public long getCacheHits() {
+        return usersById == null ? 0 : usersById.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Misses")
+    public long getCacheMisses() {
+        return usersById == null ? 0 : usersById.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Evictions")
+    public long getCacheEvictions() {
+        return usersById == null ? 0 : usersById.getEvictions();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "User Cache Size")
+    public int getCacheSize() {
+        return usersById == null ? 0 : usersById.size();
+    }
+
+    private void cache(UaaUser user, long modified) {
+        if (user == null || user.getId() == null) {
+            return;
+        }
+        if (modifications.get() != modified) {
+            // a change made while the user was read would be lost if it was
+            // cached
+            return;
+        }
+        usersById.put(user.getId(), user);
+        if (user.getUsername() != null) {
+            userIdsByName.put(getNameKey(user.getUsername(), user.getOrigin(), user.getZoneId()), user.getId());
+        }
+    }
+
+    private boolean matches(UaaUser user, String username, String origin, String zoneId) {
+        return user.getUsername() != null && user.getUsername().equalsIgnoreCase(username)
+                        && equals(user.getOrigin(), origin) && equals(user.getZoneId(), zoneId);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String getNameKey(String username, String origin, String zoneId) {
+        return zoneId + "|" + origin + "|" + (username == null ? null : username.toLowerCase(Locale.US));
+    }
+}
@@ -15,34 +15,57 @@ package org.cloudfoundry.identity.uaa.util;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
-import org.springframework.security.crypto.bcrypt.BCrypt;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.codec.Hex;
 import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.security.crypto.keygen.BytesKeyGenerator;
 import org.springframework.security.crypto.keygen.KeyGenerators;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.util.Assert;
 
 /**
  * Wrapper around a slow password encoder that does a fast translation in memory only
  * This uses a hash to as a key to store a list of
+ * encoded passwords that are known to match the raw password.
+ * <p>
+ * The cache is bounded: when it is full single entries are evicted (see
+ * {@link ExpiringCache}) and every entry expires after a configurable time,
+ * so a burst of new passwords never forces everyone back to BCrypt at once.
+ * The cache key is derived with a digest per thread, without locking.
  */
+@ManagedResource
 public class CachingPasswordEncoder implements PasswordEncoder {
 
-    private final MessageDigest messageDigest;
+    private final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     private final byte[] secret;
     private final byte[] salt;
     private final BytesKeyGenerator saltGenerator;
     private final int iterations;
 
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
     private int maxKeys = 1000;
     private int maxEncodedPasswords = 5;
+    private int expirationSeconds = 3600;
     private boolean enabled = true;
 
     public boolean isEnabled() {
@@ -53,23 +76,25 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.enabled = enabled;
     }
 
-    private final ConcurrentHashMap<CharSequence, Set<String>> cache = new ConcurrentHashMap<>();
+    private ExpiringCache<String, Set<String>> cache;
 
-    private BCryptPasswordEncoder passwordEncoder;
+    private PasswordEncoder passwordEncoder;
 
     public CachingPasswordEncoder() throws NoSuchAlgorithmException {
-        messageDigest = MessageDigest.getInstance("SHA-256");
+        // fail early if the algorithm is not available
+        MessageDigest.getInstance("SHA-256");
         this.secret = Utf8.encode(new RandomValueStringGenerator().generate());
         this.saltGenerator = KeyGenerators.secureRandom();
         this.salt = saltGenerator.generateKey();
         iterations = 25;
+        createCache();
     }
 
     public PasswordEncoder getPasswordEncoder() {
         return passwordEncoder;
     }
 
-    public void setPasswordEncoder(BCryptPasswordEncoder passwordEncoder) {
+    public void setPasswordEncoder(PasswordEncoder passwordEncoder) {
         this.passwordEncoder = passwordEncoder;
     }
 
@@ -89,37 +114,48 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         }
     }
 
+    private void createCache() {
+        cache = new ExpiringCache<>(maxKeys, expirationSeconds * 1000l);
+    }
+
     private Set<String> getOrCreateHashList(String cacheKey) {
-        cache.putIfAbsent(cacheKey, Collections.synchronizedSet(new LinkedHashSet<String>()));
-        if (cache.size()>getMaxKeys()) {
-            //this should not happen if properly tuned.
-            cache.clear();
-        }
         Set<String> result = cache.get(cacheKey);
+        if (result == null) {
+            result = Collections.synchronizedSet(new LinkedHashSet<String>());
+            // another thread may have cached a set for the key meanwhile
+            Set<String> existing = cache.putIfAbsent(cacheKey, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
         return result;
     }
 
     private boolean internalMatches(String cacheKey, CharSequence rawPassword, String encodedPassword) {
         Set<String> cacheValue = cache.get(cacheKey);
-        boolean result = false;
-        for (String encoded : cacheValue!=null ? cacheValue : Collections.<String>emptyList()) {
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                break;
+        if (cacheValue != null) {
+            synchronized (cacheValue) {
+                for (String encoded : cacheValue) {
+                    if (hashesEquals(encoded, encodedPassword)) {
+                        hits.incrementAndGet();
+                        return true;
+                    }
+                }
             }
         }
-        if (!result) {
-            String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                cacheValue = getOrCreateHashList(cacheKey);
-                if (cacheValue!=null) {
-                    cacheValue.add(encoded);
-                    //this list should never grow very long.
-                    //Only if you store multiple versions of the same password more than once
-                    if (cacheValue.size() > getMaxEncodedPasswords()) {
-                        cacheValue.clear();
-                    }
+        misses.incrementAndGet();
+        boolean result = false;
+        if (getPasswordEncoder().matches(rawPassword, encodedPassword)) {
+            result = true;
+            cacheValue = getOrCreateHashList(cacheKey);
+            synchronized (cacheValue) {
+                cacheValue.add(encodedPassword);
+                //this list should never grow very long.
+                //Only if you store multiple versions of the same password more than once
+                Iterator<String> oldest = cacheValue.iterator();
+                while (cacheValue.size() > getMaxEncodedPasswords()) {
+                    oldest.next();
+                    oldest.remove();
                 }
             }
         }
@@ -138,12 +174,11 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private byte[] digest(byte[] value) {
-        synchronized (messageDigest) {
-            for (int i = 0; i < iterations; i++) {
-                value = messageDigest.digest(value);
-            }
-            return value;
+        MessageDigest digest = messageDigest.get();
+        for (int i = 0; i < iterations; i++) {
+            value = digest.digest(value);
         }
+        return value;
     }
 
     private boolean hashesEquals(String a, String b) {
@@ -166,7 +201,22 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     public void setMaxKeys(int maxKeys) {
+        Assert.isTrue(maxKeys > 0, "maxKeys must be positive");
         this.maxKeys = maxKeys;
+        createCache();
+    }
+
+    public int getExpirationSeconds() {
+        return expirationSeconds;
+    }
+
+    /**
+     * @param expirationSeconds how long a password stays in the cache, 0 or
+     *            less to only evict when the cache is full
+     */
+    public void setExpirationSeconds(int expirationSeconds) {
+        this.expirationSeconds = expirationSeconds;
+        createCache();
     }
 
     public int getMaxEncodedPasswords() {
@@ -177,7 +227,23 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.maxEncodedPasswords = maxEncodedPasswords;
     }
 
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Cache Size")
     public int getNumberOfKeys() {
         return cache.size();
     }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Hits")
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Misses")
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Evictions")
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
 }
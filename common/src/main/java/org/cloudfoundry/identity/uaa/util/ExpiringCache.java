@@ -0,0 +1,294 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.util.Assert;
+
+/**
+ * A bounded in memory cache where every entry carries its own expiry time.
+ * <p>
+ * Reads are lock free. When the cache grows beyond its maximum size, entries
+ * are evicted using the CLOCK (second chance) algorithm: a hand moves over the
+ * entries in the order they were cached and keeps its position between
+ * evictions, an entry that was read since the hand last passed it is spared
+ * once, so frequently used entries survive while one-off entries are evicted
+ * one at a time instead of the whole cache being cleared. The entry being
+ * cached is never the one evicted to make room for it. Expired entries are
+ * dropped when they are read, when the hand reaches them and by a sweep that
+ * runs at most once per turn of the hand, so an eviction costs constant time
+ * on average.
+ * <p>
+ * Hit, miss and eviction counters are kept so that the owners of a cache can
+ * expose them as metrics.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringCache<K, V> {
+
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The entries in the order the hand visits them, the head is the hand.
+     * Replaced and removed entries stay queued until the hand reaches them.
+     */
+    private final ConcurrentLinkedQueue<Entry<K, V>> clock = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final int maxEntries;
+
+    private final long timeToLive;
+
+    /**
+     * Guarded by the eviction lock: the number of moves of the hand left until
+     * the next sweep for expired entries.
+     */
+    private int movesUntilSweep = 0;
+
+    /**
+     * @param maxEntries the maximum number of entries to hold
+     * @param timeToLive the default time to live of an entry in milliseconds,
+     *            0 or less if entries only expire when an explicit expiry
+     *            time is given
+     */
+    public ExpiringCache(int maxEntries, long timeToLive) {
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return the cached value or null if there is no live entry for the key
+     */
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt <= currentTimeMillis()) {
+            if (entries.remove(key, entry)) {
+                evictions.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.referenced = true;
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Caches a value using the default time to live.
+     */
+    public void put(K key, V value) {
+        put(key, value, timeToLive > 0 ? currentTimeMillis() + timeToLive : NEVER);
+    }
+
+    /**
+     * Caches a value until the given point in time.
+     *
+     * @param expiresAt the expiry time in milliseconds since the epoch
+     */
+    public void put(K key, V value, long expiresAt) {
+        Assert.notNull(value, "Cannot cache a null value");
+        if (expiresAt <= currentTimeMillis()) {
+            entries.remove(key);
+            return;
+        }
+        Entry<K, V> entry = new Entry<>(key, value, expiresAt);
+        entries.put(key, entry);
+        added(entry);
+    }
+
+    /**
+     * Caches a value using the default time to live unless there is a live
+     * entry for the key already.
+     *
+     * @return the value that was already cached, or null if the given value
+     *         was cached
+     */
+    public V putIfAbsent(K key, V value) {
+        Assert.notNull(value, "Cannot cache a null value");
+        Entry<K, V> entry = new Entry<>(key, value, timeToLive > 0 ? currentTimeMillis() + timeToLive : NEVER);
+        while (true) {
+            Entry<K, V> existing = entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (existing.expiresAt > currentTimeMillis()) {
+                return existing.value;
+            }
+            if (entries.replace(key, existing, entry)) {
+                evictions.incrementAndGet();
+                break;
+            }
+        }
+        added(entry);
+        return null;
+    }
+
+    private void added(Entry<K, V> entry) {
+        clock.add(entry);
+        clockSize.incrementAndGet();
+        if (entries.size() > maxEntries || clockSize.get() > 2 * maxEntries) {
+            evict(entry.key);
+        }
+    }
+
+    public V remove(K key) {
+        Entry<K, V> entry = entries.remove(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * @return a weakly consistent view of the cached keys, removing a key from
+     *         the view removes the entry
+     */
+    public Set<K> keySet() {
+        return entries.keySet();
+    }
+
+    public void clear() {
+        entries.clear();
+        while (clock.poll() != null) {
+            clockSize.decrementAndGet();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries dropped because they expired or to make
+     *         room for new entries
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Evicts entries until the cache is back within its maximum size, and
+     * drops the queued entries that were replaced or removed once they
+     * outnumber the cached ones.
+     *
+     * @param cached the key that was just cached, it is not evicted
+     */
+    private void evict(K cached) {
+        // a single thread evicts, the others carry on and rely on it
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = currentTimeMillis();
+            if (movesUntilSweep <= 0 && entries.size() > maxEntries) {
+                sweepExpired(now);
+                movesUntilSweep = entries.size();
+            }
+            // within two turns the hand clears every reference bit and then
+            // finds a victim
+            int moves = 2 * clockSize.get();
+            while ((entries.size() > maxEntries || clockSize.get() > 2 * maxEntries) && moves-- > 0) {
+                Entry<K, V> entry = clock.poll();
+                if (entry == null) {
+                    break;
+                }
+                clockSize.decrementAndGet();
+                movesUntilSweep--;
+                if (entries.get(entry.key) != entry) {
+                    // replaced or removed
+                    continue;
+                }
+                if (entry.expiresAt <= now) {
+                    drop(entry);
+                } else if (entries.size() <= maxEntries || entry.referenced || entry.key.equals(cached)) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    clockSize.incrementAndGet();
+                } else {
+                    drop(entry);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void sweepExpired(long now) {
+        for (Iterator<Entry<K, V>> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void drop(Entry<K, V> entry) {
+        if (entries.remove(entry.key, entry)) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static final class Entry<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final long expiresAt;
+
+        private volatile boolean referenced;
+
+        private Entry(K key, V value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
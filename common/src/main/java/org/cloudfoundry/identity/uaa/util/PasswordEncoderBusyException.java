@@ -0,0 +1,29 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import org.cloudfoundry.identity.uaa.error.UaaException;
+
+/**
+ * Thrown when a password cannot be hashed or checked because the
+ * {@link PooledPasswordEncoder} has no capacity left. Maps to a 503 so that
+ * clients retry later.
+ *
+ */
+public class PasswordEncoderBusyException extends UaaException {
+
+    public PasswordEncoderBusyException(String description) {
+        super("too_busy", description, 503);
+    }
+
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * Runs a slow (CPU bound) password encoder on a dedicated pool of threads.
+ * <p>
+ * The pool has as many threads as there are processors, unless configured
+ * otherwise, and a bounded queue. When the queue is full the request fails
+ * straight away with a {@link PasswordEncoderBusyException} instead of tying
+ * up another request thread, so that a burst of logins cannot starve the
+ * endpoints that do not hash passwords. A request that has waited longer than
+ * the timeout for its turn is run on its own thread instead. The pool is only
+ * started by {@link #afterPropertiesSet()}, until then and after
+ * {@link #destroy()} passwords are hashed on the calling thread.
+ *
+ */
+@ManagedResource
+public class PooledPasswordEncoder implements PasswordEncoder, InitializingBean, DisposableBean {
+
+    private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<>();
+
+    private static final Log logger = LogFactory.getLog(PooledPasswordEncoder.class);
+
+    private final PasswordEncoder delegate;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private int poolSize = 0;
+
+    private int queueSize = 100;
+
+    private int timeoutMillis = 5000;
+
+    private volatile ThreadPoolExecutor executor;
+
+    public PooledPasswordEncoder(PasswordEncoder delegate) {
+        Assert.notNull(delegate, "A password encoder to delegate to is required");
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param poolSize the number of threads hashing passwords, 0 or less for
+     *            the number of processors
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param queueSize the number of requests that may wait for a thread
+     *            before new ones are rejected
+     */
+    public void setQueueSize(int queueSize) {
+        Assert.isTrue(queueSize > 0, "queueSize must be positive");
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param timeoutMillis how long a request waits for the pool before the
+     *            password is hashed on the requesting thread
+     */
+    public void setTimeoutMillis(int timeoutMillis) {
+        Assert.isTrue(timeoutMillis > 0, "timeoutMillis must be positive");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public PasswordEncoder getPasswordEncoder() {
+        return delegate;
+    }
+
+    @Override
+    public String encode(final CharSequence rawPassword) {
+        return execute(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return delegate.encode(rawPassword);
+            }
+        });
+    }
+
+    /**
+     * Encodes many passwords at once, spread over the pool. Unlike a single
+     * encode, a password that does not fit in the queue is encoded on the
+     * calling thread instead of being rejected, so that a large batch is
+     * slowed down rather than failed by a busy pool.
+     *
+     * @return the encoded passwords, in the same order
+     */
+    public List<String> encodeAll(List<? extends CharSequence> rawPasswords) {
+        List<String> result = new ArrayList<String>(rawPasswords.size());
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null || WORKER.get() != null) {
+            for (CharSequence rawPassword : rawPasswords) {
+                result.add(delegate.encode(rawPassword));
+            }
+            return result;
+        }
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>(rawPasswords.size());
+        List<Future<String>> futures = new ArrayList<Future<String>>(rawPasswords.size());
+        for (final CharSequence rawPassword : rawPasswords) {
+            Callable<String> task = new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return delegate.encode(rawPassword);
+                }
+            };
+            tasks.add(task);
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                FutureTask<String> inline = new FutureTask<String>(task);
+                inline.run();
+                futures.add(inline);
+            }
+        }
+        // the whole batch shares one deadline
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (int i = 0; i < futures.size(); i++) {
+            result.add(get(futures.get(i), tasks.get(i), deadline - System.currentTimeMillis()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean matches(final CharSequence rawPassword, final String encodedPassword) {
+        return execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return delegate.matches(rawPassword, encodedPassword);
+            }
+        });
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory(),
+                        new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        ThreadPoolExecutor pool = executor;
+        executor = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Threads")
+    public int getPoolSize() {
+        ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getMaximumPoolSize();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Active Threads")
+    public int getActiveCount() {
+        ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Queue Depth")
+    public int getQueueDepth() {
+        ThreadPoolExecutor pool = executor;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Rejections")
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Timeouts")
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    private <T> T execute(Callable<T> task) {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null || WORKER.get() != null) {
+            // not started, or already on a pool thread, e.g. a caching
+            // encoder in front of a pooled one
+            return call(task);
+        }
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new PasswordEncoderBusyException("Too many concurrent password checks, retry later");
+        }
+        return get(future, task, timeoutMillis);
+    }
+
+    private <T> T get(Future<T> future, Callable<T> task, long timeout) {
+        try {
+            return future.get(Math.max(0, timeout), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // a task that has not started yet is taken off the queue
+            future.cancel(false);
+            ThreadPoolExecutor pool = executor;
+            if (pool != null) {
+                pool.remove((Runnable) future);
+            }
+            if (timedOut.incrementAndGet() % 100 == 1) {
+                logger.warn("Password encoder pool is too slow, " + timedOut.get()
+                                + " passwords hashed on the requesting thread so far");
+            }
+            return call(task);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PasswordEncoderBusyException("Interrupted while waiting for a password check");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    WORKER.set(Boolean.TRUE);
+                    runnable.run();
+                }
+            }, "PooledPasswordEncoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.zone;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Cache of single identity providers in front of another
+ * {@link IdentityProviderProvisioning}, so that the checks made on every
+ * authentication and authorization request for whether a provider is enabled
+ * do not query the database.
+ * <p>
+ * Providers are cached by zone and origin and by id. Lookups that find no
+ * provider and the queries for lists of providers are not cached. Cached
+ * providers are dropped when they are created or updated through this
+ * instance and when an {@link IdentityProviderModifiedEvent} is published
+ * for them. Entries expire after the configured time to live, which bounds
+ * how long a change made on another node can go unnoticed.
+ *
+ */
+@ManagedResource
+public class CachingIdentityProviderProvisioning implements IdentityProviderProvisioning,
+                ApplicationListener<IdentityProviderModifiedEvent> {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final IdentityProviderProvisioning delegate;
+
+    private final AtomicLong modifications = new AtomicLong();
+
+    private int maxEntries = 1000;
+
+    private int expirationSeconds = 60;
+
+    private ExpiringCache<String, IdentityProvider> providers;
+
+    public CachingIdentityProviderProvisioning(IdentityProviderProvisioning delegate) {
+        Assert.notNull(delegate, "An identity provider provisioning to delegate to is required");
+        this.delegate = delegate;
+        createCache();
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached lookups, 0 or less to
+     *            turn the cache off
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        createCache();
+    }
+
+    /**
+     * @param expirationSeconds how long providers are cached, 0 or less to
+     *            turn the cache off
+     */
+    public void setExpirationSeconds(int expirationSeconds) {
+        this.expirationSeconds = expirationSeconds;
+        createCache();
+    }
+
+    private void createCache() {
+        if (maxEntries > 0 && expirationSeconds > 0) {
+            providers = new ExpiringCache<>(maxEntries, expirationSeconds * 1000l);
+        } else {
+            providers = null;
+        }
+    }
+
+    @Override
+    public IdentityProvider create(IdentityProvider identityProvider) {
+        try {
+            return delegate.create(identityProvider);
+        } finally {
+            evict(identityProvider);
+        }
+    }
+
+    @Override
+    public IdentityProvider update(IdentityProvider identityProvider) {
+        try {
+            return delegate.update(identityProvider);
+        } finally {
+            evict(identityProvider);
+        }
+    }
+
+    @Override
+    public IdentityProvider retrieve(String id) {
+        return retrieve(getIdKey(id), id, null);
+    }
+
+    @Override
+    public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
+        return retrieve(getOriginKey(origin, zoneId), origin, zoneId);
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveAll(String zoneId) {
+        return delegate.retrieveAll(zoneId);
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveAll(boolean activeOnly, String zoneId) {
+        return delegate.retrieveAll(activeOnly, zoneId);
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveModifiedSince(String type, Date since) {
+        return delegate.retrieveModifiedSince(type, since);
+    }
+
+    @Override
+    public void onApplicationEvent(IdentityProviderModifiedEvent event) {
+        if (event.getSource() instanceof IdentityProvider) {
+            evict((IdentityProvider) event.getSource());
+        }
+    }
+
+    /**
+     * Drops the cached lookups of a provider, by its id and by its current
+     * and its cached zone and origin.
+     */
+    public void evict(IdentityProvider provider) {
+        modifications.incrementAndGet();
+        if (providers == null) {
+            return;
+        }
+        if (provider.getId() != null) {
+            IdentityProvider cached = providers.remove(getIdKey(provider.getId()));
+            if (cached != null) {
+                // the origin may have changed
+                providers.remove(getOriginKey(cached.getOriginKey(), cached.getIdentityZoneId()));
+            }
+        }
+        if (provider.getOriginKey() != null) {
+            // providers are written to the current zone whatever zone they
+            // name
+            providers.remove(getOriginKey(provider.getOriginKey(), IdentityZoneHolder.get().getId()));
+            if (provider.getIdentityZoneId() != null) {
+                providers.remove(getOriginKey(provider.getOriginKey(), provider.getIdentityZoneId()));
+            }
+        }
+    }
+
+    @ManagedOperation(description = "Drops all cached identity providers")
+    public void evictAll() {
+        modifications.incrementAndGet();
+        if (providers != null) {
+            logger.debug("Dropping all cached identity providers");
+            providers.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Hits")
+    public long getCacheHits() {
+        return providers == null ? 0 : providers.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Misses")
+    public long getCacheMisses() {
+        return providers == null ? 0 : providers.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Identity Provider Cache Evictions")
+    public long getCacheEvictions() {
+        return providers == null ? 0 : providers.getEvictions();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Identity Provider Cache Size")
+    public int getCacheSize() {
+        return providers == null ? 0 : providers.size();
+    }
+
+    private IdentityProvider retrieve(String key, String idOrOrigin, String zoneId) {
+        if (providers == null) {
+            return zoneId == null ? delegate.retrieve(idOrOrigin) : delegate.retrieveByOrigin(idOrOrigin, zoneId);
+        }
+        IdentityProvider cached = providers.get(key);
+        if (cached == null) {
+            // a change made while the provider is read would be lost if it
+            // was cached
+            long modified = modifications.get();
+            IdentityProvider provider = zoneId == null ? delegate.retrieve(idOrOrigin) : delegate.retrieveByOrigin(
+                            idOrOrigin, zoneId);
+            if (provider == null) {
+                return null;
+            }
+            cached = copy(provider);
+            if (modifications.get() == modified) {
+                providers.put(key, cached);
+                if (provider.getId() != null) {
+                    providers.put(getIdKey(provider.getId()), cached);
+                }
+                if (provider.getOriginKey() != null && provider.getIdentityZoneId() != null) {
+                    providers.put(getOriginKey(provider.getOriginKey(), provider.getIdentityZoneId()), cached);
+                }
+            }
+        }
+        // callers are free to change the provider they get
+        return copy(cached);
+    }
+
+    private static IdentityProvider copy(IdentityProvider provider) {
+        IdentityProvider copy = new IdentityProvider();
+        copy.setId(provider.getId());
+        copy.setOriginKey(provider.getOriginKey());
+        copy.setName(provider.getName());
+        copy.setType(provider.getType());
+        copy.setConfig(provider.getConfig());
+        copy.setVersion(provider.getVersion());
+        copy.setCreated(provider.getCreated());
+        copy.setLastModified(provider.getLastModified());
+        copy.setActive(provider.isActive());
+        copy.setIdentityZoneId(provider.getIdentityZoneId());
+        return copy;
+    }
+
+    private static String getIdKey(String id) {
+        return "id|" + id;
+    }
+
+    private static String getOriginKey(String origin, String zoneId) {
+        return "origin|" + zoneId + "|" + origin;
+    }
+
+}
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IdentityProviderProvisioning {
@@ -28,5 +29,11 @@ public interface IdentityProviderProvisioning {
 
     public IdentityProvider retrieveByOrigin(String origin, String zoneId);
 
+    /**
+     * @return the active providers of the given type in all zones that were
+     *         modified at or after the given time, oldest first
+     */
+    public List<IdentityProvider> retrieveModifiedSince(String type, Date since);
+
 
 }
@@ -25,6 +25,12 @@ public interface IdentityZoneProvisioning {
     public IdentityZone retrieveBySubdomain(String subdomain);
 
     List<IdentityZone> retrieveAll();
+
+    /**
+     * @return a value that changes whenever a zone is created or modified, so
+     *         that cached zones can be checked cheaply
+     */
+    String retrieveVersion();
     
     
 }
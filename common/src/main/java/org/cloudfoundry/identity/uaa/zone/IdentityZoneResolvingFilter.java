@@ -12,7 +12,13 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.zone;
 
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import javax.servlet.FilterChain;
@@ -23,38 +29,56 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This filter ensures that all requests are targeting a specific identity zone
  * by hostname. If the hostname doesn't match an identity zone, a 404 error is
  * sent.
+ * <p>
+ * The zone resolved for a hostname is cached. The absence of a zone is cached
+ * too, so that repeated requests for an unknown hostname do not reach the
+ * database, but in a smaller cache of its own with a short time to live, so
+ * that requests for random hostnames cannot push resolved zones out. The
+ * caches are invalidated when a zone is created or modified on this node, and when
+ * the zone version reported by the {@link IdentityZoneProvisioning} changes,
+ * which is checked at most once per refresh interval.
  * 
  * @author wtran@pivotal.io
  * @author rszumlakowski@pivotal.io
  *
  */
-public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
+@ManagedResource
+public class IdentityZoneResolvingFilter extends OncePerRequestFilter implements ApplicationListener<IdentityZoneModifiedEvent> {
 
     private IdentityZoneProvisioning dao;
 
     private Set<String> internalHostnames = new HashSet<>();
 
+    private ExpiringCache<String, CachedZone> zoneCache = new ExpiringCache<>(1000, 0);
+
+    private int missingZoneCacheMaxEntries = 100;
+
+    private long missingZoneCacheExpiration = 10000;
+
+    private ExpiringCache<String, Long> missingZoneCache = new ExpiringCache<>(missingZoneCacheMaxEntries,
+                    missingZoneCacheExpiration);
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong checkedAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+    private volatile String version;
+
+    private long cacheRefreshInterval = 5000;
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
-        IdentityZone identityZone = null;
         String hostname = request.getServerName();
-        String subdomain = getSubdomain(hostname);
-        if (subdomain != null) {
-            try {
-                identityZone = dao.retrieveBySubdomain(subdomain);
-            } catch (EmptyResultDataAccessException ex) {
-            } catch (Exception ex) {
-                throw ex;
-            }
-        }
+        IdentityZone identityZone = resolveIdentityZone(hostname);
         if (identityZone == null) {
-            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Cannot find identity zone for subdomain " + subdomain);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Cannot find identity zone for subdomain " + getSubdomain(hostname));
             return;
         }
         try {
@@ -65,13 +89,76 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
         }
     }
 
+    private IdentityZone resolveIdentityZone(String hostname) {
+        ExpiringCache<String, CachedZone> cache = zoneCache;
+        ExpiringCache<String, Long> missing = missingZoneCache;
+        if (cache == null && missing == null) {
+            return retrieveIdentityZone(hostname);
+        }
+        long currentGeneration = getGeneration();
+        CachedZone cached = cache == null ? null : cache.get(hostname);
+        if (cached != null && cached.generation == currentGeneration) {
+            return cached.identityZone;
+        }
+        Long missingGeneration = missing == null ? null : missing.get(hostname);
+        if (missingGeneration != null && missingGeneration == currentGeneration) {
+            return null;
+        }
+        IdentityZone identityZone = retrieveIdentityZone(hostname);
+        if (identityZone != null && cache != null) {
+            cache.put(hostname, new CachedZone(identityZone, currentGeneration));
+        } else if (identityZone == null && missing != null) {
+            missing.put(hostname, currentGeneration);
+        }
+        return identityZone;
+    }
+
+    private IdentityZone retrieveIdentityZone(String hostname) {
+        String subdomain = getSubdomain(hostname);
+        if (subdomain == null) {
+            return null;
+        }
+        try {
+            return dao.retrieveBySubdomain(subdomain);
+        } catch (EmptyResultDataAccessException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the current cache generation, after checking the zone version if
+     *         it has not been checked within the refresh interval
+     */
+    private long getGeneration() {
+        long now = System.currentTimeMillis();
+        long lastCheck = checkedAt.get();
+        // only one thread checks, the others carry on with the current generation
+        if (now - lastCheck >= cacheRefreshInterval && checkedAt.compareAndSet(lastCheck, now)) {
+            String currentVersion = dao.retrieveVersion();
+            if (currentVersion == null || !currentVersion.equals(version)) {
+                version = currentVersion;
+                generation.incrementAndGet();
+            }
+        }
+        return generation.get();
+    }
+
+    @Override
+    public void onApplicationEvent(IdentityZoneModifiedEvent event) {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Internal hostnames are matched against the longest suffix of the
+     * hostname first, so the most specific internal hostname wins.
+     */
     private String getSubdomain(String hostname) {
         if (internalHostnames.contains(hostname)) {
             return "";
         }
-        for (String internalHostname : internalHostnames) {
-            if (hostname.endsWith("." + internalHostname)) {
-                return hostname.substring(0, hostname.length() - internalHostname.length() - 1);
+        for (int dot = hostname.indexOf('.'); dot >= 0; dot = hostname.indexOf('.', dot + 1)) {
+            if (internalHostnames.contains(hostname.substring(dot + 1))) {
+                return hostname.substring(0, dot);
             }
         }
         return null;
@@ -82,10 +169,82 @@ public class IdentityZoneResolvingFilter extends OncePerRequestFilter {
     }
 
     public void setInternalHostnames(Set<String> hostnames) {
-        internalHostnames = Collections.unmodifiableSet(hostnames);
+        internalHostnames = Collections.unmodifiableSet(new HashSet<>(hostnames));
+        generation.incrementAndGet();
     }
 
     public Set<String> getInternalHostnames() {
         return internalHostnames;
     }
+
+    /**
+     * @param cacheMaxEntries the maximum number of cached hostnames, 0 to
+     *            disable the cache
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.zoneCache = cacheMaxEntries > 0 ? new ExpiringCache<String, CachedZone>(cacheMaxEntries, 0) : null;
+    }
+
+    /**
+     * @param missingZoneCacheMaxEntries the maximum number of cached hostnames
+     *            without a zone, 0 to not cache them
+     */
+    public void setMissingZoneCacheMaxEntries(int missingZoneCacheMaxEntries) {
+        this.missingZoneCacheMaxEntries = missingZoneCacheMaxEntries;
+        createMissingZoneCache();
+    }
+
+    /**
+     * @param missingZoneCacheExpiration how long, in seconds, a hostname
+     *            without a zone is cached, 0 to not cache them
+     */
+    public void setMissingZoneCacheExpiration(int missingZoneCacheExpiration) {
+        this.missingZoneCacheExpiration = missingZoneCacheExpiration * 1000l;
+        createMissingZoneCache();
+    }
+
+    private void createMissingZoneCache() {
+        if (missingZoneCacheMaxEntries > 0 && missingZoneCacheExpiration > 0) {
+            missingZoneCache = new ExpiringCache<>(missingZoneCacheMaxEntries, missingZoneCacheExpiration);
+        } else {
+            missingZoneCache = null;
+        }
+    }
+
+    /**
+     * @param cacheRefreshInterval how often, in seconds, the zone version is
+     *            checked for changes made by other nodes
+     */
+    public void setCacheRefreshInterval(int cacheRefreshInterval) {
+        this.cacheRefreshInterval = cacheRefreshInterval * 1000l;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Cache Hits")
+    public long getCacheHits() {
+        ExpiringCache<String, CachedZone> cache = zoneCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Zone Cache Misses")
+    public long getCacheMisses() {
+        ExpiringCache<String, CachedZone> cache = zoneCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Missing Zone Cache Hits")
+    public long getMissingZoneCacheHits() {
+        ExpiringCache<String, Long> cache = missingZoneCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    private static class CachedZone {
+        private final IdentityZone identityZone;
+
+        private final long generation;
+
+        private CachedZone(IdentityZone identityZone, long generation) {
+            this.identityZone = identityZone;
+            this.generation = generation;
+        }
+    }
 }
@@ -42,6 +42,8 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning {
     
     public static final String IDENTITY_ZONE_BY_SUBDOMAIN_QUERY = "select " + ID_ZONE_FIELDS + " from identity_zone " + "where subdomain=?";
 
+    public static final String IDENTITY_ZONE_VERSION_QUERY = "select count(*), sum(version), max(lastModified) from identity_zone";
+
     protected final JdbcTemplate jdbcTemplate;
 
     private final RowMapper<IdentityZone> mapper = new IdentityZoneRowMapper();
@@ -72,6 +74,22 @@ public class JdbcIdentityZoneProvisioning implements IdentityZoneProvisioning {
         return identityZone;
     }
 
+    /**
+     * Zones are never deleted and every update bumps the version and the
+     * modification time, so the count, the sum of the versions and the latest
+     * modification time together change with every write.
+     */
+    @Override
+    public String retrieveVersion() {
+        return jdbcTemplate.queryForObject(IDENTITY_ZONE_VERSION_QUERY, new RowMapper<String>() {
+            @Override
+            public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+                Timestamp lastModified = rs.getTimestamp(3);
+                return rs.getLong(1) + ":" + rs.getLong(2) + ":" + (lastModified == null ? 0 : lastModified.getTime());
+            }
+        });
+    }
+
     @Override
     public IdentityZone create(final IdentityZone identityZone) {
 
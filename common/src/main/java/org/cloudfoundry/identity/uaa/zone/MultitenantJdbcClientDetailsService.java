@@ -19,17 +19,30 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientCreateEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientDeleteEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientUpdateEvent;
+import org.cloudfoundry.identity.uaa.oauth.event.SecretChangeEvent;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
+import org.cloudfoundry.identity.uaa.util.ExpiringCache;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.password.NoOpPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
@@ -47,10 +60,16 @@ import org.springframework.util.ClassUtils;
 import org.springframework.util.StringUtils;
 
 /**
- * A copy of JdbcClientDetailsService but with IdentityZone awareness
+ * A copy of JdbcClientDetailsService but with IdentityZone awareness.
+ * <p>
+ * Loaded clients are cached per identity zone. Every change made through this
+ * service increments a per zone version in the database, and each node polls
+ * that version at most once per refresh interval, so a change made on another
+ * node is picked up within that interval.
  */
+@ManagedResource
 public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsService implements ClientDetailsService,
-        ClientRegistrationService, ResourceMonitor<ClientDetails> {
+        ClientRegistrationService, ResourceMonitor<ClientDetails>, ApplicationListener<AbstractUaaEvent> {
 
     private static final Log logger = LogFactory.getLog(MultitenantJdbcClientDetailsService.class);
 
@@ -67,7 +86,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private static final String DEFAULT_FIND_STATEMENT = BASE_FIND_STATEMENT + " where identity_zone_id = :identityZoneId order by client_id";
 
-    private static final String DEFAULT_SELECT_STATEMENT = BASE_FIND_STATEMENT + " where client_id = ? and identity_zone_id = ?";
+    public static final String DEFAULT_SELECT_STATEMENT = BASE_FIND_STATEMENT + " where client_id = ? and identity_zone_id = ?";
 
     private static final String DEFAULT_INSERT_STATEMENT = "insert into oauth_client_details (" + CLIENT_FIELDS
             + ", client_id, identity_zone_id) values (?,?,?,?,?,?,?,?,?,?,?,?)";
@@ -80,6 +99,12 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private static final String DEFAULT_DELETE_STATEMENT = "delete from oauth_client_details where client_id = ? and identity_zone_id = ?";
 
+    private static final String SELECT_VERSION_STATEMENT = "select version from oauth_client_details_version where identity_zone_id = ?";
+
+    private static final String INCREMENT_VERSION_STATEMENT = "update oauth_client_details_version set version = version + 1 where identity_zone_id = ?";
+
+    private static final String INSERT_VERSION_STATEMENT = "insert into oauth_client_details_version (identity_zone_id, version) values (?, 1)";
+
     private RowMapper<ClientDetails> rowMapper = new ClientDetailsRowMapper();
 
     private String deleteClientDetailsSql = DEFAULT_DELETE_STATEMENT;
@@ -100,6 +125,12 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
 
     private JdbcListFactory listFactory;
 
+    private ExpiringCache<String, CachedClient> clientCache = new ExpiringCache<>(1000, 0);
+
+    private final ConcurrentMap<String, ZoneVersion> zoneVersions = new ConcurrentHashMap<>();
+
+    private long cacheRefreshInterval = 5000;
+
     public MultitenantJdbcClientDetailsService(DataSource dataSource) {
         super(dataSource);
         Assert.notNull(dataSource, "DataSource required");
@@ -107,6 +138,22 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         this.listFactory = new DefaultJdbcListFactory(new NamedParameterJdbcTemplate(jdbcTemplate));
     }
 
+    /**
+     * @param cacheMaxEntries the maximum number of cached clients across all
+     *            zones, 0 to disable the cache
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.clientCache = cacheMaxEntries > 0 ? new ExpiringCache<String, CachedClient>(cacheMaxEntries, 0) : null;
+    }
+
+    /**
+     * @param cacheRefreshInterval how often, in seconds, the version of a zone
+     *            is checked for changes made by other nodes
+     */
+    public void setCacheRefreshInterval(int cacheRefreshInterval) {
+        this.cacheRefreshInterval = cacheRefreshInterval * 1000l;
+    }
+
     /**
      * @param passwordEncoder
      *            the password encoder to set
@@ -116,9 +163,26 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
     }
 
     public ClientDetails loadClientByClientId(String clientId) throws InvalidClientException {
+        String zoneId = IdentityZoneHolder.get().getId();
+        ExpiringCache<String, CachedClient> cache = clientCache;
+        if (cache == null) {
+            return queryClientDetails(clientId, zoneId);
+        }
+        String key = zoneId + "|" + clientId;
+        long version = getZoneVersion(zoneId).get();
+        CachedClient cached = cache.get(key);
+        if (cached != null && cached.version == version) {
+            return copy(cached.details);
+        }
+        ClientDetails details = queryClientDetails(clientId, zoneId);
+        cache.put(key, new CachedClient(details, version));
+        return copy(details);
+    }
+
+    private ClientDetails queryClientDetails(String clientId, String zoneId) throws InvalidClientException {
         ClientDetails details;
         try {
-            details = jdbcTemplate.queryForObject(selectClientDetailsSql, new ClientDetailsRowMapper(), clientId, IdentityZoneHolder.get().getId());
+            details = jdbcTemplate.queryForObject(selectClientDetailsSql, rowMapper, clientId, zoneId);
         } catch (EmptyResultDataAccessException e) {
             throw new NoSuchClientException("No client with requested id: " + clientId);
         }
@@ -132,6 +196,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         } catch (DuplicateKeyException e) {
             throw new ClientAlreadyExistsException("Client already exists: " + clientDetails.getClientId(), e);
         }
+        clientsChanged();
     }
 
     public void updateClientDetails(ClientDetails clientDetails) throws NoSuchClientException {
@@ -139,6 +204,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientDetails.getClientId() + " in identity zone "+IdentityZoneHolder.get().getName());
         }
+        clientsChanged();
     }
 
     public void updateClientSecret(String clientId, String secret) throws NoSuchClientException {
@@ -146,6 +212,7 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
+        clientsChanged();
     }
 
     public void removeClientDetails(String clientId) throws NoSuchClientException {
@@ -153,6 +220,90 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         if (count != 1) {
             throw new NoSuchClientException("No client found with id = " + clientId);
         }
+        clientsChanged();
+    }
+
+    /**
+     * Client admin events are published after changes that have already gone
+     * through this service, but they may also come from a service instance
+     * with a different cache, so the zone is invalidated again.
+     */
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof ClientCreateEvent || event instanceof ClientUpdateEvent
+                        || event instanceof SecretChangeEvent || event instanceof ClientDeleteEvent) {
+            getZoneVersion(IdentityZoneHolder.get().getId()).invalidate();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Hits")
+    public long getCacheHits() {
+        ExpiringCache<String, CachedClient> cache = clientCache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Cache Misses")
+    public long getCacheMisses() {
+        ExpiringCache<String, CachedClient> cache = clientCache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Cache Size")
+    public int getCacheSize() {
+        ExpiringCache<String, CachedClient> cache = clientCache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * Records a change to the clients of the current zone, both locally and in
+     * the shared version counter that the other nodes poll.
+     */
+    private void clientsChanged() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        getZoneVersion(zoneId).invalidate();
+        if (jdbcTemplate.update(INCREMENT_VERSION_STATEMENT, zoneId) == 0) {
+            try {
+                jdbcTemplate.update(INSERT_VERSION_STATEMENT, zoneId);
+            } catch (DuplicateKeyException e) {
+                // another node created the counter in the meantime
+                jdbcTemplate.update(INCREMENT_VERSION_STATEMENT, zoneId);
+            }
+        }
+    }
+
+    /**
+     * @return the version of the zone, refreshed from the database if it has
+     *         not been checked within the refresh interval
+     */
+    private ZoneVersion getZoneVersion(String zoneId) {
+        ZoneVersion zoneVersion = zoneVersions.get(zoneId);
+        if (zoneVersion == null) {
+            zoneVersion = new ZoneVersion();
+            ZoneVersion existing = zoneVersions.putIfAbsent(zoneId, zoneVersion);
+            if (existing != null) {
+                zoneVersion = existing;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long checkedAt = zoneVersion.checkedAt.get();
+        // only one thread polls, the others carry on with the current version
+        if (now - checkedAt >= cacheRefreshInterval && zoneVersion.checkedAt.compareAndSet(checkedAt, now)) {
+            List<Long> versions = jdbcTemplate.queryForList(SELECT_VERSION_STATEMENT, Long.class, zoneId);
+            zoneVersion.update(versions.isEmpty() ? 0 : versions.get(0));
+        }
+        return zoneVersion;
+    }
+
+    /**
+     * Cached clients are shared, so callers get their own copy to modify.
+     */
+    private static ClientDetails copy(ClientDetails details) {
+        BaseClientDetails copy = new BaseClientDetails(details);
+        copy.setAdditionalInformation(details.getAdditionalInformation());
+        if (details instanceof BaseClientDetails && ((BaseClientDetails) details).getAutoApproveScopes() != null) {
+            copy.setAutoApproveScopes(((BaseClientDetails) details).getAutoApproveScopes());
+        }
+        return copy;
     }
 
     public List<ClientDetails> listClientDetails() {
@@ -280,6 +431,45 @@ public class MultitenantJdbcClientDetailsService extends JdbcClientDetailsServic
         }
     }
 
+    private static class CachedClient {
+        private final ClientDetails details;
+
+        private final long version;
+
+        private CachedClient(ClientDetails details, long version) {
+            this.details = details;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The local view of the version of a zone. Besides the version read from
+     * the database it counts local invalidations, so that a local change
+     * invalidates cached clients immediately.
+     */
+    private static class ZoneVersion {
+        private final AtomicLong local = new AtomicLong();
+
+        private volatile long remote = -1;
+
+        private final AtomicLong checkedAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+        long get() {
+            return local.get();
+        }
+
+        void invalidate() {
+            local.incrementAndGet();
+        }
+
+        void update(long version) {
+            if (version != remote) {
+                remote = version;
+                local.incrementAndGet();
+            }
+        }
+    }
+
     interface JsonMapper {
         String write(Object input) throws Exception;
 
@@ -0,0 +1,17 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+CREATE TABLE `oauth_client_details_version` (
+  `identity_zone_id` varchar(36) NOT NULL,
+  `version` bigint DEFAULT 0 NOT NULL,
+  PRIMARY KEY (`identity_zone_id`)
+);
@@ -0,0 +1,18 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+CREATE TABLE sec_failed_login (
+  principal_id VARCHAR(36) NOT NULL PRIMARY KEY,
+  failure_count INTEGER DEFAULT 0 NOT NULL,
+  last_failure TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
+CREATE INDEX failed_login_last_failure ON sec_failed_login (last_failure);
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PrincipalAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AsyncAuditServiceTests {
+
+    private AsyncAuditService service;
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void eventsAreWrittenInTheBackground() throws Exception {
+        UaaAuditService delegate = mock(UaaAuditService.class);
+        service = new AsyncAuditService(delegate);
+        service.afterPropertiesSet();
+        AuditEvent event = getAuditEvent(PrincipalAuthenticationFailure, "1");
+        service.log(event);
+        verify(delegate, timeout(1000)).log(event);
+        assertEquals(1, service.getWrittenEvents());
+    }
+
+    @Test
+    public void eventsAreWrittenInBatchesByJdbcAuditService() throws Exception {
+        JdbcAuditService delegate = mock(JdbcAuditService.class);
+        service = new AsyncAuditService(delegate);
+        service.afterPropertiesSet();
+        AuditEvent event = getAuditEvent(PrincipalAuthenticationFailure, "1");
+        service.log(event);
+        verify(delegate, timeout(1000)).log(Collections.singletonList(event));
+    }
+
+    @Test
+    public void eventsAreWrittenOnThePublishingThreadWithoutAQueue() throws Exception {
+        UaaAuditService delegate = mock(UaaAuditService.class);
+        service = new AsyncAuditService(delegate);
+        service.setQueueSize(0);
+        service.afterPropertiesSet();
+        AuditEvent event = getAuditEvent(PrincipalAuthenticationFailure, "1");
+        service.log(event);
+        verify(delegate).log(event);
+        assertEquals(0, service.getQueueDepth());
+    }
+
+    @Test
+    public void pendingLoginEventsAreWrittenBeforeFailedLoginsAreRetrieved() throws Exception {
+        UaaAuditService delegate = mock(UaaAuditService.class, withSettings().extraInterfaces(FailedLoginStore.class));
+        FailedLogins failures = new FailedLogins(1, System.currentTimeMillis());
+        when(((FailedLoginStore) delegate).retrieveFailedLogins("1")).thenReturn(failures);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(200);
+                return null;
+            }
+        }).when(delegate).log(any(AuditEvent.class));
+        service = new AsyncAuditService(delegate);
+        service.setMaxLatencyMillis(5000);
+        service.afterPropertiesSet();
+
+        AuditEvent event = getAuditEvent(UserAuthenticationFailure, "1");
+        service.log(event);
+        assertSame(failures, service.retrieveFailedLogins("1"));
+
+        InOrder order = inOrder(delegate);
+        order.verify(delegate).log(event);
+        order.verify((FailedLoginStore) delegate).retrieveFailedLogins("1");
+    }
+
+    @Test
+    public void eventsAreDroppedWhenTheQueueIsFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        JdbcAuditService delegate = mock(JdbcAuditService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                writing.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(delegate).log(anyListOf(AuditEvent.class));
+        service = new AsyncAuditService(delegate);
+        service.setQueueSize(1);
+        service.afterPropertiesSet();
+
+        service.log(getAuditEvent(PrincipalAuthenticationFailure, "1"));
+        writing.await(5, TimeUnit.SECONDS);
+        service.log(getAuditEvent(PrincipalAuthenticationFailure, "2"));
+        service.log(getAuditEvent(PrincipalAuthenticationFailure, "3"));
+        assertEquals(1, service.getQueueDepth());
+        assertEquals(1, service.getDroppedEvents());
+        release.countDown();
+        service.destroy();
+        verify(delegate, times(2)).log(anyListOf(AuditEvent.class));
+        assertEquals(2, service.getWrittenEvents());
+    }
+
+    @Test
+    public void aBusyWriterIsLeftToWriteTheQueuedEvents() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        JdbcAuditService delegate = mock(JdbcAuditService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                writing.countDown();
+                // a write that does not give in to interrupts
+                while (true) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                        return null;
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        }).when(delegate).log(anyListOf(AuditEvent.class));
+        service = new AsyncAuditService(delegate);
+        service.setFlushTimeoutMillis(100);
+        service.afterPropertiesSet();
+
+        service.log(getAuditEvent(PrincipalAuthenticationFailure, "1"));
+        writing.await(5, TimeUnit.SECONDS);
+        service.log(getAuditEvent(PrincipalAuthenticationFailure, "2"));
+        service.destroy();
+        verify(delegate, times(1)).log(anyListOf(AuditEvent.class));
+        release.countDown();
+        verify(delegate, timeout(1000).times(2)).log(anyListOf(AuditEvent.class));
+    }
+
+    @Test
+    public void failedLoginsAreCountedFromTheHistoryOfADelegateWithoutACounter() throws Exception {
+        UaaAuditService delegate = mock(UaaAuditService.class);
+        when(delegate.find("1", 0)).thenReturn(Arrays.asList(
+                        getAuditEvent(UserAuthenticationFailure, "1", 3000),
+                        getAuditEvent(UserAuthenticationFailure, "1", 2000),
+                        getAuditEvent(UserAuthenticationSuccess, "1", 1500),
+                        getAuditEvent(UserAuthenticationFailure, "1", 1000)));
+        service = new AsyncAuditService(delegate);
+        service.afterPropertiesSet();
+
+        FailedLogins failures = service.retrieveFailedLogins("1");
+        assertEquals(2, failures.getCount());
+        assertEquals(3000, failures.getLastFailure());
+        assertNull(service.retrieveFailedLogins("2"));
+    }
+
+    @Test
+    public void eventsLoggedWhileShuttingDownAreWrittenOnThePublishingThread() throws Exception {
+        UaaAuditService delegate = mock(UaaAuditService.class);
+        service = new AsyncAuditService(delegate);
+        service.afterPropertiesSet();
+        service.destroy();
+
+        AuditEvent event = getAuditEvent(PrincipalAuthenticationFailure, "1");
+        service.log(event);
+        verify(delegate).log(event);
+        assertEquals(0, service.getQueueDepth());
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", 0, IdentityZone.getUaa().getId());
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal, long time) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", time, IdentityZone.getUaa().getId());
+    }
+
+}
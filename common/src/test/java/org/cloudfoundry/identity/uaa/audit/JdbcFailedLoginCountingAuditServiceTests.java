@@ -13,14 +13,22 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,7 +42,8 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
     @Before
     public void createService() throws Exception {
         auditService = new JdbcFailedLoginCountingAuditService(dataSource);
-        jdbcTemplate.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='clientA' or principal_id='clientB'");
+        jdbcTemplate.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='2' or principal_id='clientA' or principal_id='clientB'");
+        jdbcTemplate.execute("DELETE FROM sec_failed_login WHERE principal_id='1' or principal_id='2'");
         authDetails = "1.1.1.1";
     }
 
@@ -51,14 +60,67 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
     }
 
     @Test
-    public void userAuthenticationFailureDeletesOldData() throws Exception {
+    public void deleteExpiredDeletesOldData() throws Exception {
         long now = System.currentTimeMillis();
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
         assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
         // Set the created column to 3 hours past
         jdbcTemplate.update("update sec_audit set created=?", new Timestamp(now - 3 * 3600 * 1000));
-        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        jdbcTemplate.update("update sec_failed_login set last_failure=?", new Timestamp(now - 3 * 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2", "joe"));
         assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        auditService.deleteExpired();
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        assertNull(auditService.retrieveFailedLogins("1"));
+        assertEquals(1, auditService.retrieveFailedLogins("2").getCount());
+    }
+
+    @Test
+    public void userAuthenticationFailureIncrementsCounter() throws Exception {
+        assertNull(auditService.retrieveFailedLogins("1"));
+        long before = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        FailedLogins failures = auditService.retrieveFailedLogins("1");
+        assertEquals(3, failures.getCount());
+        assertTrue(failures.getLastFailure() >= before - 1000);
+    }
+
+    @Test
+    public void failureCounterRestartsAfterCountingPeriod() throws Exception {
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        jdbcTemplate.update("update sec_failed_login set last_failure=?", new Timestamp(now - 2 * 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        assertEquals(1, auditService.retrieveFailedLogins("1").getCount());
+    }
+
+    @Test
+    public void lockoutCountsOnlyFailuresWithinCountingPeriod() throws Exception {
+        long now = System.currentTimeMillis();
+        UaaUser user = new UaaUser("1", "joe", "", "joe@test.org", null, "Joe", "User", new Date(), new Date(),
+                        Origin.UAA, null, true, IdentityZone.getUaa().getId());
+        PeriodLockoutPolicy policy = new PeriodLockoutPolicy(auditService);
+        policy.setFailedLoginStore(auditService);
+        policy.setLockoutAfterFailures(3);
+        // the counter chains failures less than an hour apart, but only two
+        // are within the last hour
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe", now - 100 * 60 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe", now - 50 * 60 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe", now));
+        assertEquals(3, auditService.retrieveFailedLogins("1").getCount());
+        assertTrue(policy.isAllowed(user, null));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe", now));
+        assertFalse(policy.isAllowed(user, null));
+    }
+
+    @Test
+    public void userAuthenticationSuccessResetsCounter() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", "joe"));
+        assertNull(auditService.retrieveFailedLogins("1"));
     }
 
     @Test
@@ -90,8 +152,26 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
         assertEquals(1, events.size());
     }
 
+    @Test
+    public void batchOfEventsIsSavedInOrder() throws Exception {
+        auditService.log(Arrays.asList(
+                        getAuditEvent(UserAuthenticationFailure, "1", "joe"),
+                        getAuditEvent(UserAuthenticationFailure, "2", "joe"),
+                        getAuditEvent(UserAuthenticationSuccess, "1", "joe"),
+                        getAuditEvent(UserAuthenticationFailure, "1", "joe"),
+                        getAuditEvent(UserAuthenticationFailure, "2", "joe")));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='2'"));
+        assertEquals(1, auditService.retrieveFailedLogins("1").getCount());
+        assertEquals(2, auditService.retrieveFailedLogins("2").getCount());
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal, String data) {
-        return new AuditEvent(type, principal, authDetails, data, System.currentTimeMillis(), IdentityZone.getUaa().getId());
+        return getAuditEvent(type, principal, data, System.currentTimeMillis());
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal, String data, long time) {
+        return new AuditEvent(type, principal, authDetails, data, time, IdentityZone.getUaa().getId());
     }
 
 }
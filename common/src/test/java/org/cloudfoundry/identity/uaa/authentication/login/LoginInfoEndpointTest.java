@@ -18,6 +18,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.springframework.mock.env.MockEnvironment;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockHttpSession;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.provider.ClientDetailsService;
@@ -26,6 +27,7 @@ import org.springframework.security.providers.ExpiringUsernameAuthenticationToke
 import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -37,7 +39,11 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -220,6 +226,44 @@ public class LoginInfoEndpointTest  {
         verify(mockIDPConfigurator).getIdentityProviderDefinitions(null, zone, true);
     }
 
+    @Test
+    public void testLoginInfoIsOnlyRebuiltWhenIdpsChange() throws Exception {
+        IdentityProviderConfigurator mockIDPConfigurator = mock(IdentityProviderConfigurator.class);
+        when(mockIDPConfigurator.getIdentityProviderDefinitionsForZone(IdentityZoneHolder.get())).thenReturn(getIdps());
+
+        LoginInfoEndpoint endpoint = getEndpoint();
+        endpoint.setIdpDefinitions(mockIDPConfigurator);
+        endpoint.loginForHtml(new ExtendedModelMap(), null, new MockHttpServletRequest());
+        endpoint.loginForHtml(new ExtendedModelMap(), null, new MockHttpServletRequest());
+        verify(mockIDPConfigurator, times(1)).getIdentityProviderDefinitionsForZone(IdentityZoneHolder.get());
+
+        when(mockIDPConfigurator.getVersion()).thenReturn(1L);
+        Model model = new ExtendedModelMap();
+        endpoint.loginForHtml(model, null, new MockHttpServletRequest());
+        verify(mockIDPConfigurator, times(2)).getIdentityProviderDefinitionsForZone(IdentityZoneHolder.get());
+        assertEquals(2, ((List<?>) model.asMap().get("idpDefinitions")).size());
+    }
+
+    @Test
+    public void testUnchangedInfoIsNotModified() throws Exception {
+        LoginInfoEndpoint endpoint = getEndpoint();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertEquals("login", endpoint.infoForJson(new ExtendedModelMap(), null, new ServletWebRequest(new MockHttpServletRequest("GET", "/info"), response)));
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/info");
+        request.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        assertNull(endpoint.infoForJson(new ExtendedModelMap(), null, new ServletWebRequest(request, response)));
+        assertEquals(304, response.getStatus());
+
+        endpoint.setPrompts(Arrays.asList(new Prompt("username", "text", "Username")));
+        response = new MockHttpServletResponse();
+        assertEquals("login", endpoint.infoForJson(new ExtendedModelMap(), null, new ServletWebRequest(request, response)));
+        assertNotEquals(etag, response.getHeader("ETag"));
+    }
+
     private MockHttpServletRequest getMockHttpServletRequest() {
         MockHttpServletRequest request = new MockHttpServletRequest();
         MockHttpSession session = new MockHttpSession();
@@ -19,11 +19,15 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 
 import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.FailedLoginStore;
+import org.cloudfoundry.identity.uaa.audit.FailedLogins;
 import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
@@ -100,4 +104,62 @@ public class PeriodLockoutPolicyTests {
         policy.setLockoutAfterFailures(3);
         assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
     }
+
+    @Test
+    public void failedLoginStoreIsUsedInsteadOfAuditHistoryBelowTheLimit() {
+        FailedLoginStore store = mock(FailedLoginStore.class);
+        when(store.retrieveFailedLogins("1")).thenReturn(new FailedLogins(2, now - 1));
+        policy.setFailedLoginStore(store);
+
+        policy.setLockoutAfterFailures(3);
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+        verify(as, never()).find(eq("1"), anyLong());
+    }
+
+    @Test
+    public void failuresInStoreAreConfirmedByAuditHistory() {
+        FailedLoginStore store = mock(FailedLoginStore.class);
+        when(store.retrieveFailedLogins("1")).thenReturn(new FailedLogins(2, now - 1));
+        policy.setFailedLoginStore(store);
+        when(as.find(eq("1"), anyLong())).thenReturn(Arrays.asList(
+                        new AuditEvent(UserAuthenticationFailure, "joe", "", "", now - 1, IdentityZone.getUaa().getId()),
+                        new AuditEvent(UserAuthenticationFailure, "joe", "", "", now - 2, IdentityZone.getUaa().getId())
+                        ));
+
+        policy.setLockoutAfterFailures(2);
+        assertFalse(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void failuresInStoreBeforeTheCountingPeriodAreNotCounted() {
+        // failures spaced by less than the counting period chain up in the
+        // counter, but only the last one is within the period
+        FailedLoginStore store = mock(FailedLoginStore.class);
+        when(store.retrieveFailedLogins("1")).thenReturn(new FailedLogins(3, now - 1));
+        policy.setFailedLoginStore(store);
+        when(as.find(eq("1"), anyLong())).thenReturn(Arrays.asList(
+                        new AuditEvent(UserAuthenticationFailure, "joe", "", "", now - 1, IdentityZone.getUaa().getId())
+                        ));
+
+        policy.setLockoutAfterFailures(2);
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginIsAllowedWithExcessiveFailuresInStoreIfLockoutPeriodHasElapsed() {
+        FailedLoginStore store = mock(FailedLoginStore.class);
+        when(store.retrieveFailedLogins("1")).thenReturn(new FailedLogins(5, now - 5001));
+        policy.setFailedLoginStore(store);
+
+        policy.setLockoutAfterFailures(2);
+        policy.setLockoutPeriodSeconds(5);
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginIsAllowedIfStoreHasNoFailures() {
+        FailedLoginStore store = mock(FailedLoginStore.class);
+        policy.setFailedLoginStore(store);
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
 }
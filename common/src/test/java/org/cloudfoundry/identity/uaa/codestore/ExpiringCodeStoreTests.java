@@ -195,4 +195,28 @@ public class ExpiringCodeStoreTests extends JdbcTestBase {
         }
 
     }
+
+    @Test
+    public void testExpirationCleanerDeletesInBatches() throws Exception {
+        if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
+            for (int i = 0; i < 5; i++) {
+                jdbcTemplate.update(JdbcExpiringCodeStore.insert, "expired" + i, System.currentTimeMillis() - 1000, "{}");
+            }
+            ExpiringCode validCode = expiringCodeStore.generateCode("{}",
+                            new Timestamp(System.currentTimeMillis() + 60000));
+            ((JdbcExpiringCodeStore) expiringCodeStore).setSweepBatchSize(2);
+            assertEquals(5, ((JdbcExpiringCodeStore) expiringCodeStore).cleanExpiredEntries());
+            assertEquals(1, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+            assertEquals(validCode, expiringCodeStore.retrieveCode(validCode.getCode()));
+        }
+    }
+
+    @Test
+    public void testRetrieveCodeDoesNotSweep() throws Exception {
+        if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
+            jdbcTemplate.update(JdbcExpiringCodeStore.insert, "test", System.currentTimeMillis() - 1000, "{}");
+            assertNull(expiringCodeStore.retrieveCode("unknown"));
+            assertEquals(1, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+        }
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * ******************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * ******************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.ldap.extension;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.security.core.GrantedAuthority;
+
+import javax.naming.ldap.LdapName;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NestedLdapAuthoritiesPopulatorTests {
+
+    private static final String USER_DN = "uid=marissa,ou=Users,dc=test,dc=com";
+
+    private final Map<String, String[]> groups = new LinkedHashMap<String, String[]>();
+
+    private final SpringSecurityLdapTemplate template = mock(SpringSecurityLdapTemplate.class);
+
+    private NestedLdapAuthoritiesPopulator populator;
+
+    private String memberAttribute = "member";
+
+    @Before
+    public void setUp() {
+        groups.put(group("level1"), new String[] {USER_DN});
+        groups.put(group("level2a"), new String[] {group("level1")});
+        groups.put(group("level2b"), new String[] {group("level1").toUpperCase()});
+        groups.put(group("level3"), new String[] {group("level2a"), group("level2b")});
+        groups.put(group("other"), new String[] {"uid=other,ou=Users,dc=test,dc=com"});
+
+        when(template.searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class)))
+            .thenAnswer(new Answer<Set<Map<String, String[]>>>() {
+                @Override
+                public Set<Map<String, String[]>> answer(InvocationOnMock invocation) throws Throwable {
+                    return search((String) invocation.getArguments()[1], (Object[]) invocation.getArguments()[2],
+                                    (String[]) invocation.getArguments()[3]);
+                }
+            });
+
+        populator = new NestedLdapAuthoritiesPopulator(mock(ContextSource.class), "ou=scopes,dc=test,dc=com") {
+            @Override
+            protected SpringSecurityLdapTemplate getLdapTemplate() {
+                return template;
+            }
+        };
+        populator.setGroupRoleAttribute("cn");
+        populator.setRolePrefix("");
+        populator.setConvertToUpperCase(false);
+        populator.setGroupSearchFilter("member={0}");
+        populator.setAttributeNames(new HashSet<String>(Collections.singleton("cn")));
+    }
+
+    @Test
+    public void testEachLevelIsSearchedOnce() throws Exception {
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        verify(template, times(4)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    @Test
+    public void testNestedGroupsAreCached() throws Exception {
+        getRoles();
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        // only the direct groups of the user are searched for again
+        verify(template, times(5)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+        assertEquals(4, populator.getGroupCacheSize());
+    }
+
+    @Test
+    public void testNestedGroupsAreNotCachedIfTurnedOff() throws Exception {
+        populator.setGroupCacheExpirationSeconds(0);
+        getRoles();
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        verify(template, times(8)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    @Test
+    public void testCircularGroupsAreOnlyFollowedOnce() throws Exception {
+        groups.put(group("level1"), new String[] {USER_DN, group("level3")});
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        verify(template, times(4)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    @Test
+    public void testMaxSearchDepth() throws Exception {
+        populator.setMaxSearchDepth(2);
+        assertEquals(roles("level1", "level2a", "level2b"), getRoles());
+        populator.setMaxSearchDepth(1);
+        assertEquals(roles("level1"), getRoles());
+    }
+
+    @Test
+    public void testComplexFilterIsSearchedPerGroup() throws Exception {
+        populator.setGroupSearchFilter("(&(objectClass=groupOfNames)(member={0}))");
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        verify(template, times(5)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    @Test
+    public void testMemberDnsAreComparedByTheirRdns() throws Exception {
+        // an escaped "1", spaces and upper case
+        groups.put(group("level2a"), new String[] {"CN=level\\31, OU=scopes, DC=test, DC=com"});
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+    }
+
+    @Test
+    public void testGroupsWithoutMemberValuesAreSearchedPerGroup() throws Exception {
+        memberAttribute = null;
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        // the user, a combined search and a search per group for the two levels
+        // with parents, and the empty combined search of the top level
+        verify(template, times(7)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    @Test
+    public void testGroupsWithRangedMemberValuesAreSearchedPerGroup() throws Exception {
+        // how Active Directory returns the members of large groups
+        memberAttribute = "member;range=0-1499";
+        assertEquals(roles("level1", "level2a", "level2b", "level3"), getRoles());
+        verify(template, times(7)).searchForMultipleAttributeValues(anyString(), anyString(), any(Object[].class), any(String[].class));
+    }
+
+    private Set<String> getRoles() {
+        Set<String> roles = new HashSet<String>();
+        for (GrantedAuthority authority : populator.getGroupMembershipRoles(USER_DN, "marissa")) {
+            roles.add(authority.getAuthority());
+        }
+        return roles;
+    }
+
+    private static Set<String> roles(String... roles) {
+        return new HashSet<String>(Arrays.asList(roles));
+    }
+
+    private static String group(String cn) {
+        return "cn=" + cn + ",ou=scopes,dc=test,dc=com";
+    }
+
+    private Set<Map<String, String[]>> search(String filter, Object[] params, String[] attributeNames) throws Exception {
+        Set<LdapName> members = new HashSet<LdapName>();
+        if (filter.startsWith("(|")) {
+            for (int i = 0; i < params.length; i += 2) {
+                members.add(new LdapName(params[i].toString()));
+            }
+        } else {
+            // the single member term of the filter
+            String formatted = MessageFormat.format(filter, params);
+            members.add(new LdapName(formatted.replaceAll(".*member=([^)]*).*", "$1")));
+        }
+        Set<Map<String, String[]>> result = new HashSet<Map<String, String[]>>();
+        for (Map.Entry<String, String[]> group : groups.entrySet()) {
+            for (String member : group.getValue()) {
+                if (members.contains(new LdapName(member))) {
+                    Map<String, String[]> record = new HashMap<String, String[]>();
+                    record.put(SpringSecurityLdapTemplate.DN_KEY, new String[] {group.getKey()});
+                    record.put("cn", new String[] {group.getKey().substring(3, group.getKey().indexOf(','))});
+                    if (memberAttribute != null && Arrays.asList(attributeNames).contains("member")) {
+                        record.put(memberAttribute, group.getValue());
+                    }
+                    result.add(record);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -26,6 +26,7 @@ import org.springframework.core.io.Resource;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
 import org.springframework.security.saml.trust.httpclient.TLSProtocolSocketFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -337,4 +338,19 @@ public class IdentityProviderConfiguratorTests {
         conf.afterPropertiesSet();
     }
 
+
+    @Test
+    public void testMetadataSnapshotFileDependsOnConfig() throws Exception {
+        conf.setMetadataSnapshotDirectory("/tmp/snapshots");
+        IdentityProviderDefinition def = new IdentityProviderDefinition();
+        def.setIdpEntityAlias("my alias");
+        def.setZoneId(IdentityZone.getUaa().getId());
+        def.setMetaDataLocation("http://localhost:8080/metadata");
+        File file = conf.getMetadataSnapshotFile(def);
+        assertEquals("/tmp/snapshots", file.getParent());
+        assertTrue(file.getName().startsWith("my_alias-"));
+        assertEquals(file, conf.getMetadataSnapshotFile(def.clone()));
+        def.setMetaDataLocation("http://localhost:8080/other-metadata");
+        assertFalse(file.equals(conf.getMetadataSnapshotFile(def)));
+    }
 }
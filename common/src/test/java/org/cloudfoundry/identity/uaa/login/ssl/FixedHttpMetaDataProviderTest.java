@@ -0,0 +1,137 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.login.ssl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.HttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.parse.BasicParserPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FixedHttpMetaDataProviderTest {
+
+    private static final String ENTITY_ID = "http://www.okta.com/k2lvtem0VAJDMINKEYJW";
+
+    private Timer timer = new Timer(true);
+
+    private byte[] metadata;
+
+    private File snapshot;
+
+    private HttpServer server;
+
+    private FixedHttpMetaDataProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        DefaultBootstrap.bootstrap();
+        metadata = Files.readAllBytes(Paths.get("./src/test/resources/test-file-metadata.xml"));
+        snapshot = File.createTempFile("idp", ".xml");
+        Files.copy(Paths.get("./src/test/resources/test-file-metadata.xml"), snapshot.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (provider != null && provider.isInitialized()) {
+            provider.destroy();
+        }
+        timer.cancel();
+        if (server != null) {
+            server.stop(0);
+        }
+        Files.deleteIfExists(snapshot.toPath());
+    }
+
+    @Test
+    public void testMetadataIsLoadedFromSnapshot() throws Exception {
+        // nothing listens on this port, the metadata can only come from the snapshot
+        provider = createProvider("http://localhost:1/metadata");
+        provider.initialize();
+        EntityDescriptor descriptor = (EntityDescriptor) provider.getMetadata();
+        assertEquals(ENTITY_ID, descriptor.getEntityID());
+    }
+
+    @Test(expected = MetadataProviderException.class)
+    public void testOldSnapshotIsNotLoaded() throws Exception {
+        snapshot.setLastModified(System.currentTimeMillis() - 2000);
+        provider = createProvider("http://localhost:1/metadata");
+        provider.setSnapshotMaxAge(1000);
+        provider.initialize();
+    }
+
+    @Test
+    public void testFetchedMetadataIsWrittenToSnapshot() throws Exception {
+        Files.delete(snapshot.toPath());
+        provider = createProvider(startServer());
+        provider.initialize();
+        assertEquals(ENTITY_ID, ((EntityDescriptor) provider.getMetadata()).getEntityID());
+        assertTrue(snapshot.isFile());
+        assertTrue(Arrays.equals(metadata, Files.readAllBytes(snapshot.toPath())));
+    }
+
+    @Test
+    public void testExpiredSnapshotIsReplacedByFetchedMetadata() throws Exception {
+        String expired = new String(metadata, StandardCharsets.UTF_8).replace("entityID=\"" + ENTITY_ID + "\"",
+                        "entityID=\"http://expired.example.com\" validUntil=\"2000-01-01T00:00:00Z\"");
+        Files.write(snapshot.toPath(), expired.getBytes(StandardCharsets.UTF_8));
+        provider = createProvider(startServer());
+        // expired metadata is only told apart when valid metadata is required
+        provider.setRequireValidMetadata(true);
+        provider.initialize();
+        assertEquals(ENTITY_ID, ((EntityDescriptor) provider.getMetadata()).getEntityID());
+        assertTrue(Arrays.equals(metadata, Files.readAllBytes(snapshot.toPath())));
+    }
+
+    private FixedHttpMetaDataProvider createProvider(String url) throws Exception {
+        FixedHttpMetaDataProvider result = new FixedHttpMetaDataProvider(timer, new HttpClient(), url);
+        result.setParserPool(new BasicParserPool());
+        result.setSnapshotFile(snapshot);
+        return result;
+    }
+
+    private String startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/metadata", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, metadata.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(metadata);
+                }
+            }
+        });
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort() + "/metadata";
+    }
+}
@@ -12,12 +12,17 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth;
 
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.LimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.cloudfoundry.identity.uaa.zone.*;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.security.oauth2.provider.ClientDetails;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 
@@ -89,4 +94,24 @@ public class JdbcQueryableClientDetailsServiceTests extends JdbcTestBase {
         testQueryExists();
         assertEquals(8,delegate.getTotalCount());
     }
+
+    @Test
+    public void testStreamInAnotherZone() throws Exception {
+        addClients();
+        IdentityZoneHolder.set(otherZone);
+        addClient("other", "secret", "cc", "cc.read", "implicit", "myRedirectUri", "cc.read", 100, 200);
+        final List<String> ids = new ArrayList<String>();
+        int total = service.query("scope pr", "client_id", true, 1, 100, new ResultHandler<ClientDetails>() {
+            @Override
+            public boolean handle(List<ClientDetails> results) {
+                for (ClientDetails client : results) {
+                    ids.add(client.getClientId());
+                }
+                return true;
+            }
+        });
+        assertEquals(1, total);
+        assertEquals(1, ids.size());
+        assertEquals("other", ids.get(0));
+    }
 }
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.APPROVED;
+import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.DENIED;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingApprovalStoreTests {
+
+    private ApprovalStore delegate = spy(new InMemoryApprovalStore());
+
+    private CachingApprovalStore store;
+
+    @Before
+    public void setUp() {
+        delegate.addApproval(new Approval("user", "client", "read", 60000, APPROVED));
+        store = new CachingApprovalStore(delegate);
+    }
+
+    @After
+    public void tearDown() {
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testApprovalsAreCached() throws Exception {
+        assertEquals(1, store.getApprovals("user", "client").size());
+        assertEquals(1, store.getApprovals("user", "client").size());
+        verify(delegate, times(1)).getApprovals("user", "client");
+        assertEquals(1, store.getCacheHits());
+    }
+
+    @Test
+    public void testAddedApprovalIsWrittenThrough() throws Exception {
+        store.getApprovals("user", "client");
+        store.addApproval(new Approval("user", "client", "write", 60000, APPROVED));
+        store.addApproval(new Approval("user", "client", "read", 60000, DENIED));
+        List<Approval> approvals = store.getApprovals("user", "client");
+        verify(delegate, times(1)).getApprovals("user", "client");
+        assertEquals(2, approvals.size());
+        assertEquals(new Approval("user", "client", "write", 60000, APPROVED), approvals.get(0));
+        assertEquals(new Approval("user", "client", "read", 60000, DENIED), approvals.get(1));
+    }
+
+    @Test
+    public void testApprovalModifiedEventIsWrittenThrough() throws Exception {
+        store.getApprovals("user", "client");
+        Approval approval = new Approval("user", "client", "read", 60000, DENIED);
+        store.onApplicationEvent(new ApprovalModifiedEvent(approval, null));
+        assertEquals(DENIED, store.getApprovals("user", "client").get(0).getStatus());
+        verify(delegate, times(1)).getApprovals("user", "client");
+    }
+
+    @Test
+    public void testRevokeApprovalsDropsAll() throws Exception {
+        store.getApprovals("user", "client");
+        store.getApprovals("user", "other");
+        store.revokeApprovals("client_id eq \"client\"");
+        assertEquals(0, store.getCacheSize());
+        store.getApprovals("user", "client");
+        verify(delegate, times(2)).getApprovals("user", "client");
+    }
+
+    @Test
+    public void testRevokeApprovalDropsUserAndClient() throws Exception {
+        store.getApprovals("user", "client");
+        store.getApprovals("user", "other");
+        store.revokeApproval(new Approval("user", "client", "read", 60000, APPROVED));
+        assertEquals(0, store.getApprovals("user", "client").size());
+        assertEquals(2, store.getCacheSize());
+        verify(delegate, times(2)).getApprovals("user", "client");
+    }
+
+    @Test
+    public void testApprovalsAreCachedPerZone() throws Exception {
+        store.getApprovals("user", "client");
+        IdentityZone zone = MultitenancyFixture.identityZone("zone-id", "zone");
+        IdentityZoneHolder.set(zone);
+        store.getApprovals("user", "client");
+        verify(delegate, times(2)).getApprovals("user", "client");
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() throws Exception {
+        store.setExpirationSeconds(0);
+        store.getApprovals("user", "client");
+        store.getApprovals("user", "client");
+        verify(delegate, times(2)).getApprovals("user", "client");
+        assertEquals(0, store.getCacheSize());
+    }
+
+}
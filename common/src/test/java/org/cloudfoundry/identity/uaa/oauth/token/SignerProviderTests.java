@@ -12,9 +12,20 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.token;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Iterator;
 
 import org.junit.Test;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.codec.Codecs;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
 
 /**
  * 
@@ -98,4 +109,76 @@ public class SignerProviderTests {
         signerProvider.afterPropertiesSet();
     }
 
+    @Test
+    public void verifierIsParsedOnlyOnce() throws Exception {
+        signerProvider.setSigningKey("testkey");
+        assertSame(signerProvider.getVerifier(), signerProvider.getVerifier());
+        assertSame(signerProvider.getVerifier(), signerProvider.getVerifier(SignerProvider.DEFAULT_KEY_ID));
+        assertNull(signerProvider.getVerifier("unknown"));
+    }
+
+    @Test
+    public void previousKeysAreAcceptedAfterRotation() throws Exception {
+        signerProvider.setSigningKey("oldkey");
+        Jwt oldToken = JwtHelper.encode("{\"sub\":\"joel\"}", signerProvider.getSigner());
+
+        signerProvider.setSigningKey("newkey");
+        signerProvider.setKeyId("new-key-id");
+        signerProvider.setAdditionalVerifierKeys(Collections.singletonMap("old-key-id", "oldkey"));
+        signerProvider.afterPropertiesSet();
+
+        Iterator<VerificationKey> keys = signerProvider.getVerificationKeys().iterator();
+        assertEquals("new-key-id", keys.next().getKeyId());
+        assertEquals("old-key-id", keys.next().getKeyId());
+
+        signerProvider.verifySignature(JwtHelper.decode(oldToken.getEncoded()));
+        Jwt newToken = JwtHelper.encode("{\"sub\":\"joel\"}", signerProvider.getSigner());
+        signerProvider.verifySignature(JwtHelper.decode(newToken.getEncoded()));
+    }
+
+    @Test
+    public void tokensNameTheirSigningKey() throws Exception {
+        signerProvider.setSigningKey("newkey");
+        signerProvider.setKeyId("new-key-id");
+        String token = signerProvider.encode("{\"sub\":\"joel\"}");
+
+        String header = new String(Codecs.b64UrlDecode(token.substring(0, token.indexOf('.'))), "UTF-8");
+        assertEquals("{\"alg\":\"HS256\",\"kid\":\"new-key-id\"}", header);
+        Jwt jwt = JwtHelper.decode(token);
+        assertEquals("{\"sub\":\"joel\"}", jwt.getClaims());
+        jwt.verifySignature(signerProvider.getVerifier());
+    }
+
+    @Test
+    public void tokensAreVerifiedWithTheKeyTheyName() throws Exception {
+        signerProvider.setSigningKey("oldkey");
+        signerProvider.setKeyId("old-key-id");
+        String oldToken = signerProvider.encode("{\"sub\":\"joel\"}");
+
+        signerProvider.setSigningKey("newkey");
+        signerProvider.setKeyId("new-key-id");
+        signerProvider.setAdditionalVerifierKeys(Collections.singletonMap("old-key-id", "oldkey"));
+        signerProvider.verifySignature(JwtHelper.decode(oldToken));
+        signerProvider.verifySignature(JwtHelper.decode(signerProvider.encode("{\"sub\":\"joel\"}")));
+    }
+
+    @Test
+    public void tokensNamingAReusedKeyIdAreVerifiedWithTheOtherKeys() throws Exception {
+        // the key id was kept when the key was rotated
+        signerProvider.setSigningKey("oldkey");
+        String oldToken = signerProvider.encode("{\"sub\":\"joel\"}");
+
+        signerProvider.setSigningKey("newkey");
+        signerProvider.setAdditionalVerifierKeys(Collections.singletonMap("old-key-id", "oldkey"));
+        signerProvider.verifySignature(JwtHelper.decode(oldToken));
+    }
+
+    @Test(expected = InvalidSignatureException.class)
+    public void unknownKeyIsRejected() throws Exception {
+        signerProvider.setSigningKey("newkey");
+        signerProvider.setAdditionalVerifierKeys(Collections.singletonMap("old-key-id", "oldkey"));
+        Jwt token = JwtHelper.encode("{\"sub\":\"joel\"}", new MacSigner("otherkey"));
+        signerProvider.verifySignature(JwtHelper.decode(token.getEncoded()));
+    }
+
 }
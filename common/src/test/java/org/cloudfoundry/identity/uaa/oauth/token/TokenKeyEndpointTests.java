@@ -14,6 +14,10 @@ package org.cloudfoundry.identity.uaa.oauth.token;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.security.access.AccessDeniedException;
@@ -53,4 +57,21 @@ public class TokenKeyEndpointTests {
                                                         .createAuthorityList("ROLE_ANONYMOUS"))).toString());
     }
 
+    @Test
+    public void allVerificationKeysAreReturnedFromTokenKeysEndpoint() throws Exception {
+        signerProvider.setSigningKey("someKey");
+        signerProvider.setAdditionalVerifierKeys(Collections.singletonMap("old-key", "oldKey"));
+        List<Map<String, String>> keys = tokenEnhancer.getKeys(new UsernamePasswordAuthenticationToken("foo", "bar")).get("keys");
+        assertEquals(2, keys.size());
+        assertEquals("{kid=legacy-token-key, alg=HMACSHA256, value=someKey, kty=MAC, use=sig}", keys.get(0).toString());
+        assertEquals("{kid=old-key, alg=HMACSHA256, value=oldKey, kty=MAC, use=sig}", keys.get(1).toString());
+    }
+
+    @Test(expected = AccessDeniedException.class)
+    public void sharedSecretsCannotBeAnonymouslyRetrievedFromTokenKeysEndpoint() throws Exception {
+        signerProvider.setSigningKey("someKey");
+        tokenEnhancer.getKeys(new AnonymousAuthenticationToken("anon", "anonymousUser", AuthorityUtils
+                        .createAuthorityList("ROLE_ANONYMOUS")));
+    }
+
 }
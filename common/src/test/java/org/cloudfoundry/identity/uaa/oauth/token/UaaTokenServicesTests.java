@@ -1160,6 +1160,44 @@ public class UaaTokenServicesTests {
         assertNull(loadedAuthentication.getUserAuthentication());
     }
 
+    @Test
+    public void testLoadAuthenticationUsesCachedClaims() {
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, CLIENT_CREDENTIALS);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), null);
+
+        OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+        tokenServices.loadAuthentication(accessToken.getValue());
+        assertEquals(0, tokenServices.getClaimsCacheHits());
+        assertEquals(1, tokenServices.getClaimsCacheMisses());
+
+        OAuth2Authentication loadedAuthentication = tokenServices.loadAuthentication(accessToken.getValue());
+        assertEquals(1, tokenServices.getClaimsCacheHits());
+        assertEquals(1, tokenServices.getClaimsCacheSize());
+        assertEquals(CLIENT_ID, loadedAuthentication.getName());
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testCachedClaimsAreDiscardedWhenSigningKeyChanges() {
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, CLIENT_CREDENTIALS);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), null);
+
+        OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+        tokenServices.loadAuthentication(accessToken.getValue());
+
+        signerProvider.setSigningKey("a-different-key");
+        tokenServices.loadAuthentication(accessToken.getValue());
+    }
+
     @Test(expected = InvalidTokenException.class)
     public void testLoadAuthenticationWithAnExpiredToken() throws InterruptedException {
         BaseClientDetails shortExpiryClient = defaultClient;
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import org.cloudfoundry.identity.uaa.audit.event.GroupModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.UserModifiedEvent;
+import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingUaaUserDatabaseTests {
+
+    private UaaUser user = createUser("test-id", "username");
+
+    private UaaUserDatabase delegate = mock(UaaUserDatabase.class);
+
+    private CachingUaaUserDatabase db;
+
+    @Before
+    public void setUp() {
+        when(delegate.retrieveUserById(user.getId())).thenReturn(user);
+        when(delegate.retrieveUserByName(user.getUsername(), Origin.UAA)).thenReturn(user);
+        db = new CachingUaaUserDatabase(delegate);
+    }
+
+    @Test
+    public void testRetrieveUserByIdIsCached() throws Exception {
+        assertSame(user, db.retrieveUserById(user.getId()));
+        assertSame(user, db.retrieveUserById(user.getId()));
+        verify(delegate, times(1)).retrieveUserById(user.getId());
+        assertEquals(1, db.getCacheHits());
+    }
+
+    @Test
+    public void testRetrieveUserByNameIsCached() throws Exception {
+        assertSame(user, db.retrieveUserByName(user.getUsername(), Origin.UAA));
+        assertSame(user, db.retrieveUserByName("USERNAME", Origin.UAA));
+        assertSame(user, db.retrieveUserById(user.getId()));
+        verify(delegate, times(1)).retrieveUserByName(user.getUsername(), Origin.UAA);
+        verify(delegate, times(0)).retrieveUserById(user.getId());
+    }
+
+    @Test(expected = UsernameNotFoundException.class)
+    public void testUnknownUserIsNotCached() throws Exception {
+        when(delegate.retrieveUserByName("other", Origin.UAA)).thenThrow(new UsernameNotFoundException("other"));
+        try {
+            db.retrieveUserByName("other", Origin.UAA);
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+        db.retrieveUserByName("other", Origin.UAA);
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        db.retrieveUserById(user.getId());
+        db.evict(user.getId());
+        db.retrieveUserById(user.getId());
+        verify(delegate, times(2)).retrieveUserById(user.getId());
+    }
+
+    @Test
+    public void testUserEvictedWhileLoadedIsNotCached() throws Exception {
+        when(delegate.retrieveUserById(user.getId())).thenAnswer(new Answer<UaaUser>() {
+            @Override
+            public UaaUser answer(InvocationOnMock invocation) throws Throwable {
+                // the user is changed after it was read
+                db.evict(user.getId());
+                return user;
+            }
+        });
+        assertSame(user, db.retrieveUserById(user.getId()));
+        assertEquals(0, db.getCacheSize());
+        db.retrieveUserById(user.getId());
+        verify(delegate, times(2)).retrieveUserById(user.getId());
+    }
+
+    @Test
+    public void testRenamedUserIsNotReturnedForOldName() throws Exception {
+        db.retrieveUserByName(user.getUsername(), Origin.UAA);
+        UaaUser renamed = createUser(user.getId(), "renamed");
+        UaaUser replacement = createUser("other-id", user.getUsername());
+        when(delegate.retrieveUserById(user.getId())).thenReturn(renamed);
+        when(delegate.retrieveUserByName(user.getUsername(), Origin.UAA)).thenReturn(replacement);
+        db.evict(user.getId());
+        assertSame(renamed, db.retrieveUserById(user.getId()));
+        assertSame(replacement, db.retrieveUserByName(user.getUsername(), Origin.UAA));
+    }
+
+    @Test
+    public void testUserModifiedEventEvictsUser() throws Exception {
+        db.retrieveUserById(user.getId());
+        db.onApplicationEvent(UserModifiedEvent.userModified(user.getId(), user.getUsername()));
+        db.retrieveUserById(user.getId());
+        verify(delegate, times(2)).retrieveUserById(user.getId());
+    }
+
+    @Test
+    public void testGroupModifiedEventEvictsAll() throws Exception {
+        db.retrieveUserByName(user.getUsername(), Origin.UAA);
+        db.onApplicationEvent(GroupModifiedEvent.groupModified("group-id", "group", new String[] {user.getId()}));
+        db.retrieveUserByName(user.getUsername(), Origin.UAA);
+        verify(delegate, times(2)).retrieveUserByName(user.getUsername(), Origin.UAA);
+        assertEquals(1, db.getCacheSize());
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() throws Exception {
+        db.setMaxEntries(0);
+        db.retrieveUserById(user.getId());
+        db.retrieveUserById(user.getId());
+        verify(delegate, times(2)).retrieveUserById(user.getId());
+        assertEquals(0, db.getCacheSize());
+    }
+
+    private UaaUser createUser(String id, String username) {
+        return new UaaUser(id, username, "password", "email", UaaAuthority.USER_AUTHORITIES, "givenname",
+                        "familyname", new Date(), new Date(), Origin.UAA, "externalID", false,
+                        IdentityZoneHolder.get().getId());
+    }
+}
@@ -14,7 +14,6 @@ package org.cloudfoundry.identity.uaa.util;
 
 import java.lang.reflect.Field;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -131,8 +130,9 @@ public class CachingPasswordEncoderTest  {
         String password = new RandomValueStringGenerator().generate();
         String encoded = cachingPasswordEncoder.encode(password);
         assertTrue(cachingPasswordEncoder.matches(password, encoded));
-        //overflow happened
-        assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
+        //overflow happened, a single key was evicted
+        assertEquals(maxkeys, cachingPasswordEncoder.getNumberOfKeys());
+        assertEquals(1, cachingPasswordEncoder.getCacheEvictions());
 
         for (int j=0; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
             encoded = cachingPasswordEncoder.encode(password);
@@ -141,7 +141,7 @@ public class CachingPasswordEncoderTest  {
 
         Field field = ReflectionUtils.findField(cachingPasswordEncoder.getClass(), "cache");
         field.setAccessible(true);
-        ConcurrentHashMap<CharSequence, Set<String>> cache = (ConcurrentHashMap<CharSequence, Set<String>>)ReflectionUtils.getField(
+        ExpiringCache<String, Set<String>> cache = (ExpiringCache<String, Set<String>>)ReflectionUtils.getField(
             field,
             cachingPasswordEncoder
         );
@@ -149,8 +149,24 @@ public class CachingPasswordEncoderTest  {
         Set<String> passwords = cache.get(cachingPasswordEncoder.cacheEncode(password));
         assertNotNull(passwords);
         assertEquals(maxpasswords, passwords.size());
-        cachingPasswordEncoder.matches(password, cachingPasswordEncoder.encode(password));
-        assertEquals(0, passwords.size());
+        String newest = cachingPasswordEncoder.encode(password);
+        cachingPasswordEncoder.matches(password, newest);
+        //the oldest encoded password makes room
+        assertEquals(maxpasswords, passwords.size());
+        assertTrue(passwords.contains(newest));
+    }
+
+    @Test
+    public void testCacheStatistics() throws Exception {
+        String password = new RandomValueStringGenerator().generate();
+        String encoded = cachingPasswordEncoder.encode(password);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertFalse(cachingPasswordEncoder.matches("wrong", encoded));
+        assertEquals(2, cachingPasswordEncoder.getCacheHits());
+        assertEquals(2, cachingPasswordEncoder.getCacheMisses());
+        assertEquals(1, cachingPasswordEncoder.getNumberOfKeys());
     }
 
 
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiringCacheTests {
+
+    private long now = 1000;
+
+    private ExpiringCache<String, String> cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ExpiringCache<String, String>(3, 100) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEntriesExpireAfterTimeToLive() throws Exception {
+        cache.put("a", "1");
+        now += 100;
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testEntriesExpireAtExplicitTime() throws Exception {
+        cache.put("a", "1", now + 500);
+        now += 200;
+        assertEquals("1", cache.get("a"));
+        now += 300;
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testAlreadyExpiredValueIsNotCached() throws Exception {
+        cache.put("a", "1", now);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRecentlyUsedEntriesSurviveEviction() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("1", cache.get("a"));
+        assertEquals("4", cache.get("d"));
+    }
+
+    @Test
+    public void testExpiredEntriesAreEvictedFirst() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2", now + 10);
+        cache.put("c", "3");
+        now += 50;
+        cache.put("d", "4");
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void testJustCachedEntrySurvivesOverflow() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        cache.put("d", "4");
+        assertEquals(3, cache.size());
+        assertEquals("4", cache.get("d"));
+    }
+
+    @Test
+    public void testHandKeepsItsPositionBetweenEvictions() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.put("d", "4");
+        cache.put("e", "5");
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("5", cache.get("e"));
+    }
+
+    @Test
+    public void testReplacedAndRemovedEntriesDoNotPileUp() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            cache.put("a", String.valueOf(i));
+            cache.remove("b");
+            cache.put("b", String.valueOf(i));
+        }
+        assertEquals(2, cache.size());
+        assertEquals("99", cache.get("a"));
+        assertEquals("99", cache.get("b"));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testRemoveAndClear() throws Exception {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.remove("a"));
+        assertNull(cache.get("a"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}
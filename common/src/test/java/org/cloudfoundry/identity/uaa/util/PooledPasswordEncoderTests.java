@@ -0,0 +1,183 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+public class PooledPasswordEncoderTests {
+
+    private PooledPasswordEncoder encoder = new PooledPasswordEncoder(new BCryptPasswordEncoder(4));
+
+    @Before
+    public void setUp() throws Exception {
+        encoder.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        encoder.destroy();
+    }
+
+    @Test
+    public void testEncodeAndMatch() throws Exception {
+        String encoded = encoder.encode("password");
+        assertTrue(encoder.matches("password", encoded));
+        assertFalse(encoder.matches("wrong", encoded));
+    }
+
+    @Test
+    public void testDefaultPoolSizeIsNumberOfProcessors() throws Exception {
+        assertEquals(Runtime.getRuntime().availableProcessors(), encoder.getPoolSize());
+        createEncoder(new BCryptPasswordEncoder(4), 2, 100);
+        assertEquals(2, encoder.getPoolSize());
+    }
+
+    @Test
+    public void testPasswordsAreHashedOnTheCallingThreadUntilStarted() throws Exception {
+        PooledPasswordEncoder unstarted = new PooledPasswordEncoder(new BCryptPasswordEncoder(4));
+        assertEquals(0, unstarted.getPoolSize());
+        assertTrue(unstarted.matches("password", unstarted.encode("password")));
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        createEncoder(new BlockingPasswordEncoder(started, release), 1, 1);
+
+        Thread first = matchInBackground();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread second = matchInBackground();
+        while (encoder.getQueueDepth() < 1) {
+            Thread.sleep(10);
+        }
+        try {
+            encoder.matches("password", "encoded");
+            fail("Expected PasswordEncoderBusyException");
+        } catch (PasswordEncoderBusyException e) {
+            assertEquals(503, e.getHttpStatus());
+        }
+        assertEquals(1, encoder.getRejectedCount());
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+    }
+
+    @Test
+    public void testEncodeAllDoesNotRejectWhenSaturated() throws Exception {
+        createEncoder(new BCryptPasswordEncoder(4), 1, 1);
+        List<String> passwords = Arrays.asList("password0", "password1", "password2", "password3", "password4");
+        List<String> encoded = encoder.encodeAll(passwords);
+        assertEquals(passwords.size(), encoded.size());
+        for (int i = 0; i < passwords.size(); i++) {
+            assertTrue(encoder.matches(passwords.get(i), encoded.get(i)));
+        }
+        assertEquals(0, encoder.getRejectedCount());
+    }
+
+    @Test
+    public void testNestedPooledEncodersRunInline() throws Exception {
+        PooledPasswordEncoder outer = new PooledPasswordEncoder(encoder);
+        outer.setPoolSize(1);
+        outer.afterPropertiesSet();
+        try {
+            String encoded = outer.encode("password");
+            assertTrue(outer.matches("password", encoded));
+        } finally {
+            outer.destroy();
+        }
+    }
+
+    @Test
+    public void testTimedOutRequestsRunOnTheCallingThread() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        encoder.destroy();
+        encoder = new PooledPasswordEncoder(new BlockingPasswordEncoder(started, release));
+        encoder.setPoolSize(1);
+        encoder.setTimeoutMillis(100);
+        encoder.afterPropertiesSet();
+
+        Thread first = matchInBackground();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the only thread is busy, so this waits in the queue until it times out
+        assertEquals("password", encoder.encode("password"));
+        // the blocked match times out as well
+        assertTrue(encoder.getTimedOutCount() >= 1);
+        assertEquals(0, encoder.getQueueDepth());
+        release.countDown();
+        first.join(5000);
+    }
+
+    private void createEncoder(PasswordEncoder delegate, int poolSize, int queueSize) throws Exception {
+        encoder.destroy();
+        encoder = new PooledPasswordEncoder(delegate);
+        encoder.setPoolSize(poolSize);
+        encoder.setQueueSize(queueSize);
+        encoder.afterPropertiesSet();
+    }
+
+    private Thread matchInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encoder.matches("password", "encoded");
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static class BlockingPasswordEncoder implements PasswordEncoder {
+
+        private final CountDownLatch started;
+
+        private final CountDownLatch release;
+
+        private BlockingPasswordEncoder(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public String encode(CharSequence rawPassword) {
+            return rawPassword.toString();
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.zone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+public class CachingIdentityProviderProvisioningTests {
+
+    private IdentityProviderProvisioning delegate = mock(IdentityProviderProvisioning.class);
+
+    private CachingIdentityProviderProvisioning provisioning;
+
+    private IdentityProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = MultitenancyFixture.identityProvider("saml", IdentityZone.getUaa().getId());
+        provider.setId("idp-id");
+        when(delegate.retrieveByOrigin("saml", IdentityZone.getUaa().getId())).thenReturn(provider);
+        when(delegate.retrieve("idp-id")).thenReturn(provider);
+        when(delegate.update(any(IdentityProvider.class))).thenReturn(provider);
+        provisioning = new CachingIdentityProviderProvisioning(delegate);
+    }
+
+    @After
+    public void tearDown() {
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    public void testProvidersAreCachedByOriginAndId() throws Exception {
+        assertEquals(provider, provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()));
+        assertEquals(provider, provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()));
+        assertEquals(provider, provisioning.retrieve("idp-id"));
+        verify(delegate, times(1)).retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        verify(delegate, times(0)).retrieve("idp-id");
+        assertEquals(2, provisioning.getCacheHits());
+    }
+
+    @Test
+    public void testCachedProviderCannotBeChangedByCallers() throws Exception {
+        provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()).setActive(false);
+        assertTrue(provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()).isActive());
+    }
+
+    @Test
+    public void testUpdateDropsCachedProvider() throws Exception {
+        provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        provisioning.update(provider);
+        assertEquals(0, provisioning.getCacheSize());
+        provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        verify(delegate, times(2)).retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+    }
+
+    @Test
+    public void testModifiedEventDropsCachedProvider() throws Exception {
+        provisioning.retrieve("idp-id");
+        IdentityProvider disabled = MultitenancyFixture.identityProvider("saml", IdentityZone.getUaa().getId());
+        disabled.setId("idp-id");
+        disabled.setActive(false);
+        when(delegate.retrieve("idp-id")).thenReturn(disabled);
+        provisioning.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(disabled));
+        assertFalse(provisioning.retrieve("idp-id").isActive());
+        assertFalse(provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()).isActive());
+    }
+
+    @Test
+    public void testMissingProvidersAreNotCached() throws Exception {
+        when(delegate.retrieveByOrigin("other", IdentityZone.getUaa().getId())).thenThrow(
+                        new EmptyResultDataAccessException(1));
+        for (int i = 0; i < 2; i++) {
+            try {
+                provisioning.retrieveByOrigin("other", IdentityZone.getUaa().getId());
+            } catch (EmptyResultDataAccessException expected) {
+            }
+        }
+        verify(delegate, times(2)).retrieveByOrigin("other", IdentityZone.getUaa().getId());
+        assertEquals(0, provisioning.getCacheSize());
+    }
+
+    @Test
+    public void testProvidersAreCachedPerZone() throws Exception {
+        IdentityProvider zoneProvider = MultitenancyFixture.identityProvider("saml", "zone-id");
+        zoneProvider.setId("zone-idp-id");
+        when(delegate.retrieveByOrigin("saml", "zone-id")).thenReturn(zoneProvider);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(provider, provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId()));
+            assertEquals(zoneProvider, provisioning.retrieveByOrigin("saml", "zone-id"));
+        }
+        verify(delegate, times(1)).retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        verify(delegate, times(1)).retrieveByOrigin("saml", "zone-id");
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() throws Exception {
+        provisioning.setMaxEntries(0);
+        provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        provisioning.retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        verify(delegate, times(2)).retrieveByOrigin("saml", IdentityZone.getUaa().getId());
+        assertEquals(0, provisioning.getCacheSize());
+    }
+
+}
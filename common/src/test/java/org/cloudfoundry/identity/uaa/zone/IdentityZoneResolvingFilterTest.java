@@ -13,6 +13,8 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -102,4 +104,117 @@ public class IdentityZoneResolvingFilterTest {
         Mockito.verifyZeroInteractions(chain);
     }
 
+    @Test
+    public void resolvedZonesAreCached() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setSubdomain("myzone");
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenReturn(identityZone);
+
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain("myzone");
+        assertEquals(1, filter.getCacheHits());
+    }
+
+    @Test
+    public void unknownZonesAreCached() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        Mockito.when(dao.retrieveBySubdomain("not_a_zone")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "not_a_zone.uaa.mycf.com"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "not_a_zone.uaa.mycf.com"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "www.example.com"));
+
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain("not_a_zone");
+    }
+
+    @Test
+    public void unknownZonesDoNotPushOutResolvedZones() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        filter.setCacheMaxEntries(2);
+        filter.setMissingZoneCacheMaxEntries(2);
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setSubdomain("myzone");
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenReturn(identityZone);
+        Mockito.when(dao.retrieveBySubdomain(Mockito.startsWith("random"))).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "random" + i + ".uaa.mycf.com"));
+        }
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain("myzone");
+    }
+
+    @Test
+    public void unknownZonesAreNotCachedIfTurnedOff() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        filter.setMissingZoneCacheExpiration(0);
+        Mockito.when(dao.retrieveBySubdomain("not_a_zone")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "not_a_zone.uaa.mycf.com"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "not_a_zone.uaa.mycf.com"));
+
+        Mockito.verify(dao, Mockito.times(2)).retrieveBySubdomain("not_a_zone");
+    }
+
+    @Test
+    public void zoneEventInvalidatesCache() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenThrow(new EmptyResultDataAccessException(1));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "myzone.uaa.mycf.com"));
+
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setSubdomain("myzone");
+        Mockito.reset(dao);
+        Mockito.when(dao.retrieveVersion()).thenReturn("1");
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenReturn(identityZone);
+        filter.onApplicationEvent(new IdentityZoneModifiedEvent(identityZone, null, AuditEventType.IdentityZoneCreatedEvent));
+
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+    }
+
+    @Test
+    public void zoneVersionChangeInvalidatesCache() throws Exception {
+        IdentityZoneProvisioning dao = Mockito.mock(IdentityZoneProvisioning.class);
+        IdentityZoneResolvingFilter filter = createFilter(dao);
+        filter.setCacheRefreshInterval(0);
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenThrow(new EmptyResultDataAccessException(1));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "myzone.uaa.mycf.com"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, doFilter(filter, "myzone.uaa.mycf.com"));
+        Mockito.verify(dao, Mockito.times(1)).retrieveBySubdomain("myzone");
+
+        IdentityZone identityZone = new IdentityZone();
+        identityZone.setSubdomain("myzone");
+        Mockito.reset(dao);
+        Mockito.when(dao.retrieveVersion()).thenReturn("2");
+        Mockito.when(dao.retrieveBySubdomain("myzone")).thenReturn(identityZone);
+
+        assertEquals(HttpServletResponse.SC_OK, doFilter(filter, "myzone.uaa.mycf.com"));
+    }
+
+    private IdentityZoneResolvingFilter createFilter(IdentityZoneProvisioning dao) {
+        IdentityZoneResolvingFilter filter = new IdentityZoneResolvingFilter();
+        filter.setIdentityZoneProvisioning(dao);
+        filter.setInternalHostnames(new HashSet<>(Arrays.asList("uaa.mycf.com", "login.mycf.com")));
+        Mockito.when(dao.retrieveVersion()).thenReturn("1");
+        return filter;
+    }
+
+    private int doFilter(IdentityZoneResolvingFilter filter, String hostname) throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServerName(hostname);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response.getStatus();
+    }
+
 }
@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.springframework.dao.EmptyResultDataAccessException;
 
 import java.sql.Timestamp;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -232,4 +233,29 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         IdentityProvider idp1 = db.create(idp);
         db.retrieveByOrigin(idp1.getOriginKey(), identityZone2.getId());
     }
+
+    @Test
+    public void testRetrieveModifiedSinceInAllZones() throws Exception {
+        String type = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider idp1 = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), IdentityZone.getUaa().getId());
+        idp1.setType(type);
+        idp1 = db.create(idp1);
+        IdentityProvider idp2 = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), RandomStringUtils.randomAlphabetic(6));
+        idp2.setType(type);
+        idp2 = db.create(idp2);
+        IdentityProvider inactive = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), RandomStringUtils.randomAlphabetic(6));
+        inactive.setType(type);
+        inactive.setActive(false);
+        db.create(inactive);
+        jdbcTemplate.update("update identity_provider set lastModified=? where id=?", new Timestamp(1000), idp1.getId());
+
+        List<IdentityProvider> providers = db.retrieveModifiedSince(type, new Date(0));
+        assertEquals(2, providers.size());
+        assertEquals(idp1.getId(), providers.get(0).getId());
+        assertEquals(idp2.getId(), providers.get(1).getId());
+
+        providers = db.retrieveModifiedSince(type, idp2.getLastModified());
+        assertEquals(1, providers.size());
+        assertEquals(idp2.getId(), providers.get(0).getId());
+    }
 }
@@ -3,6 +3,7 @@ package org.cloudfoundry.identity.uaa.zone;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.fail;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.junit.Before;
@@ -55,6 +56,21 @@ public class JdbcIdentityZoneProvisioningTests extends JdbcTestBase {
         assertEquals(createdIdZone.getDescription(), updatedIdZone.getDescription());
     }
 
+    @Test
+    public void testVersionChangesWithCreateAndUpdate() throws Exception {
+        String initialVersion = db.retrieveVersion();
+        IdentityZone identityZone = MultitenancyFixture.identityZone(UUID.randomUUID().toString(),UUID.randomUUID().toString());
+        identityZone.setId(UUID.randomUUID().toString());
+
+        IdentityZone createdIdZone = db.create(identityZone);
+        String createdVersion = db.retrieveVersion();
+        assertNotEquals(initialVersion, createdVersion);
+
+        createdIdZone.setDescription("new desc");
+        db.update(createdIdZone);
+        assertNotEquals(createdVersion, db.retrieveVersion());
+    }
+
     @Test(expected = ZoneDoesNotExistsException.class)
     public void testUpdateNonExistentIdentityZone() throws Exception {
         IdentityZone identityZone = MultitenancyFixture.identityZone(UUID.randomUUID().toString(),UUID.randomUUID().toString());
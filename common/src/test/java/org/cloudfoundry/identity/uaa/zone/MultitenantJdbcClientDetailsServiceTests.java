@@ -352,4 +352,98 @@ public class MultitenantJdbcClientDetailsServiceTests {
         assertEquals(IdentityZone.getUaa().getId(), identityZoneId.trim());
     }
 
+    @Test
+    public void testLoadedClientsAreCached() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        clientDetails.setAdditionalInformation(Collections.singletonMap("foo", "bar"));
+        service.addClientDetails(clientDetails);
+
+        ClientDetails first = service.loadClientByClientId("cachedClient");
+        jdbcTemplate.update("update oauth_client_details set scope = 'changed' where client_id = ?", "cachedClient");
+        ClientDetails second = service.loadClientByClientId("cachedClient");
+
+        assertEquals(first.getScope(), second.getScope());
+        assertEquals(Collections.singletonMap("foo", "bar"), second.getAdditionalInformation());
+        assertEquals(1, service.getCacheHits());
+    }
+
+    @Test
+    public void testCachedClientsAreCopied() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        service.addClientDetails(clientDetails);
+
+        ((BaseClientDetails) service.loadClientByClientId("cachedClient")).setClientSecret("modified");
+
+        assertNull(service.loadClientByClientId("cachedClient").getClientSecret());
+    }
+
+    @Test
+    public void testUpdateInvalidatesCachedClient() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        service.addClientDetails(clientDetails);
+        service.loadClientByClientId("cachedClient");
+
+        clientDetails.setScope(Collections.singleton("changed"));
+        service.updateClientDetails(clientDetails);
+
+        assertEquals(Collections.singleton("changed"), service.loadClientByClientId("cachedClient").getScope());
+    }
+
+    @Test(expected = NoSuchClientException.class)
+    public void testRemoveInvalidatesCachedClient() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        service.addClientDetails(clientDetails);
+        service.loadClientByClientId("cachedClient");
+
+        service.removeClientDetails("cachedClient");
+
+        service.loadClientByClientId("cachedClient");
+    }
+
+    @Test
+    public void testChangeOnOtherNodeInvalidatesCachedClient() {
+        service.setCacheRefreshInterval(0);
+        MultitenantJdbcClientDetailsService otherNode = new MultitenantJdbcClientDetailsService(db);
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        otherNode.addClientDetails(clientDetails);
+        service.loadClientByClientId("cachedClient");
+
+        clientDetails.setScope(Collections.singleton("changed"));
+        otherNode.updateClientDetails(clientDetails);
+
+        assertEquals(Collections.singleton("changed"), service.loadClientByClientId("cachedClient").getScope());
+    }
+
+    @Test
+    public void testChangesInOtherZoneDoNotInvalidateCachedClient() {
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("cachedClient");
+        service.addClientDetails(clientDetails);
+        service.loadClientByClientId("cachedClient");
+
+        IdentityZoneHolder.set(otherIdentityZone);
+        service.addClientDetails(clientDetails);
+        IdentityZoneHolder.clear();
+        service.loadClientByClientId("cachedClient");
+
+        assertEquals(1, service.getCacheHits());
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() {
+        service.setCacheMaxEntries(0);
+        BaseClientDetails clientDetails = new BaseClientDetails();
+        clientDetails.setClientId("uncachedClient");
+        service.addClientDetails(clientDetails);
+        service.loadClientByClientId("uncachedClient");
+        jdbcTemplate.update("update oauth_client_details set scope = 'changed' where client_id = ?", "uncachedClient");
+
+        assertEquals(Collections.singleton("changed"), service.loadClientByClientId("uncachedClient").getScope());
+    }
+
 }
@@ -12,7 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.cloudfoundry.identity.uaa.rest.Queryable;
@@ -35,6 +37,23 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
     ScimGroupMember addMember(String groupId, ScimGroupMember member) throws ScimResourceNotFoundException,
                     MemberAlreadyExistsException;
 
+    /**
+     * Add many members to a group at once. The members are checked with a
+     * few queries and added in a single batch, and either all of them are
+     * added or none of them.
+     * 
+     * @param groupId id of a valid group that already exists.
+     * @param members membership info for enrolling existing scim objects
+     *            (users or groups) in the group
+     * @return the members that were added
+     * @throws ScimResourceNotFoundException if the group or any of the members
+     *             does not exist
+     * @throws MemberAlreadyExistsException if any of the members is already
+     *             part of the group
+     */
+    List<ScimGroupMember> addMembers(String groupId, List<ScimGroupMember> members)
+                    throws ScimResourceNotFoundException, MemberAlreadyExistsException;
+
     /**
      * Retrieve all members of a group
      * 
@@ -66,6 +85,30 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve all groups that each of the given members belongs to, with a
+     * number of queries that does not depend on the number of members
+     * 
+     * @param memberIds
+     * @param transitive true means indirect/transitive membership is also
+     *            processed (nested groups)
+     * @return the groups of each member, keyed by member id
+     */
+    Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive);
+
+    /**
+     * Make the given groups the only groups that a user is a member of
+     * through the given origin, in a single transaction. Only the memberships
+     * that changed are written, and groups the user is already a member of
+     * through another origin are left alone.
+     * 
+     * @param memberId the id of the user
+     * @param origin the origin of the memberships
+     * @param groupIds the ids of the groups the user should be a member of
+     * @return the number of memberships that were added or removed
+     */
+    int synchronizeMemberships(String memberId, String origin, Collection<String> groupIds);
+
     /**
      * Retrieve a particular member's membership details
      * 
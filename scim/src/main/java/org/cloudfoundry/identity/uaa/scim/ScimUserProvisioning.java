@@ -12,6 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.List;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
@@ -27,6 +29,17 @@ public interface ScimUserProvisioning extends ResourceManager<ScimUser>, Queryab
     public ScimUser createUser(ScimUser user, String password) throws InvalidPasswordException,
                     InvalidScimResourceException;
 
+    /**
+     * Create many users at once. Either all of them are created or, if any of
+     * them is invalid or already exists, none of them.
+     * 
+     * @param users the users to create
+     * @param passwords the password of each user, in the same order
+     * @return the created users, in the same order
+     */
+    public List<ScimUser> createUsers(List<ScimUser> users, List<String> passwords) throws InvalidPasswordException,
+                    InvalidScimResourceException;
+
     public void changePassword(String id, String oldPassword, String newPassword)
                     throws ScimResourceNotFoundException;
 
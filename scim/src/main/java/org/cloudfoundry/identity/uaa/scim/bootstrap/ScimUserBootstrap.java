@@ -15,7 +15,12 @@ package org.cloudfoundry.identity.uaa.scim.bootstrap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -36,6 +41,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationListener;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.util.Assert;
+import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 
 /**
@@ -49,6 +55,8 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     private static final Log logger = LogFactory.getLog(ScimUserBootstrap.class);
 
+    private static final int MAX_GROUPS_PER_QUERY = 100;
+
     private final ScimUserProvisioning scimUserProvisioning;
 
     private final ScimGroupProvisioning scimGroupProvisioning;
@@ -156,22 +164,88 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
     public void onApplicationEvent(NewUserAuthenticatedEvent event) {
         if (event instanceof ExternalGroupAuthorizationEvent) {
             ExternalGroupAuthorizationEvent exEvent = (ExternalGroupAuthorizationEvent)event;
-            //delete previous membership relation ships
             String origin = exEvent.getUser().getOrigin();
-            if (!Origin.UAA.equals(origin)) {//only delete non UAA relationships
-                membershipManager.delete("member_id eq \""+event.getUser().getId()+"\" and origin eq \""+origin+"\"");
-            }
-            for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
-                addToGroup(exEvent.getUser().getId(), authority.getAuthority(), exEvent.getUser().getOrigin(), exEvent.isAddGroups());
+            if (!Origin.UAA.equals(origin)) {
+                //only non UAA relationships are replaced, writing just what changed
+                Set<String> groupIds = new HashSet<String>();
+                for (ScimGroup group : getGroups(exEvent.getExternalAuthorities(), exEvent.isAddGroups())) {
+                    groupIds.add(group.getId());
+                }
+                membershipManager.synchronizeMemberships(exEvent.getUser().getId(), origin, groupIds);
+            } else {
+                for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
+                    addToGroup(exEvent.getUser().getId(), authority.getAuthority(), origin, exEvent.isAddGroups());
+                }
             }
             //update the user itself
             ScimUser user = getScimUser(event.getUser());
-            updateUser(user, event.getUser(), false);
+            if (isChanged(user, event.getUser())) {
+                updateUser(user, event.getUser(), false);
+            }
         } else {
             addUser(event.getUser());
         }
     }
 
+    /**
+     * Finds the groups named by the given authorities with one query per
+     * hundred names, creating the missing ones if requested.
+     */
+    private Collection<ScimGroup> getGroups(Collection<? extends GrantedAuthority> authorities, boolean addGroups) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (GrantedAuthority authority : authorities) {
+            if (StringUtils.hasText(authority.getAuthority())) {
+                names.add(authority.getAuthority());
+            }
+        }
+        Map<String, ScimGroup> groups = new HashMap<String, ScimGroup>();
+        List<String> all = new ArrayList<String>(names);
+        for (int i = 0; i < all.size(); i += MAX_GROUPS_PER_QUERY) {
+            StringBuilder filter = new StringBuilder();
+            for (String name : all.subList(i, Math.min(all.size(), i + MAX_GROUPS_PER_QUERY))) {
+                if (filter.length() > 0) {
+                    filter.append(" or ");
+                }
+                filter.append(String.format("displayName eq \"%s\"", name));
+            }
+            for (ScimGroup group : scimGroupProvisioning.query(filter.toString())) {
+                String key = group.getDisplayName().toLowerCase(Locale.US);
+                if (!groups.containsKey(key)) {
+                    groups.put(key, group);
+                }
+            }
+        }
+        for (String name : names) {
+            String key = name.toLowerCase(Locale.US);
+            if (groups.containsKey(key)) {
+                continue;
+            }
+            if (addGroups) {
+                logger.debug("Creating group: " + name);
+                groups.put(key, scimGroupProvisioning.create(new ScimGroup(name)));
+            } else {
+                logger.debug("No group found with name:"+name+". Group membership will not be added.");
+            }
+        }
+        return groups.values();
+    }
+
+    private boolean isChanged(ScimUser existingUser, UaaUser user) {
+        ScimUser updated = convertToScimUser(user);
+        return !(ObjectUtils.nullSafeEquals(existingUser.getUserName(), updated.getUserName())
+                        && ObjectUtils.nullSafeEquals(existingUser.getPrimaryEmail(), updated.getPrimaryEmail())
+                        && ObjectUtils.nullSafeEquals(existingUser.getGivenName(), updated.getGivenName())
+                        && ObjectUtils.nullSafeEquals(existingUser.getFamilyName(), updated.getFamilyName())
+                        && ObjectUtils.nullSafeEquals(existingUser.getOrigin(), updated.getOrigin())
+                        && ObjectUtils.nullSafeEquals(emptyToNull(existingUser.getExternalId()), emptyToNull(updated.getExternalId()))
+                        && existingUser.isActive() && existingUser.isVerified()
+                        && (existingUser.getPhoneNumbers() == null || existingUser.getPhoneNumbers().isEmpty()));
+    }
+
+    private static String emptyToNull(String value) {
+        return StringUtils.hasText(value) ? value : null;
+    }
+
     private void addToGroup(String scimUserId, String gName) {
         addToGroup(scimUserId,gName,Origin.UAA, true);
     }
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * A SCIM 2.0 style bulk request: a list of operations that are run in order.
+ */
+@JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkRequest {
+
+    public static final String SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+
+    private List<String> schemas = Collections.singletonList(SCHEMA);
+
+    private Integer failOnErrors;
+
+    private List<BulkOperation> operations = new ArrayList<BulkOperation>();
+
+    public List<String> getSchemas() {
+        return schemas;
+    }
+
+    public void setSchemas(List<String> schemas) {
+        this.schemas = schemas;
+    }
+
+    /**
+     * @return the number of failed operations after which the rest are not
+     *         run, or null to run all of them
+     */
+    public Integer getFailOnErrors() {
+        return failOnErrors;
+    }
+
+    public void setFailOnErrors(Integer failOnErrors) {
+        this.failOnErrors = failOnErrors;
+    }
+
+    @JsonProperty("Operations")
+    public List<BulkOperation> getOperations() {
+        return operations;
+    }
+
+    @JsonProperty("Operations")
+    public void setOperations(List<BulkOperation> operations) {
+        this.operations = operations;
+    }
+
+}
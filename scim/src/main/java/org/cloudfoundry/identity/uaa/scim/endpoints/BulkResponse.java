@@ -0,0 +1,58 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * The results of the operations of a bulk request that were run, in order.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkResponse {
+
+    public static final String SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+
+    private List<String> schemas = Collections.singletonList(SCHEMA);
+
+    private List<BulkOperation> operations;
+
+    public BulkResponse() {
+    }
+
+    public BulkResponse(List<BulkOperation> operations) {
+        this.operations = operations;
+    }
+
+    public List<String> getSchemas() {
+        return schemas;
+    }
+
+    public void setSchemas(List<String> schemas) {
+        this.schemas = schemas;
+    }
+
+    @JsonProperty("Operations")
+    public List<BulkOperation> getOperations() {
+        return operations;
+    }
+
+    @JsonProperty("Operations")
+    public void setOperations(List<BulkOperation> operations) {
+        this.operations = operations;
+    }
+
+}
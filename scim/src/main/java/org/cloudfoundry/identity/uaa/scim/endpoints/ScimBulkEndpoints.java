@@ -0,0 +1,359 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
+import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
+import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
+import org.cloudfoundry.identity.uaa.scim.ScimGroup;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.scim.event.ScimEventPublisher;
+import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.View;
+
+/**
+ * A SCIM 2.0 style bulk endpoint for provisioning many users and groups in
+ * one request. Supports creating users (POST /Users), creating groups (POST
+ * /Groups) and adding members to existing groups (PATCH /Groups/{id}).
+ * <p>
+ * Consecutive user creations are grouped into batches that are validated,
+ * hashed in parallel and inserted in a single transaction. If a batch fails
+ * its users are created one at a time instead, so that every operation still
+ * gets its own result. Group members are added in a single batch per group,
+ * and may refer to users or groups created earlier in the same request as
+ * "bulkId:" followed by their bulk id.
+ */
+@Controller
+@ManagedResource
+public class ScimBulkEndpoints {
+
+    public static final String BULK_ID_PREFIX = "bulkId:";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ScimUserProvisioning userProvisioning;
+
+    private final ScimGroupProvisioning groupProvisioning;
+
+    private final ScimGroupMembershipManager membershipManager;
+
+    private ApprovalStore approvalStore;
+
+    private ScimEventPublisher eventPublisher = new ScimEventPublisher();
+
+    private int maxOperations = 1000;
+
+    private int batchSize = 100;
+
+    private final AtomicLong operations = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private Map<Class<? extends Exception>, HttpStatus> statuses = new HashMap<Class<? extends Exception>, HttpStatus>();
+
+    private HttpMessageConverter<?>[] messageConverters = new RestTemplate().getMessageConverters().toArray(
+                    new HttpMessageConverter<?>[0]);
+
+    public ScimBulkEndpoints(ScimUserProvisioning userProvisioning, ScimGroupProvisioning groupProvisioning,
+                    ScimGroupMembershipManager membershipManager) {
+        this.userProvisioning = userProvisioning;
+        this.groupProvisioning = groupProvisioning;
+        this.membershipManager = membershipManager;
+    }
+
+    public void setApprovalStore(ApprovalStore approvalStore) {
+        this.approvalStore = approvalStore;
+    }
+
+    /**
+     * The publisher of group events. User events are published by the user
+     * provisioning.
+     */
+    public void setScimEventPublisher(ScimEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * @param maxOperations the maximum number of operations in one request
+     *            (default 1000)
+     */
+    public void setMaxOperations(int maxOperations) {
+        Assert.isTrue(maxOperations > 0, "maxOperations must be positive");
+        this.maxOperations = maxOperations;
+    }
+
+    /**
+     * @param batchSize the maximum number of users created in one batch
+     *            (default 100)
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    public void setStatuses(Map<Class<? extends Exception>, HttpStatus> statuses) {
+        this.statuses = statuses;
+    }
+
+    public void setMessageConverters(HttpMessageConverter<?>[] messageConverters) {
+        this.messageConverters = messageConverters;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Bulk Operation Count (Since Startup)")
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Bulk Operation Failure Count (Since Startup)")
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @RequestMapping(value = "/Bulk", method = RequestMethod.POST)
+    @ResponseBody
+    public BulkResponse bulk(@RequestBody BulkRequest request) {
+        List<BulkOperation> requested = request.getOperations() == null ? Collections.<BulkOperation> emptyList()
+                        : request.getOperations();
+        if (requested.size() > maxOperations) {
+            throw new ScimException("Too many operations: " + requested.size() + ", the maximum is " + maxOperations,
+                            HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
+        int failOnErrors = request.getFailOnErrors() == null || request.getFailOnErrors() <= 0 ? Integer.MAX_VALUE
+                        : request.getFailOnErrors();
+
+        Map<String, String> bulkIds = new HashMap<String, String>();
+        List<BulkOperation> results = new ArrayList<BulkOperation>();
+        int errors = 0;
+        // operations before this index are only run one at a time, because
+        // their batch failed
+        int unbatched = 0;
+        int i = 0;
+        while (i < requested.size() && errors < failOnErrors) {
+            if (i >= unbatched && isCreateUser(requested.get(i))) {
+                int end = i + 1;
+                while (end < requested.size() && end - i < batchSize && isCreateUser(requested.get(end))) {
+                    end++;
+                }
+                if (end - i > 1) {
+                    List<BulkOperation> batch = createUsers(requested.subList(i, end), bulkIds);
+                    if (batch != null) {
+                        results.addAll(batch);
+                        i = end;
+                        continue;
+                    }
+                    unbatched = end;
+                }
+            }
+            BulkOperation result = execute(requested.get(i), bulkIds);
+            if (result.getResponse() != null) {
+                errors++;
+            }
+            results.add(result);
+            i++;
+        }
+        operations.addAndGet(results.size());
+        failures.addAndGet(errors);
+        return new BulkResponse(results);
+    }
+
+    @ExceptionHandler
+    public View handleException(Exception t, HttpServletRequest request) throws ScimException {
+        ScimException e = getScimException(t);
+        // User can supply trace=true or just trace (unspecified) to get stack
+        // traces
+        boolean trace = request.getParameter("trace") != null && !request.getParameter("trace").equals("false");
+        return new ConvertingExceptionView(new ResponseEntity<ExceptionReport>(new ExceptionReport(e, trace),
+                        e.getStatus()), messageConverters);
+    }
+
+    private static boolean isCreateUser(BulkOperation operation) {
+        return "POST".equalsIgnoreCase(operation.getMethod()) && "/Users".equals(operation.getPath());
+    }
+
+    /**
+     * @return the results, or null if the batch failed and nothing was
+     *         created
+     */
+    private List<BulkOperation> createUsers(List<BulkOperation> batch, Map<String, String> bulkIds) {
+        List<ScimUser> users = new ArrayList<ScimUser>();
+        List<String> passwords = new ArrayList<String>();
+        List<ScimUser> created;
+        try {
+            for (BulkOperation operation : batch) {
+                ScimUser user = read(operation, ScimUser.class);
+                users.add(user);
+                passwords.add(user.getPassword() == null ? ScimUserEndpoints.generatePassword() : user.getPassword());
+            }
+            created = userProvisioning.createUsers(users, passwords);
+        } catch (RuntimeException e) {
+            logger.debug("Batch of " + batch.size() + " users failed, creating them one at a time: " + e.getMessage());
+            return null;
+        }
+        List<BulkOperation> results = new ArrayList<BulkOperation>();
+        for (int i = 0; i < batch.size(); i++) {
+            addApprovals(users.get(i), created.get(i));
+            results.add(created(batch.get(i), "/Users/" + created.get(i).getId(), bulkIds));
+        }
+        return results;
+    }
+
+    private BulkOperation execute(BulkOperation operation, Map<String, String> bulkIds) {
+        try {
+            String method = operation.getMethod() == null ? "" : operation.getMethod().toUpperCase();
+            String path = operation.getPath() == null ? "" : operation.getPath();
+            if ("POST".equals(method) && "/Users".equals(path)) {
+                ScimUser user = read(operation, ScimUser.class);
+                ScimUser created = userProvisioning.createUser(user,
+                                user.getPassword() == null ? ScimUserEndpoints.generatePassword() : user.getPassword());
+                addApprovals(user, created);
+                return created(operation, "/Users/" + created.getId(), bulkIds);
+            }
+            if ("POST".equals(method) && "/Groups".equals(path)) {
+                ScimGroup group = read(operation, ScimGroup.class);
+                List<ScimGroupMember> members = resolve(group.getMembers(), bulkIds);
+                ScimGroup created = groupProvisioning.create(group);
+                try {
+                    membershipManager.addMembers(created.getId(), members);
+                } catch (ScimException e) {
+                    groupProvisioning.delete(created.getId(), created.getVersion());
+                    throw new InvalidScimResourceException("Invalid group member: " + e.getMessage());
+                }
+                created.setMembers(membershipManager.getMembers(created.getId()));
+                eventPublisher.groupCreated(created);
+                return created(operation, "/Groups/" + created.getId(), bulkIds);
+            }
+            if ("PATCH".equals(method) && path.startsWith("/Groups/") && path.indexOf('/', 8) < 0) {
+                String groupId = resolve(path.substring(8), bulkIds);
+                ScimGroup group = read(operation, ScimGroup.class);
+                membershipManager.addMembers(groupId, resolve(group.getMembers(), bulkIds));
+                ScimGroup updated = groupProvisioning.retrieve(groupId);
+                updated.setMembers(membershipManager.getMembers(groupId));
+                eventPublisher.groupModified(updated);
+                return result(operation, "/Groups/" + groupId, HttpStatus.OK);
+            }
+            throw new ScimException("Unsupported operation: " + operation.getMethod() + " " + operation.getPath(),
+                            HttpStatus.BAD_REQUEST);
+        } catch (RuntimeException e) {
+            ScimException scimException = getScimException(e);
+            BulkOperation result = result(operation, null, scimException.getStatus());
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("error", UaaStringUtils.getErrorName(scimException));
+            response.put("message", scimException.getMessage());
+            result.setResponse(response);
+            return result;
+        }
+    }
+
+    private static BulkOperation created(BulkOperation operation, String location, Map<String, String> bulkIds) {
+        if (operation.getBulkId() != null) {
+            bulkIds.put(operation.getBulkId(), location.substring(location.lastIndexOf('/') + 1));
+        }
+        return result(operation, location, HttpStatus.CREATED);
+    }
+
+    private static BulkOperation result(BulkOperation operation, String location, HttpStatus status) {
+        BulkOperation result = new BulkOperation(operation.getMethod(), operation.getBulkId(), null, null);
+        result.setLocation(location);
+        result.setStatus(String.valueOf(status.value()));
+        return result;
+    }
+
+    private void addApprovals(ScimUser user, ScimUser created) {
+        if (user.getApprovals() != null && approvalStore != null) {
+            for (Approval approval : user.getApprovals()) {
+                approval.setUserId(created.getId());
+                approvalStore.addApproval(approval);
+            }
+        }
+    }
+
+    private static List<ScimGroupMember> resolve(List<ScimGroupMember> members, Map<String, String> bulkIds) {
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        for (ScimGroupMember member : members) {
+            member.setMemberId(resolve(member.getMemberId(), bulkIds));
+        }
+        return members;
+    }
+
+    private static String resolve(String id, Map<String, String> bulkIds) {
+        if (id == null || !id.startsWith(BULK_ID_PREFIX)) {
+            return id;
+        }
+        String resolved = bulkIds.get(id.substring(BULK_ID_PREFIX.length()));
+        if (resolved == null) {
+            throw new InvalidScimResourceException("Unknown bulk id: " + id);
+        }
+        return resolved;
+    }
+
+    private static <T> T read(BulkOperation operation, Class<T> type) {
+        if (operation.getData() == null) {
+            throw new InvalidScimResourceException("Missing data");
+        }
+        try {
+            return JsonUtils.readValue(JsonUtils.writeValueAsString(operation.getData()), type);
+        } catch (JsonUtils.JsonUtilException e) {
+            throw new InvalidScimResourceException("Invalid data: " + e.getCause().getMessage());
+        }
+    }
+
+    private ScimException getScimException(Exception t) {
+        if (t instanceof ScimException) {
+            return (ScimException) t;
+        }
+        Class<?> clazz = t.getClass();
+        for (Class<?> key : statuses.keySet()) {
+            if (key.isAssignableFrom(clazz)) {
+                return new ScimException(t.getMessage(), t, statuses.get(key));
+            }
+        }
+        return new ScimException("Unexpected error", t, HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+}
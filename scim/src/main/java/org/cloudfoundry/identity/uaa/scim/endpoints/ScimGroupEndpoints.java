@@ -16,8 +16,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
 import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.StreamingSearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMember;
@@ -55,6 +58,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -80,10 +84,21 @@ public class ScimGroupEndpoints {
 
     private SecurityContextAccessor securityContextAccessor = new DefaultSecurityContextAccessor();
 
+    private boolean countCursorResults = true;
+
     public void setSecurityContextAccessor(SecurityContextAccessor securityContextAccessor) {
         this.securityContextAccessor = securityContextAccessor;
     }
 
+    /**
+     * @param countCursorResults whether queries paged with a cursor count the
+     *            results when reading the first page (default true), if not
+     *            the total is only a lower bound
+     */
+    public void setCountCursorResults(boolean countCursorResults) {
+        this.countCursorResults = countCursorResults;
+    }
+
     public void setStatuses(Map<Class<? extends Exception>, HttpStatus> statuses) {
         this.statuses = statuses;
     }
@@ -141,6 +156,11 @@ public class ScimGroupEndpoints {
         return response;
     }
 
+    public SearchResults<?> listGroups(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) {
+        return listGroups(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
     @RequestMapping(value = { "/Groups" }, method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listGroups(
@@ -149,28 +169,97 @@ public class ScimGroupEndpoints {
                     @RequestParam(required = false, defaultValue = "created") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
         List<ScimGroup> result;
-        try {
-            result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
-        } catch (IllegalArgumentException e) {
-            throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+        int totalResults;
+        String nextCursor = null;
+        if (cursor != null) {
+            CursorPage<ScimGroup> page;
+            try {
+                page = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder), cursor, count,
+                                countCursorResults);
+            } catch (IllegalArgumentException e) {
+                throw new ScimException(e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+            // the page is filtered below, so it can have fewer than count
+            // groups even if there are more
+            result = page.getResources();
+            startIndex = page.getStartIndex();
+            nextCursor = page.getNextCursor();
+            totalResults = page.getTotalResults();
+        } else {
+            try {
+                result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+            }
+            totalResults = result.size();
         }
 
+        int fromIndex = cursor != null ? 1 : startIndex;
         List<ScimGroup> input = securityContextAccessor.isUser() ?
-                        filterForCurrentUser(result, startIndex, count, securityContextAccessor.getUserId())
-                        : filterForCurrentUser(result, startIndex, count, null);
+                        filterForCurrentUser(result, fromIndex, count, securityContextAccessor.getUserId())
+                        : filterForCurrentUser(result, fromIndex, count, null);
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             return new SearchResults<ScimGroup>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
-                            result.size());
+                            totalResults, nextCursor);
         }
 
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            Arrays.asList(ScimCore.SCHEMAS));
+            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, totalResults, attributes,
+                            new SimpleAttributeNameMapper(Collections.<String, String> emptyMap()),
+                            Arrays.asList(ScimCore.SCHEMAS), nextCursor);
+        } catch (ExpressionException e) {
+            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Lists groups like {@link #listGroups(String, String, String, String, int, int, String)}
+     * but writes them to the response batch by batch while they are read, for
+     * exports of pages too large to hold in memory.
+     */
+    @RequestMapping(value = { "/Groups" }, method = RequestMethod.GET, params = "stream=true")
+    @ResponseBody
+    public StreamingSearchResults<ScimGroup> streamGroups(
+                    @RequestParam(value = "attributes", required = false) String attributesCommaSeparated,
+                    @RequestParam(required = false, defaultValue = "id pr") String filter,
+                    @RequestParam(required = false, defaultValue = "created") String sortBy,
+                    @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
+                    @RequestParam(required = false, defaultValue = "1") int startIndex,
+                    @RequestParam(required = false, defaultValue = "100") int count) {
+
+        final String userId = securityContextAccessor.isUser() ? securityContextAccessor.getUserId() : null;
+        String[] attributes = null;
+        if (StringUtils.hasLength(attributesCommaSeparated)) {
+            attributes = attributesCommaSeparated.split(",");
+        }
+        try {
+            return new StreamingSearchResults<ScimGroup>(Arrays.asList(ScimCore.SCHEMAS), dao, filter, sortBy,
+                            "ascending".equalsIgnoreCase(sortOrder), startIndex, count, attributes,
+                            new SimpleAttributeNameMapper(Collections.<String, String> emptyMap())) {
+                @Override
+                protected List<?> process(List<ScimGroup> groups) {
+                    List<ScimGroup> readable = new ArrayList<ScimGroup>();
+                    for (ScimGroup group : groups) {
+                        group.setMembers(membershipManager.getMembers(group.getId()));
+                        if (isReaderMember(group, userId)) {
+                            readable.add(group);
+                        }
+                    }
+                    return readable;
+                }
+
+                @Override
+                protected int getReadLimit() {
+                    // keep reading past the groups the user can't see
+                    return userId == null ? super.getReadLimit() : Integer.MAX_VALUE;
+                }
+            };
         } catch (ExpressionException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
@@ -305,15 +394,12 @@ public class ScimGroupEndpoints {
     public ScimGroup createGroup(@RequestBody ScimGroup group, HttpServletResponse httpServletResponse) {
         ScimGroup created = dao.create(group);
         if (group.getMembers() != null) {
-            for (ScimGroupMember member : group.getMembers()) {
-                try {
-                    membershipManager.addMember(created.getId(), member);
-                } catch (ScimException ex) {
-                    logger.warn("Attempt to add invalid member: " + member.getMemberId() + " to group: "
-                                    + group.getId());
-                    dao.delete(created.getId(), created.getVersion());
-                    throw new InvalidScimResourceException("Invalid group member: " + member.getMemberId());
-                }
+            try {
+                membershipManager.addMembers(created.getId(), group.getMembers());
+            } catch (ScimException ex) {
+                logger.warn("Attempt to add invalid members to group: " + created.getId() + ", " + ex.getMessage());
+                dao.delete(created.getId(), created.getVersion());
+                throw new InvalidScimResourceException("Invalid group member: " + ex.getMessage());
             }
         }
         created.setMembers(membershipManager.getMembers(created.getId()));
@@ -33,9 +33,11 @@ import org.cloudfoundry.identity.uaa.error.ExceptionReport;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.StreamingSearchResults;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -87,6 +89,8 @@ import org.springframework.web.servlet.View;
 @ManagedResource
 public class ScimUserEndpoints implements InitializingBean {
     private static final String USER_APPROVALS_FILTER_TEMPLATE = "user_id eq \"%s\"";
+
+    private static final int MAX_USERS_PER_APPROVALS_QUERY = 100;
     public static final String E_TAG = "ETag";
 
     private ScimUserProvisioning dao;
@@ -97,6 +101,8 @@ public class ScimUserEndpoints implements InitializingBean {
 
     private ApprovalStore approvalStore;
 
+    private boolean countCursorResults = true;
+
     private static final Random passwordGenerator = new SecureRandom();
 
     private final Map<String, AtomicInteger> errorCounts = new ConcurrentHashMap<String, AtomicInteger>();
@@ -129,7 +135,7 @@ public class ScimUserEndpoints implements InitializingBean {
         this.statuses = statuses;
     }
 
-    private static String generatePassword() {
+    static String generatePassword() {
         byte[] bytes = new byte[16];
         passwordGenerator.nextBytes(bytes);
         return new String(Hex.encode(bytes));
@@ -244,6 +250,11 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
+    public SearchResults<?> findUsers(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) {
+        return findUsers(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
     @RequestMapping(value = "/Users", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -252,40 +263,57 @@ public class ScimUserEndpoints implements InitializingBean {
                     @RequestParam(required = false) String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
         if (startIndex < 1) {
             startIndex = 1;
         }
 
         List<ScimUser> input = new ArrayList<ScimUser>();
-        List<ScimUser> result;
-        try {
-            result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
-            for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
-                    syncGroups(user);
-                }
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
-                    syncApprovals(user);
-                }
-                input.add(user);
+        int totalResults;
+        String nextCursor = null;
+        if (cursor != null) {
+            CursorPage<ScimUser> page;
+            try {
+                page = dao.query(filter, sortBy, sortOrder.equals("ascending"), cursor, count, countCursorResults);
+            } catch (IllegalArgumentException e) {
+                throw new ScimException(e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+            input.addAll(page.getResources());
+            startIndex = page.getStartIndex();
+            nextCursor = page.getNextCursor();
+            totalResults = page.getTotalResults();
+        } else {
+            List<ScimUser> result;
+            try {
+                result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
+                input.addAll(UaaPagingUtils.subList(result, startIndex, count));
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
             }
-        } catch (IllegalArgumentException e) {
-            throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+            totalResults = result.size();
+        }
+        // the whole page is enriched at once rather than user by user
+        if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
+            syncGroups(input);
+        }
+        if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
+            syncApprovals(input);
         }
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             // Return all user data
-            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, result.size());
+            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
+                            totalResults, nextCursor);
         }
 
         AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap(
                         "emails\\.(.*)", "emails.![$1]"));
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            mapper, Arrays.asList(ScimCore.SCHEMAS));
+            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, totalResults, attributes,
+                            mapper, Arrays.asList(ScimCore.SCHEMAS), nextCursor);
         } catch (SpelParseException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         } catch (SpelEvaluationException e) {
@@ -293,6 +321,49 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
+    /**
+     * Lists users like {@link #findUsers(String, String, String, String, int, int, String)}
+     * but writes them to the response batch by batch while they are read, for
+     * exports of pages too large to hold in memory.
+     */
+    @RequestMapping(value = "/Users", method = RequestMethod.GET, params = "stream=true")
+    @ResponseBody
+    public StreamingSearchResults<ScimUser> streamUsers(
+                    @RequestParam(value = "attributes", required = false) final String attributesCommaSeparated,
+                    @RequestParam(required = false, defaultValue = "id pr") String filter,
+                    @RequestParam(required = false) String sortBy,
+                    @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
+                    @RequestParam(required = false, defaultValue = "1") int startIndex,
+                    @RequestParam(required = false, defaultValue = "100") int count) {
+
+        String[] attributes = null;
+        AttributeNameMapper mapper = null;
+        if (StringUtils.hasLength(attributesCommaSeparated)) {
+            attributes = attributesCommaSeparated.split(",");
+            mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap("emails\\.(.*)",
+                            "emails.![$1]"));
+        }
+        try {
+            return new StreamingSearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), dao, filter, sortBy,
+                            sortOrder.equals("ascending"), startIndex, count, attributes, mapper) {
+                @Override
+                protected List<?> process(List<ScimUser> users) {
+                    if (attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups")
+                                    || attributesCommaSeparated.isEmpty()) {
+                        syncGroups(users);
+                    }
+                    if (attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals")
+                                    || attributesCommaSeparated.isEmpty()) {
+                        syncApprovals(users);
+                    }
+                    return users;
+                }
+            };
+        } catch (SpelParseException e) {
+            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+        }
+    }
+
     private ScimUser syncGroups(ScimUser user) {
         if (user == null) {
             return user;
@@ -300,6 +371,27 @@ public class ScimUserEndpoints implements InitializingBean {
 
         Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false);
         Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(), true);
+        return syncGroups(user, directGroups, indirectGroups);
+    }
+
+    private void syncGroups(List<ScimUser> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        List<String> ids = getIds(users);
+        Map<String, Set<ScimGroup>> directGroups = membershipManager.getGroupsWithMembers(ids, false);
+        Map<String, Set<ScimGroup>> indirectGroups = membershipManager.getGroupsWithMembers(ids, true);
+        for (ScimUser user : users) {
+            syncGroups(user, getGroups(directGroups, user.getId()), getGroups(indirectGroups, user.getId()));
+        }
+    }
+
+    private static Set<ScimGroup> getGroups(Map<String, Set<ScimGroup>> groups, String memberId) {
+        Set<ScimGroup> result = groups == null ? null : groups.get(memberId);
+        return result == null ? new HashSet<ScimGroup>() : new HashSet<ScimGroup>(result);
+    }
+
+    private ScimUser syncGroups(ScimUser user, Set<ScimGroup> directGroups, Set<ScimGroup> indirectGroups) {
         indirectGroups.removeAll(directGroups);
         Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
         for (ScimGroup group : directGroups) {
@@ -319,6 +411,47 @@ public class ScimUserEndpoints implements InitializingBean {
         }
         Set<Approval> approvals = new HashSet<Approval>(
             approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
+        return syncApprovals(user, approvals);
+    }
+
+    private void syncApprovals(List<ScimUser> users) {
+        if (users.isEmpty() || approvalStore == null) {
+            return;
+        }
+        Map<String, Set<Approval>> approvals = new HashMap<String, Set<Approval>>();
+        List<String> ids = getIds(users);
+        for (int i = 0; i < ids.size(); i += MAX_USERS_PER_APPROVALS_QUERY) {
+            StringBuilder filter = new StringBuilder();
+            for (String id : ids.subList(i, Math.min(ids.size(), i + MAX_USERS_PER_APPROVALS_QUERY))) {
+                if (filter.length() > 0) {
+                    filter.append(" or ");
+                }
+                filter.append(String.format(USER_APPROVALS_FILTER_TEMPLATE, id));
+            }
+            for (Approval approval : approvalStore.getApprovals(filter.toString())) {
+                Set<Approval> userApprovals = approvals.get(approval.getUserId());
+                if (userApprovals == null) {
+                    userApprovals = new HashSet<Approval>();
+                    approvals.put(approval.getUserId(), userApprovals);
+                }
+                userApprovals.add(approval);
+            }
+        }
+        for (ScimUser user : users) {
+            Set<Approval> userApprovals = approvals.get(user.getId());
+            syncApprovals(user, userApprovals == null ? Collections.<Approval> emptySet() : userApprovals);
+        }
+    }
+
+    private static List<String> getIds(List<ScimUser> users) {
+        List<String> ids = new ArrayList<String>();
+        for (ScimUser user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
+    }
+
+    private ScimUser syncApprovals(ScimUser user, Set<Approval> approvals) {
         Set<Approval> active = new HashSet<Approval>(approvals);
         for (Approval approval : approvals) {
             if (!approval.isCurrentlyActive()) {
@@ -378,6 +511,15 @@ public class ScimUserEndpoints implements InitializingBean {
         this.approvalStore = approvalStore;
     }
 
+    /**
+     * @param countCursorResults whether queries paged with a cursor count the
+     *            results when reading the first page (default true), if not
+     *            the total is only a lower bound
+     */
+    public void setCountCursorResults(boolean countCursorResults) {
+        this.countCursorResults = countCursorResults;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.notNull(dao, "ScimUserProvisioning must be set");
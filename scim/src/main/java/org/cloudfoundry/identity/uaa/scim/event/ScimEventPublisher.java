@@ -36,6 +36,12 @@ public class ScimEventPublisher implements ApplicationEventPublisherAware {
         publish(UserModifiedEvent.userCreated(user.getId(), user.getUserName()));
     }
 
+    public void usersCreated(List<ScimUser> users) {
+        for (ScimUser user : users) {
+            userCreated(user);
+        }
+    }
+
     public void userVerified(ScimUser user) {
         publish(UserModifiedEvent.userVerified(user.getId(), user.getUserName()));
     }
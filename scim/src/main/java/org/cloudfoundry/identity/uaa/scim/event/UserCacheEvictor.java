@@ -0,0 +1,69 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.event;
+
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.user.CachingUaaUserDatabase;
+
+/**
+ * Aspect that keeps a {@link CachingUaaUserDatabase} in step with changes made
+ * through the SCIM provisioning layer. Unlike the SCIM audit events, which are
+ * only published by the endpoints, this covers every caller of the
+ * provisioning and membership beans (bootstrap, external logins, password
+ * changes and so on).
+ *
+ */
+public class UserCacheEvictor {
+
+    private final CachingUaaUserDatabase userDatabase;
+
+    public UserCacheEvictor(CachingUaaUserDatabase userDatabase) {
+        this.userDatabase = userDatabase;
+    }
+
+    public void userChanged(String id) {
+        userDatabase.evict(id);
+    }
+
+    public void memberChanged(ScimGroupMember member) {
+        if (member == null || member.getType() == ScimGroupMember.Type.GROUP) {
+            // nested groups change the authorities of every transitive member
+            userDatabase.evictAll();
+        } else {
+            userDatabase.evict(member.getMemberId());
+        }
+    }
+
+    public void membersChanged(List<ScimGroupMember> members) {
+        if (members == null) {
+            userDatabase.evictAll();
+            return;
+        }
+        for (ScimGroupMember member : members) {
+            memberChanged(member);
+        }
+    }
+
+    public void membershipsSynchronized(String id, int changed) {
+        if (changed > 0) {
+            userDatabase.evict(id);
+        }
+    }
+
+    public void allChanged() {
+        userDatabase.evictAll();
+    }
+
+}
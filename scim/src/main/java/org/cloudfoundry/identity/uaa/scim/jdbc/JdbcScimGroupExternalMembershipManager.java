@@ -30,15 +30,33 @@ import org.springframework.jca.cci.InvalidResultSetAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.util.Assert;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Stores the mappings between groups and external groups in the database.
+ * <p>
+ * Lookups by external group, which happen for every external group of a user
+ * on every login, are served from an in memory index of all mappings. The
+ * index is updated in place when mappings are added or removed through this
+ * instance and reloaded when a cheap version query shows that the mappings or
+ * the mapped groups were changed by another node, which is checked at most
+ * once per refresh interval.
+ */
+@ManagedResource
 public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<ScimGroupExternalMember> implements
                 ScimGroupExternalMembershipManager {
 
@@ -79,6 +97,10 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         String.format("select %s from %s where g.id=? and %s and lower(external_group) like lower(?)",
             JOIN_EXTERNAL_GROUP_MAPPING_FIELDS, JOIN_GROUP_TABLE, JOIN_WHERE_ID);
 
+    public static final String GET_EXTERNAL_GROUP_MAPPINGS_VERSION_SQL =
+        String.format("select count(*), max(gm.added), max(g.lastModified) from %s where %s",
+            JOIN_GROUP_TABLE, JOIN_WHERE_ID);
+
     public static final String DELETE_EXTERNAL_GROUP_MAPPING_SQL =
         String.format("delete from %s where group_id=? and lower(external_group)=lower(?)",
             EXTERNAL_GROUP_MAPPING_TABLE);
@@ -93,6 +115,10 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
 
     private ScimGroupProvisioning scimGroupProvisioning;
 
+    private int refreshIntervalSeconds = 10;
+
+    private volatile MappingIndex index;
+
     public JdbcScimGroupExternalMembershipManager(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
         super(jdbcTemplate, pagingListFactory, new ScimGroupExternalMemberRowMapper());
         Assert.notNull(jdbcTemplate);
@@ -130,7 +156,9 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                 // group.getDisplayName() + " and external group " +
                 // externalGroup + " already exists");
             }
-            return getExternalGroupMap(groupId, externalGroup);
+            ScimGroupExternalMember result = getExternalGroupMap(groupId, externalGroup);
+            updateIndex(result, true);
+            return result;
         } else {
             throw new ScimResourceNotFoundException("Group does not exist");
         }
@@ -150,6 +178,7 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
                 }
             });
             if (count==1) {
+                updateIndex(result, false);
                 return result;
             } else if (count==0) {
                 throw new ScimResourceNotFoundException("No group mappings deleted.");
@@ -192,6 +221,16 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
     @Override
     public List<ScimGroupExternalMember> getExternalGroupMapsByExternalGroup(final String externalGroup)
                     throws ScimResourceNotFoundException {
+        if (refreshIntervalSeconds > 0) {
+            List<ScimGroupExternalMember> result = new ArrayList<ScimGroupExternalMember>();
+            List<ScimGroupExternalMember> members = getIndex().mappings.get(getIndexKey(externalGroup));
+            if (members != null) {
+                for (ScimGroupExternalMember member : members) {
+                    result.add(copy(member));
+                }
+            }
+            return result;
+        }
         return jdbcTemplate.query(GET_GROUPS_BY_EXTERNAL_GROUP_MAPPING_SQL, new PreparedStatementSetter() {
             @Override
             public void setValues(PreparedStatement ps) throws SQLException {
@@ -208,6 +247,107 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
             getBaseSqlQuery() + (containsWhereClause ? " and " : " where ") + where.getSql();
     }
 
+    @ManagedOperation(description = "Checks the external group mappings for changes made by other nodes on the next lookup")
+    public void refresh() {
+        MappingIndex current = index;
+        if (current != null) {
+            current.checkedAt = Long.MIN_VALUE / 2;
+        }
+    }
+
+    private MappingIndex getIndex() {
+        MappingIndex current = index;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.checkedAt < refreshIntervalSeconds * 1000l) {
+            return current;
+        }
+        synchronized (this) {
+            current = index;
+            if (current != null && now - current.checkedAt < refreshIntervalSeconds * 1000l) {
+                return current;
+            }
+            String version = getMappingsVersion();
+            if (current != null && version.equals(current.version)) {
+                current.checkedAt = now;
+                return current;
+            }
+            Map<String, List<ScimGroupExternalMember>> mappings = new HashMap<String, List<ScimGroupExternalMember>>();
+            for (ScimGroupExternalMember member : jdbcTemplate.query(GET_EXTERNAL_GROUP_MAP_SQL, rowMapper)) {
+                add(mappings, member);
+            }
+            logger.debug("Loaded the external group mappings, version " + version);
+            index = new MappingIndex(mappings, version, now);
+            return index;
+        }
+    }
+
+    private String getMappingsVersion() {
+        return jdbcTemplate.queryForObject(GET_EXTERNAL_GROUP_MAPPINGS_VERSION_SQL, new RowMapper<String>() {
+            @Override
+            public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return rs.getInt(1) + "|" + rs.getTimestamp(2) + "|" + rs.getTimestamp(3);
+            }
+        });
+    }
+
+    private synchronized void updateIndex(ScimGroupExternalMember member, boolean added) {
+        MappingIndex current = index;
+        if (current == null || member == null) {
+            return;
+        }
+        // copy on write, so that lookups never see a partial update, and
+        // keep the version so that the next check still reloads the index
+        Map<String, List<ScimGroupExternalMember>> mappings = new HashMap<String, List<ScimGroupExternalMember>>(current.mappings);
+        String key = getIndexKey(member.getExternalGroup());
+        List<ScimGroupExternalMember> members = new ArrayList<ScimGroupExternalMember>();
+        if (mappings.containsKey(key)) {
+            for (ScimGroupExternalMember existing : mappings.get(key)) {
+                if (!existing.getGroupId().equals(member.getGroupId())) {
+                    members.add(existing);
+                }
+            }
+        }
+        mappings.put(key, Collections.unmodifiableList(members));
+        if (added) {
+            add(mappings, copy(member));
+        }
+        index = new MappingIndex(mappings, current.version, current.checkedAt);
+    }
+
+    private static void add(Map<String, List<ScimGroupExternalMember>> mappings, ScimGroupExternalMember member) {
+        String key = getIndexKey(member.getExternalGroup());
+        List<ScimGroupExternalMember> members = new ArrayList<ScimGroupExternalMember>();
+        if (mappings.containsKey(key)) {
+            members.addAll(mappings.get(key));
+        }
+        members.add(member);
+        mappings.put(key, Collections.unmodifiableList(members));
+    }
+
+    private static String getIndexKey(String externalGroup) {
+        return externalGroup == null ? null : externalGroup.toLowerCase(Locale.US);
+    }
+
+    private static ScimGroupExternalMember copy(ScimGroupExternalMember member) {
+        ScimGroupExternalMember result = new ScimGroupExternalMember(member.getGroupId(), member.getExternalGroup());
+        result.setDisplayName(member.getDisplayName());
+        return result;
+    }
+
+    private static final class MappingIndex {
+        private final Map<String, List<ScimGroupExternalMember>> mappings;
+
+        private final String version;
+
+        private volatile long checkedAt;
+
+        private MappingIndex(Map<String, List<ScimGroupExternalMember>> mappings, String version, long checkedAt) {
+            this.mappings = mappings;
+            this.version = version;
+            this.checkedAt = checkedAt;
+        }
+    }
+
     private ScimGroupExternalMember getExternalGroupMap(final String groupId, final String externalGroup)
                     throws ScimResourceNotFoundException {
         try {
@@ -240,6 +380,16 @@ public class JdbcScimGroupExternalMembershipManager extends AbstractQueryable<Sc
         this.scimGroupProvisioning = scimGroupProvisioning;
     }
 
+    /**
+     * @param refreshIntervalSeconds how often to check whether the mappings
+     *            were changed by another node, 0 or less to look up external
+     *            groups in the database every time
+     */
+    public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+        this.index = null;
+    }
+
     @Override
     protected String getBaseSqlQuery() {
         return GET_EXTERNAL_GROUP_MAP_SQL;
@@ -17,10 +17,15 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
@@ -31,6 +36,7 @@ import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.ScimMeta;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
@@ -39,13 +45,35 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundExceptio
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+/**
+ * Stores group memberships in the database.
+ * <p>
+ * Transitive lookups load the direct groups of the members from the database
+ * and follow nested groups in an in memory graph of all group-in-group
+ * memberships. The graph is updated in place when memberships are changed
+ * through this instance and reloaded when a cheap version query shows that
+ * nested groups were changed by another node, which is checked at most once
+ * per refresh interval.
+ */
+@ManagedResource
 public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupMember> implements ScimGroupMembershipManager {
 
     private JdbcTemplate jdbcTemplate;
@@ -65,8 +93,30 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public static final String GET_MEMBERS_SQL = String.format("select %s from %s where group_id=?", MEMBERSHIP_FIELDS,
                     MEMBERSHIP_TABLE);
 
-    public static final String GET_GROUPS_BY_MEMBER_SQL = String.format(
-                    "select distinct(group_id) from %s where member_id=?", MEMBERSHIP_TABLE);
+    public static final String GET_GROUPS_BY_MEMBERS_SQL = String.format(
+                    "select m.member_id, g.id, g.displayName, g.created, g.lastModified, g.version from %s m, %s g "
+                                    + "where g.id = m.group_id and m.member_id in (:ids)", MEMBERSHIP_TABLE,
+                    JdbcScimGroupProvisioning.GROUP_TABLE);
+
+    public static final String GET_GROUPS_BY_IDS_SQL = String.format(
+                    "select id, displayName, created, lastModified, version from %s where id in (:ids)",
+                    JdbcScimGroupProvisioning.GROUP_TABLE);
+
+    public static final String GET_NESTED_GROUPS_SQL = String.format(
+                    "select member_id, group_id from %s where member_type='GROUP'", MEMBERSHIP_TABLE);
+
+    public static final String GET_NESTED_GROUPS_VERSION_SQL = String.format(
+                    "select count(*), max(added) from %s where member_type='GROUP'", MEMBERSHIP_TABLE);
+
+    public static final String GET_MEMBERSHIP_ORIGINS_SQL = String.format(
+                    "select group_id, origin from %s where member_id=?", MEMBERSHIP_TABLE);
+
+    public static final String GET_USER_IDS_SQL = "select id from users where id in (:ids)";
+
+    /**
+     * The maximum number of ids in a single in (...) clause
+     */
+    public static final int MAX_IDS_PER_QUERY = 100;
 
     public static final String GET_MEMBERS_WITH_AUTHORITY_SQL = String.format(
                     "select %s from %s where group_id=? and lower(authorities) like ?", MEMBERSHIP_FIELDS,
@@ -92,6 +142,12 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     private Set<ScimGroup> defaultUserGroups = new HashSet<ScimGroup>();
 
+    private final TransactionTemplate transactionTemplate;
+
+    private int refreshIntervalSeconds = 10;
+
+    private volatile NestingGraph graph;
+
     public void setDefaultUserGroups(Set<String> groupNames) {
         for (String name : groupNames) {
             List<ScimGroup> g = groupProvisioning.query(String.format("displayName co \"%s\"", name));
@@ -112,12 +168,46 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         this.groupProvisioning = groupProvisioning;
     }
 
+    /**
+     * @param refreshIntervalSeconds how often to check whether nested groups
+     *            were changed by another node, 0 or less to walk nested
+     *            groups in the database every time
+     */
+    public void setRefreshIntervalSeconds(int refreshIntervalSeconds) {
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+        this.graph = null;
+    }
+
+    @ManagedOperation(description = "Reloads the nested groups from the database")
+    public void rebuild() {
+        synchronized (this) {
+            graph = null;
+        }
+        if (refreshIntervalSeconds > 0) {
+            getGraph();
+        }
+    }
+
+    @ManagedOperation(description = "Checks the nested groups for changes made by other nodes on the next lookup")
+    public void refresh() {
+        NestingGraph current = graph;
+        if (current != null) {
+            current.checkedAt = Long.MIN_VALUE / 2;
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Nested Groups")
+    public int getNestedGroupCount() {
+        NestingGraph current = graph;
+        return current == null ? 0 : current.parents.size();
+    }
 
 
     public JdbcScimGroupMembershipManager(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory) {
         super(jdbcTemplate,pagingListFactory,new ScimGroupMemberRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
     }
 
     @Override
@@ -130,6 +220,15 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return MEMBERSHIP_TABLE;
     }
 
+    @Override
+    public int delete(String filter) {
+        int deleted = super.delete(filter);
+        synchronized (this) {
+            graph = null;
+        }
+        return deleted;
+    }
+
     @Override
     public ScimGroupMember addMember(final String groupId, final ScimGroupMember member)
                     throws ScimResourceNotFoundException, MemberAlreadyExistsException {
@@ -152,9 +251,95 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         } catch (DuplicateKeyException e) {
             throw new MemberAlreadyExistsException(member.getMemberId() + " is already part of the group: " + groupId);
         }
+        if (member.getType() == ScimGroupMember.Type.GROUP) {
+            updateGraph(member.getMemberId(), groupId, true);
+        }
         return getMemberById(groupId, member.getMemberId());
     }
 
+    @Override
+    public List<ScimGroupMember> addMembers(final String groupId, final List<ScimGroupMember> members)
+                    throws ScimResourceNotFoundException, MemberAlreadyExistsException {
+        if (!StringUtils.hasText(groupId)) {
+            throw new InvalidScimResourceException("group-id, member-id and member-type must be non-empty");
+        }
+        groupProvisioning.retrieve(groupId);
+        if (members.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Set<String> userIds = new HashSet<String>();
+        Set<String> groupIds = new HashSet<String>();
+        final List<String> authorities = new ArrayList<String>();
+        for (ScimGroupMember member : members) {
+            if (!StringUtils.hasText(member.getMemberId())) {
+                throw new InvalidScimResourceException("group-id, member-id and member-type must be non-empty");
+            }
+            if (groupId.equals(member.getMemberId())) {
+                throw new InvalidScimResourceException("trying to nest group within itself, aborting");
+            }
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                groupIds.add(member.getMemberId());
+            } else {
+                userIds.add(member.getMemberId());
+            }
+            authorities.add(getGroupAuthorities(member));
+        }
+        Set<String> missing = new HashSet<String>(userIds);
+        missing.removeAll(getUserIds(userIds));
+        Set<String> missingGroups = new HashSet<String>(groupIds);
+        missingGroups.removeAll(getGroups(groupIds).keySet());
+        missing.addAll(missingGroups);
+        if (!missing.isEmpty()) {
+            throw new ScimResourceNotFoundException("Members do not exist: " + missing);
+        }
+
+        final Timestamp now = new Timestamp(new Date().getTime());
+        try {
+            transactionTemplate.execute(new TransactionCallback<int[]>() {
+                @Override
+                public int[] doInTransaction(TransactionStatus status) {
+                    return jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ScimGroupMember member = members.get(i);
+                            ps.setString(1, groupId);
+                            ps.setString(2, member.getMemberId());
+                            ps.setString(3, (member.getType() == null ? ScimGroupMember.Type.USER : member.getType())
+                                            .toString());
+                            ps.setString(4, authorities.get(i));
+                            ps.setTimestamp(5, now);
+                            ps.setString(6, member.getOrigin());
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return members.size();
+                        }
+                    });
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            throw new MemberAlreadyExistsException("Some of the members are already part of the group: " + groupId);
+        }
+        logger.debug("Added " + members.size() + " members to group: " + groupId);
+
+        Set<String> added = new HashSet<String>();
+        for (ScimGroupMember member : members) {
+            added.add(member.getMemberId());
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                updateGraph(member.getMemberId(), groupId, true);
+            }
+        }
+        List<ScimGroupMember> result = new ArrayList<ScimGroupMember>();
+        for (ScimGroupMember member : getMembers(groupId)) {
+            if (added.contains(member.getMemberId())) {
+                result.add(member);
+            }
+        }
+        return result;
+    }
+
     @Override
     public List<ScimGroupMember> getMembers(final String groupId) throws ScimResourceNotFoundException {
         return jdbcTemplate.query(GET_MEMBERS_SQL, new PreparedStatementSetter() {
@@ -168,47 +353,341 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     @Override
     public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive)
                     throws ScimResourceNotFoundException {
-        List<ScimGroup> results = new ArrayList<ScimGroup>();
-        getGroupsWithMember(results, memberId, transitive);
-        if (isUser(memberId)) {
-            results.addAll(defaultUserGroups);
+        return getGroupsWithMembers(Collections.singleton(memberId), transitive).get(memberId);
+    }
+
+    @Override
+    public Map<String, Set<ScimGroup>> getGroupsWithMembers(Collection<String> memberIds, boolean transitive) {
+        Map<String, List<ScimGroup>> parents;
+        if (transitive && refreshIntervalSeconds > 0) {
+            parents = getNestedGroups(memberIds);
+        } else {
+            parents = getGroupsByLevel(memberIds, transitive);
+        }
+
+        Set<String> userIds = getUserIds(memberIds);
+        Map<String, Set<ScimGroup>> result = new LinkedHashMap<String, Set<ScimGroup>>();
+        for (String memberId : memberIds) {
+            Set<ScimGroup> groups = new HashSet<ScimGroup>();
+            LinkedList<String> members = new LinkedList<String>(Collections.singleton(memberId));
+            while (!members.isEmpty()) {
+                List<ScimGroup> found = parents.get(members.removeFirst());
+                if (found == null) {
+                    continue;
+                }
+                for (ScimGroup group : found) {
+                    // nested group cycles are only followed once
+                    if (groups.add(group) && transitive) {
+                        members.add(group.getId());
+                    }
+                }
+            }
+            if (userIds.contains(memberId)) {
+                groups.addAll(defaultUserGroups);
+            }
+            result.put(memberId, groups);
         }
-        return new HashSet<ScimGroup>(results);
+        return result;
     }
 
-    private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
-        if (results == null) {
-            return;
+    /**
+     * The direct groups of every member and, if transitive, of every group
+     * reached, loaded from the database one level of nesting at a time.
+     */
+    private Map<String, List<ScimGroup>> getGroupsByLevel(Collection<String> memberIds, boolean transitive) {
+        Map<String, List<ScimGroup>> parents = new HashMap<String, List<ScimGroup>>();
+        Set<String> pending = new HashSet<String>(memberIds);
+        while (!pending.isEmpty()) {
+            Map<String, List<ScimGroup>> found = getDirectGroups(pending);
+            Set<String> next = new HashSet<String>();
+            for (String memberId : pending) {
+                List<ScimGroup> groups = found.get(memberId);
+                parents.put(memberId, groups == null ? Collections.<ScimGroup> emptyList() : groups);
+                if (transitive && groups != null) {
+                    for (ScimGroup group : groups) {
+                        if (!parents.containsKey(group.getId())) {
+                            next.add(group.getId());
+                        }
+                    }
+                }
+            }
+            pending = next;
         }
-        List<String> groupIds;
-        try {
-            groupIds = jdbcTemplate.query(GET_GROUPS_BY_MEMBER_SQL, new PreparedStatementSetter() {
-                @Override
-                public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, memberId);
+        return parents;
+    }
+
+    /**
+     * The direct groups of every member from the database and the groups
+     * reachable from them from the nesting graph, so that only the groups
+     * themselves have to be loaded however deep the nesting is.
+     */
+    private Map<String, List<ScimGroup>> getNestedGroups(Collection<String> memberIds) {
+        Map<String, Set<String>> graph = getGraph().parents;
+        Map<String, List<ScimGroup>> parents = getDirectGroups(memberIds);
+
+        Map<String, ScimGroup> known = new HashMap<String, ScimGroup>();
+        for (List<ScimGroup> groups : parents.values()) {
+            for (ScimGroup group : groups) {
+                known.put(group.getId(), group);
+            }
+        }
+        Set<String> ancestors = new HashSet<String>();
+        LinkedList<String> pending = new LinkedList<String>(known.keySet());
+        while (!pending.isEmpty()) {
+            Set<String> groupIds = graph.get(pending.removeFirst());
+            if (groupIds == null) {
+                continue;
+            }
+            for (String groupId : groupIds) {
+                if (!known.containsKey(groupId) && ancestors.add(groupId)) {
+                    pending.add(groupId);
                 }
-            }, new SingleColumnRowMapper<String>(String.class));
-        } catch (EmptyResultDataAccessException ex) {
-            groupIds = Collections.<String> emptyList();
+            }
         }
+        known.putAll(getGroups(ancestors));
 
-        for (String groupId : groupIds) {
-            ScimGroup group;
-            try {
-                group = groupProvisioning.retrieve(groupId);
-            } catch (ScimResourceNotFoundException ex) {
+        // memberships of groups that no longer exist are not followed
+        for (String groupId : known.keySet()) {
+            if (parents.containsKey(groupId)) {
                 continue;
             }
-            if (!results.contains(group)) { // to ensure we don't go into
-                                            // infinite recursion caused by
-                                            // nested group cycles
-                results.add(group);
-                if (transitive) {
-                    getGroupsWithMember(results, groupId, transitive);
+            List<ScimGroup> groups = new ArrayList<ScimGroup>();
+            Set<String> groupIds = graph.get(groupId);
+            if (groupIds != null) {
+                for (String id : groupIds) {
+                    if (known.containsKey(id)) {
+                        groups.add(known.get(id));
+                    }
+                }
+            }
+            parents.put(groupId, groups);
+        }
+        return parents;
+    }
+
+    @Override
+    public int synchronizeMemberships(String memberId, String origin, Collection<String> groupIds) {
+        Set<String> incoming = new HashSet<String>(groupIds);
+        try {
+            return synchronize(memberId, origin, incoming);
+        } catch (DuplicateKeyException e) {
+            // a concurrent login of the same user added some of the memberships
+            // after they were read, the difference is taken again
+            logger.debug("Memberships of " + memberId + " changed while synchronizing, retrying");
+            return synchronize(memberId, origin, incoming);
+        }
+    }
+
+    private int synchronize(final String memberId, final String origin, final Set<String> incoming) {
+        return transactionTemplate.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                final List<String> removed = new ArrayList<String>();
+                final Set<String> existing = new HashSet<String>();
+                jdbcTemplate.query(GET_MEMBERSHIP_ORIGINS_SQL, new Object[] {memberId}, new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        String groupId = rs.getString(1);
+                        existing.add(groupId);
+                        if (origin.equals(rs.getString(2)) && !incoming.contains(groupId)) {
+                            removed.add(groupId);
+                        }
+                    }
+                });
+                final List<String> added = new ArrayList<String>(incoming);
+                added.removeAll(existing);
+                if (!removed.isEmpty()) {
+                    jdbcTemplate.batchUpdate(DELETE_MEMBER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ps.setString(1, removed.get(i));
+                            ps.setString(2, memberId);
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return removed.size();
+                        }
+                    });
+                }
+                if (!added.isEmpty()) {
+                    final String authorities = getGroupAuthorities(new ScimGroupMember(memberId));
+                    final Timestamp now = new Timestamp(new Date().getTime());
+                    jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ps.setString(1, added.get(i));
+                            ps.setString(2, memberId);
+                            ps.setString(3, ScimGroupMember.Type.USER.toString());
+                            ps.setString(4, authorities);
+                            ps.setTimestamp(5, now);
+                            ps.setString(6, origin);
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return added.size();
+                        }
+                    });
+                }
+                logger.debug("Synchronized memberships of " + memberId + " for origin " + origin + ", added "
+                                + added + ", removed " + removed);
+                return added.size() + removed.size();
+            }
+        });
+    }
+
+    private Map<String, List<ScimGroup>> getDirectGroups(Collection<String> memberIds) {
+        final Map<String, List<ScimGroup>> result = new HashMap<String, List<ScimGroup>>();
+        for (List<String> ids : partition(memberIds)) {
+            new NamedParameterJdbcTemplate(jdbcTemplate).query(GET_GROUPS_BY_MEMBERS_SQL,
+                            new MapSqlParameterSource("ids", ids), new RowCallbackHandler() {
+                                @Override
+                                public void processRow(ResultSet rs) throws SQLException {
+                                    String memberId = rs.getString(1);
+                                    ScimGroup group = new ScimGroup(rs.getString(2), rs.getString(3));
+                                    group.setMeta(new ScimMeta(rs.getTimestamp(4), rs.getTimestamp(5), rs.getInt(6)));
+                                    List<ScimGroup> groups = result.get(memberId);
+                                    if (groups == null) {
+                                        groups = new ArrayList<ScimGroup>();
+                                        result.put(memberId, groups);
+                                    }
+                                    groups.add(group);
+                                }
+                            });
+        }
+        return result;
+    }
+
+    private Map<String, ScimGroup> getGroups(Collection<String> groupIds) {
+        final Map<String, ScimGroup> result = new HashMap<String, ScimGroup>();
+        for (List<String> ids : partition(groupIds)) {
+            new NamedParameterJdbcTemplate(jdbcTemplate).query(GET_GROUPS_BY_IDS_SQL,
+                            new MapSqlParameterSource("ids", ids), new RowCallbackHandler() {
+                                @Override
+                                public void processRow(ResultSet rs) throws SQLException {
+                                    ScimGroup group = new ScimGroup(rs.getString(1), rs.getString(2));
+                                    group.setMeta(new ScimMeta(rs.getTimestamp(3), rs.getTimestamp(4), rs.getInt(5)));
+                                    result.put(group.getId(), group);
+                                }
+                            });
+        }
+        return result;
+    }
+
+    private NestingGraph getGraph() {
+        NestingGraph current = graph;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.checkedAt < refreshIntervalSeconds * 1000l) {
+            return current;
+        }
+        synchronized (this) {
+            current = graph;
+            if (current != null && now - current.checkedAt < refreshIntervalSeconds * 1000l) {
+                return current;
+            }
+            String version = getNestingVersion();
+            if (current != null && version.equals(current.version)) {
+                current.checkedAt = now;
+                return current;
+            }
+            final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+            jdbcTemplate.query(GET_NESTED_GROUPS_SQL, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    String memberId = rs.getString(1);
+                    if (!parents.containsKey(memberId)) {
+                        parents.put(memberId, new HashSet<String>());
+                    }
+                    parents.get(memberId).add(rs.getString(2));
                 }
+            });
+            logger.debug("Loaded " + parents.size() + " nested groups, version " + version);
+            graph = new NestingGraph(parents, version, now);
+            return graph;
+        }
+    }
+
+    private String getNestingVersion() {
+        return jdbcTemplate.queryForObject(GET_NESTED_GROUPS_VERSION_SQL, new RowMapper<String>() {
+            @Override
+            public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return rs.getInt(1) + "|" + rs.getTimestamp(2);
+            }
+        });
+    }
+
+    private synchronized void updateGraph(String memberId, String groupId, boolean added) {
+        NestingGraph current = graph;
+        if (current == null) {
+            return;
+        }
+        // copy on write, so that lookups never see a partial update, and
+        // keep the version so that the next check still reloads the graph
+        Map<String, Set<String>> parents = new HashMap<String, Set<String>>(current.parents);
+        if (added) {
+            addEdge(parents, memberId, groupId);
+        } else if (parents.containsKey(memberId)) {
+            Set<String> groupIds = new HashSet<String>(parents.get(memberId));
+            if (groupId == null) {
+                groupIds.clear();
+            } else {
+                groupIds.remove(groupId);
+            }
+            if (groupIds.isEmpty()) {
+                parents.remove(memberId);
+            } else {
+                parents.put(memberId, groupIds);
             }
         }
+        graph = new NestingGraph(parents, current.version, current.checkedAt);
+    }
 
+    private static void addEdge(Map<String, Set<String>> parents, String memberId, String groupId) {
+        Set<String> groupIds = new HashSet<String>();
+        if (parents.containsKey(memberId)) {
+            groupIds.addAll(parents.get(memberId));
+        }
+        groupIds.add(groupId);
+        parents.put(memberId, groupIds);
+    }
+
+    /**
+     * The parent groups of every group that is a member of another group.
+     */
+    private static final class NestingGraph {
+        private final Map<String, Set<String>> parents;
+
+        private final String version;
+
+        private volatile long checkedAt;
+
+        private NestingGraph(Map<String, Set<String>> parents, String version, long checkedAt) {
+            this.parents = parents;
+            this.version = version;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    private Set<String> getUserIds(Collection<String> ids) {
+        Set<String> result = new HashSet<String>();
+        for (List<String> chunk : partition(ids)) {
+            for (String id : new NamedParameterJdbcTemplate(jdbcTemplate).queryForList(GET_USER_IDS_SQL,
+                            new MapSqlParameterSource("ids", chunk), String.class)) {
+                // users.id is a fixed width column on some databases
+                result.add(id.trim());
+            }
+        }
+        return result;
+    }
+
+    private static List<List<String>> partition(Collection<String> ids) {
+        List<List<String>> result = new ArrayList<List<String>>();
+        List<String> all = new ArrayList<String>(ids);
+        for (int i = 0; i < all.size(); i += MAX_IDS_PER_QUERY) {
+            result.add(all.subList(i, Math.min(all.size(), i + MAX_IDS_PER_QUERY)));
+        }
+        return result;
     }
 
     @Override
@@ -304,6 +783,9 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         if (deleted != 1) {
             throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", 1, deleted);
         }
+        if (member.getType() == ScimGroupMember.Type.GROUP) {
+            updateGraph(memberId, groupId, false);
+        }
         return member;
     }
 
@@ -322,6 +804,11 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
             throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", members.size(),
                             deleted);
         }
+        for (ScimGroupMember member : members) {
+            if (member.getType() == ScimGroupMember.Type.GROUP) {
+                updateGraph(member.getMemberId(), groupId, false);
+            }
+        }
 
         return members;
     }
@@ -342,6 +829,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
             throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", expectedDelete,
                             deleted);
         }
+        updateGraph(memberId, null, false);
 
         return groups;
     }
@@ -17,16 +17,21 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.cloudfoundry.identity.uaa.rest.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
@@ -41,17 +46,25 @@ import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailed
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.validate.DefaultPasswordValidator;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
+import org.cloudfoundry.identity.uaa.util.PooledPasswordEncoder;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -86,8 +99,17 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     public static final String ALL_USERS = "select " + USER_FIELDS + " from users";
 
+    public static final String USERS_BY_IDS_QUERY = "select " + USER_FIELDS + " from users where id in (:ids)";
+
+    /**
+     * The maximum number of ids in a single in (...) clause
+     */
+    public static final int MAX_IDS_PER_QUERY = 100;
+
     protected final JdbcTemplate jdbcTemplate;
 
+    private final TransactionTemplate transactionTemplate;
+
     private PasswordValidator passwordValidator = new DefaultPasswordValidator();
 
     private PasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
@@ -102,6 +124,7 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
         super(jdbcTemplate, pagingListFactory, new ScimUserRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
         setQueryConverter(new ScimSearchQueryConverter());
     }
 
@@ -132,11 +155,26 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
     @Override
     public List<ScimUser> query(String filter, String sortBy, boolean ascending) {
+        return super.query(getZoneFilter(filter), sortBy, ascending);
+    }
+
+    @Override
+    public CursorPage<ScimUser> query(String filter, String sortBy, boolean ascending, String cursor, int count,
+                    boolean countTotal) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, cursor, count, countTotal);
+    }
+
+    @Override
+    public int query(String filter, String sortBy, boolean ascending, int startIndex, int count,
+                    ResultHandler<ScimUser> handler) {
+        return super.query(getZoneFilter(filter), sortBy, ascending, startIndex, count, handler);
+    }
+
+    private String getZoneFilter(String filter) {
         if (StringUtils.hasText(filter)) {
             filter += " and";
         }
-        filter += " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
-        return super.query(filter, sortBy, ascending);
+        return filter + " identity_zone_id eq \""+IdentityZoneHolder.get().getId()+"\"";
     }
 
     @Override
@@ -179,16 +217,128 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser> implem
 
             });
         } catch (DuplicateKeyException e) {
-            ScimUser existingUser = query("userName eq \"" + user.getUserName() + "\" and origin eq \"" + (StringUtils.hasText(user.getOrigin())? user.getOrigin() : Origin.UAA) + "\"").get(0);
-            Map<String,Object> userDetails = new HashMap<>();
-            userDetails.put("active", existingUser.isActive());
-            userDetails.put("verified", existingUser.isVerified());
-            userDetails.put("user_id", existingUser.getId());
-            throw new ScimResourceAlreadyExistsException("Username already in use: " + existingUser.getUserName(), userDetails);
+            ScimUser existingUser = findExisting(user);
+            if (existingUser == null) {
+                throw new ScimResourceAlreadyExistsException("Username already in use: " + user.getUserName());
+            }
+            throw alreadyExists(existingUser);
         }
         return retrieve(id);
     }
 
+    @Override
+    public List<ScimUser> createUsers(final List<ScimUser> users, List<String> passwords)
+                    throws InvalidPasswordException, InvalidScimResourceException {
+        Assert.isTrue(users.size() == passwords.size(), "A password is required for every user");
+        Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < users.size(); i++) {
+            ScimUser user = users.get(i);
+            validate(user);
+            passwordValidator.validate(passwords.get(i), user);
+            if (!keys.add(getOrigin(user) + "|" + user.getUserName())) {
+                throw new ScimResourceAlreadyExistsException("Username already in use: " + user.getUserName());
+            }
+        }
+        logger.debug("Creating " + users.size() + " new users");
+
+        List<String> encoded = encodeAll(passwords);
+        final List<String> ids = new ArrayList<String>(users.size());
+        for (int i = 0; i < users.size(); i++) {
+            users.get(i).setPassword(encoded.get(i));
+            ids.add(UUID.randomUUID().toString());
+        }
+        final String identityZoneId = IdentityZoneHolder.get().getId();
+        final Timestamp now = new Timestamp(new Date().getTime());
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    jdbcTemplate.batchUpdate(CREATE_USER_SQL, new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            ScimUser user = users.get(i);
+                            ps.setString(1, ids.get(i));
+                            ps.setInt(2, user.getVersion());
+                            ps.setTimestamp(3, now);
+                            ps.setTimestamp(4, now);
+                            ps.setString(5, user.getUserName());
+                            ps.setString(6, user.getPrimaryEmail());
+                            ps.setString(7, user.getName() == null ? null : user.getName().getGivenName());
+                            ps.setString(8, user.getName() == null ? null : user.getName().getFamilyName());
+                            ps.setBoolean(9, user.isActive());
+                            ps.setString(10, extractPhoneNumber(user));
+                            ps.setBoolean(11, user.isVerified());
+                            ps.setString(12, getOrigin(user));
+                            ps.setString(13, StringUtils.hasText(user.getExternalId()) ? user.getExternalId() : null);
+                            ps.setString(14, identityZoneId);
+                            ps.setString(15, user.getPassword());
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return users.size();
+                        }
+                    });
+                }
+            });
+        } catch (DuplicateKeyException e) {
+            for (ScimUser user : users) {
+                ScimUser existingUser = findExisting(user);
+                if (existingUser != null) {
+                    throw alreadyExists(existingUser);
+                }
+            }
+            throw new ScimResourceAlreadyExistsException("Username already in use");
+        }
+        return retrieve(ids);
+    }
+
+    private List<ScimUser> retrieve(List<String> ids) {
+        final Map<String, ScimUser> found = new HashMap<String, ScimUser>();
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+            MapSqlParameterSource params = new MapSqlParameterSource("ids", ids.subList(i,
+                            Math.min(ids.size(), i + MAX_IDS_PER_QUERY)));
+            for (ScimUser user : new NamedParameterJdbcTemplate(jdbcTemplate).query(USERS_BY_IDS_QUERY, params,
+                            mapper)) {
+                found.put(user.getId(), user);
+            }
+        }
+        List<ScimUser> result = new ArrayList<ScimUser>(ids.size());
+        for (String id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    private List<String> encodeAll(List<String> passwords) {
+        if (passwordEncoder instanceof PooledPasswordEncoder) {
+            return ((PooledPasswordEncoder) passwordEncoder).encodeAll(passwords);
+        }
+        List<String> result = new ArrayList<String>(passwords.size());
+        for (String password : passwords) {
+            result.add(passwordEncoder.encode(password));
+        }
+        return result;
+    }
+
+    private ScimUser findExisting(ScimUser user) {
+        List<ScimUser> existing = query("userName eq \"" + user.getUserName() + "\" and origin eq \""
+                        + getOrigin(user) + "\"");
+        return existing.isEmpty() ? null : existing.get(0);
+    }
+
+    private ScimResourceAlreadyExistsException alreadyExists(ScimUser existingUser) {
+        Map<String,Object> userDetails = new HashMap<>();
+        userDetails.put("active", existingUser.isActive());
+        userDetails.put("verified", existingUser.isVerified());
+        userDetails.put("user_id", existingUser.getId());
+        return new ScimResourceAlreadyExistsException("Username already in use: " + existingUser.getUserName(), userDetails);
+    }
+
+    private static String getOrigin(ScimUser user) {
+        return StringUtils.hasText(user.getOrigin()) ? user.getOrigin() : Origin.UAA;
+    }
+
     @Override
     public ScimUser createUser(ScimUser user, final String password) throws InvalidPasswordException,
                     InvalidScimResourceException {
@@ -13,9 +13,12 @@
 
 package org.cloudfoundry.identity.uaa.scim.remote;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.cloudfoundry.identity.uaa.message.PasswordChangeRequest;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
@@ -80,6 +83,18 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
                         filter, sortBy);
     }
 
+    @Override
+    public CursorPage<ScimUser> query(String filter, String sortBy, boolean ascending, String cursor, int count,
+                    boolean countTotal) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int query(String filter, String sortBy, boolean ascending, int startIndex, int count,
+                    ResultHandler<ScimUser> handler) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public ScimUser create(ScimUser user) {
         return restTemplate.postForObject(baseUrl + "/User", user, ScimUser.class);
@@ -92,6 +107,16 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
         return create(user);
     }
 
+    @Override
+    public List<ScimUser> createUsers(List<ScimUser> users, List<String> passwords)
+                    throws InvalidPasswordException, InvalidScimResourceException {
+        List<ScimUser> result = new ArrayList<ScimUser>();
+        for (int i = 0; i < users.size(); i++) {
+            result.add(createUser(users.get(i), passwords.get(i)));
+        }
+        return result;
+    }
+
     @Override
     public ScimUser update(String id, ScimUser user) throws InvalidScimResourceException, ScimResourceNotFoundException {
         restTemplate.put(baseUrl + "/User/{id}", user, id);
@@ -16,6 +16,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.sql.Timestamp;
 import java.util.*;
 
 import org.cloudfoundry.identity.uaa.authentication.Origin;
@@ -311,6 +312,29 @@ public class ScimUserBootstrapTests {
         }
     }
 
+    @Test
+    public void unchangedExternalLoginWritesNothing() throws Exception {
+        String[] externalAuthorities = new String[] {"extTest1","extTest2"};
+        String[] userAuthorities = new String[] {"usrTest1"};
+        String origin = "testOrigin";
+        addIdentityProvider(jdbcTemplate,origin);
+        String username = new RandomValueStringGenerator().generate();
+        UaaUser user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, new RandomValueStringGenerator().generate(), username);
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(user));
+        bootstrap.afterPropertiesSet();
+        String userId = db.query("userName eq \""+username +"\" and origin eq \""+origin+"\"").get(0).getId();
+        user = getUaaUser(userAuthorities, origin, "test@test.org", "FirstName", "LastName", "", null, userId, username);
+
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, getAuthorities(externalAuthorities),true));
+        int version = db.retrieve(userId).getVersion();
+        List<Timestamp> added = jdbcTemplate.queryForList("select added from group_membership where member_id=? order by group_id", Timestamp.class, userId);
+
+        bootstrap.onApplicationEvent(new ExternalGroupAuthorizationEvent(user, getAuthorities(externalAuthorities),true));
+        assertEquals(version, db.retrieve(userId).getVersion());
+        assertEquals(added, jdbcTemplate.queryForList("select added from group_membership where member_id=? order by group_id", Timestamp.class, userId));
+        validateAuthoritiesCreated(externalAuthorities, userAuthorities, origin, db.retrieve(userId));
+    }
+
     @Test
     public void canUpdateEmailThroughEvent() throws Exception {
         String[] externalAuthorities = new String[] {"extTest1","extTest2","extTest3"};
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.endpoints;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.rest.jdbc.DefaultLimitSqlAdapter;
+import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupMembershipManager;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
+import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
+import org.cloudfoundry.identity.uaa.scim.validate.NullPasswordValidator;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+public class ScimBulkEndpointsTests extends JdbcTestBase {
+
+    private JdbcScimUserProvisioning udao;
+
+    private JdbcScimGroupProvisioning gdao;
+
+    private JdbcScimGroupMembershipManager mm;
+
+    private ScimBulkEndpoints endpoints;
+
+    @Before
+    public void initScimBulkEndpointsTests() throws Exception {
+        TestUtils.deleteFrom(dataSource, "users", "groups", "group_membership");
+        JdbcPagingListFactory pagingListFactory = new JdbcPagingListFactory(jdbcTemplate, new DefaultLimitSqlAdapter());
+        udao = new JdbcScimUserProvisioning(jdbcTemplate, pagingListFactory);
+        udao.setPasswordValidator(new NullPasswordValidator());
+        udao.setPasswordEncoder(new BCryptPasswordEncoder(4));
+        gdao = new JdbcScimGroupProvisioning(jdbcTemplate, pagingListFactory);
+        mm = new JdbcScimGroupMembershipManager(jdbcTemplate, pagingListFactory);
+        mm.setScimGroupProvisioning(gdao);
+        mm.setScimUserProvisioning(udao);
+        endpoints = new ScimBulkEndpoints(udao, gdao, mm);
+        endpoints.setBatchSize(2);
+    }
+
+    @Test
+    public void testCreateUsersAndGroups() {
+        BulkRequest request = new BulkRequest();
+        request.setOperations(Arrays.asList(createUser("u1", "bulk1@test.org"), createUser("u2", "bulk2@test.org"),
+                        createUser("u3", "bulk3@test.org"), createGroup("g1", "bulk.group", "bulkId:u1", "bulkId:u3")));
+        BulkResponse response = endpoints.bulk(request);
+
+        List<BulkOperation> results = response.getOperations();
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("201", results.get(i).getStatus());
+            assertEquals("u" + (i + 1), results.get(i).getBulkId());
+            assertNull(results.get(i).getResponse());
+        }
+        assertEquals("201", results.get(3).getStatus());
+        assertEquals(3, udao.query("userName sw \"bulk\"").size());
+
+        String groupId = getId(results.get(3));
+        List<ScimGroupMember> members = mm.getMembers(groupId);
+        assertEquals(2, members.size());
+        List<String> memberIds = new ArrayList<String>();
+        for (ScimGroupMember member : members) {
+            memberIds.add(member.getMemberId());
+        }
+        assertEquals(true, memberIds.contains(getId(results.get(0))));
+        assertEquals(true, memberIds.contains(getId(results.get(2))));
+    }
+
+    @Test
+    public void testFailedBatchIsRunOneAtATime() {
+        udao.createUser(TestUtils.scimUserInstance("bulk2@test.org"), "password");
+        BulkRequest request = new BulkRequest();
+        request.setOperations(Arrays.asList(createUser("u1", "bulk1@test.org"), createUser("u2", "bulk2@test.org"),
+                        createUser("u3", "bulk3@test.org")));
+        List<BulkOperation> results = endpoints.bulk(request).getOperations();
+
+        assertEquals(3, results.size());
+        assertEquals("201", results.get(0).getStatus());
+        assertEquals("409", results.get(1).getStatus());
+        assertEquals("scim_resource_already_exists", results.get(1).getResponse().get("error"));
+        assertNull(results.get(1).getLocation());
+        assertEquals("201", results.get(2).getStatus());
+        assertEquals(3, udao.query("userName sw \"bulk\"").size());
+    }
+
+    @Test
+    public void testAddMembersToExistingGroup() {
+        String groupId = getId(endpoints.bulk(request(createGroup(null, "bulk.group"))).getOperations().get(0));
+        String userId = udao.createUser(TestUtils.scimUserInstance("bulk1@test.org"), "password").getId();
+
+        BulkOperation patch = new BulkOperation("PATCH", null, "/Groups/" + groupId, members(userId));
+        BulkOperation result = endpoints.bulk(request(patch)).getOperations().get(0);
+
+        assertEquals("200", result.getStatus());
+        assertEquals(1, mm.getMembers(groupId).size());
+        assertEquals(userId, mm.getMembers(groupId).get(0).getMemberId());
+    }
+
+    @Test
+    public void testGroupWithInvalidMemberIsNotCreated() {
+        BulkOperation result = endpoints.bulk(request(createGroup(null, "bulk.group", "not-a-user"))).getOperations()
+                        .get(0);
+        assertEquals("400", result.getStatus());
+        assertEquals(0, gdao.query("displayName eq \"bulk.group\"").size());
+    }
+
+    @Test
+    public void testUnknownBulkIdAndUnsupportedOperations() {
+        List<BulkOperation> results = endpoints.bulk(
+                        request(createGroup(null, "bulk.group", "bulkId:missing"),
+                                        new BulkOperation("DELETE", null, "/Users/foo", null))).getOperations();
+        assertEquals("400", results.get(0).getStatus());
+        assertEquals("400", results.get(1).getStatus());
+        assertEquals("Unsupported operation: DELETE /Users/foo", results.get(1).getResponse().get("message"));
+    }
+
+    @Test
+    public void testFailOnErrors() {
+        BulkRequest request = request(new BulkOperation("DELETE", null, "/Users/foo", null),
+                        createUser("u1", "bulk1@test.org"));
+        request.setFailOnErrors(1);
+        List<BulkOperation> results = endpoints.bulk(request).getOperations();
+        assertEquals(1, results.size());
+        assertEquals(0, udao.query("userName sw \"bulk\"").size());
+    }
+
+    @Test
+    public void testTooManyOperations() {
+        endpoints.setMaxOperations(1);
+        try {
+            endpoints.bulk(request(createUser("u1", "bulk1@test.org"), createUser("u2", "bulk2@test.org")));
+            fail("Expected ScimException");
+        } catch (ScimException e) {
+            assertEquals(HttpStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    private static BulkRequest request(BulkOperation... operations) {
+        BulkRequest request = new BulkRequest();
+        request.setOperations(Arrays.asList(operations));
+        return request;
+    }
+
+    private static BulkOperation createUser(String bulkId, String userName) {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("userName", userName);
+        data.put("emails", Collections.singletonList(Collections.singletonMap("value", userName)));
+        data.put("password", "password");
+        return new BulkOperation("POST", bulkId, "/Users", data);
+    }
+
+    private static BulkOperation createGroup(String bulkId, String displayName, String... memberIds) {
+        Map<String, Object> data = members(memberIds);
+        data.put("displayName", displayName);
+        return new BulkOperation("POST", bulkId, "/Groups", data);
+    }
+
+    private static Map<String, Object> members(String... memberIds) {
+        List<Map<String, String>> members = new ArrayList<Map<String, String>>();
+        for (String memberId : memberIds) {
+            Map<String, String> member = new HashMap<String, String>();
+            member.put("value", memberId);
+            member.put("type", "USER");
+            members.add(member);
+        }
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("members", members);
+        return data;
+    }
+
+    private static String getId(BulkOperation result) {
+        assertNotNull(result.getLocation());
+        return result.getLocation().substring(result.getLocation().lastIndexOf('/') + 1);
+    }
+
+}
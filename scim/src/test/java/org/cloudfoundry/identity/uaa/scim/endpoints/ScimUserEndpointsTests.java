@@ -14,14 +14,18 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -31,6 +35,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -57,6 +62,8 @@ import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.jdbc.ScimSearchQueryConverter;
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
 import org.cloudfoundry.identity.uaa.scim.validate.NullPasswordValidator;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.codehaus.jackson.type.TypeReference;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.junit.After;
@@ -107,6 +114,8 @@ public class ScimUserEndpointsTests {
 
     private JdbcScimGroupMembershipManager mm;
 
+    private JdbcScimGroupProvisioning gdao;
+
     private JdbcApprovalStore am;
 
     private static EmbeddedDatabase database;
@@ -141,7 +150,7 @@ public class ScimUserEndpointsTests {
         endpoints.setScimUserProvisioning(dao);
         mm = new JdbcScimGroupMembershipManager(jdbcTemplate, pagingListFactory);
         mm.setScimUserProvisioning(dao);
-        JdbcScimGroupProvisioning gdao = new JdbcScimGroupProvisioning(jdbcTemplate, pagingListFactory);
+        gdao = new JdbcScimGroupProvisioning(jdbcTemplate, pagingListFactory);
         mm.setScimGroupProvisioning(gdao);
         mm.setDefaultUserGroups(Collections.singleton("uaa.user"));
         endpoints.setScimGroupMembershipManager(mm);
@@ -259,6 +268,31 @@ public class ScimUserEndpointsTests {
         assertEquals(2, updated.getApprovals().size());
     }
 
+    @Test
+    public void groupsAndApprovalsAreSyncedCorrectlyOnFind() {
+        ScimGroup group = gdao.create(new ScimGroup("test1"));
+        ScimGroup nested = gdao.create(new ScimGroup("test2"));
+        mm.addMember(group.getId(), new ScimGroupMember(joel.getId()));
+        mm.addMember(nested.getId(), new ScimGroupMember(group.getId(), ScimGroupMember.Type.GROUP,
+                        ScimGroupMember.GROUP_MEMBER));
+        am.addApproval(new Approval(joel.getId(), "c1", "s1", 6000, Approval.ApprovalStatus.APPROVED));
+        am.addApproval(new Approval(dale.getId(), "c1", "s1", 6000, Approval.ApprovalStatus.DENIED));
+        am.addApproval(new Approval(dale.getId(), "c1", "s2", 6000, Approval.ApprovalStatus.APPROVED));
+
+        SearchResults<?> results = endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
+        assertEquals(2, results.getResources().size());
+        for (Object resource : results.getResources()) {
+            ScimUser user = (ScimUser) resource;
+            if (user.getId().equals(joel.getId())) {
+                validateUserGroups(user, "test1", "test2");
+                assertEquals(1, user.getApprovals().size());
+            } else {
+                validateUserGroups(user);
+                assertEquals(2, user.getApprovals().size());
+            }
+        }
+    }
+
     @Test
     public void approvalsIsSyncedCorrectlyOnGet() {
         assertEquals(0, endpoints.getUser(joel.getId(), new MockHttpServletResponse()).getApprovals().size());
@@ -420,6 +454,58 @@ public class ScimUserEndpointsTests {
         assertEquals(2, results.getResources().size());
     }
 
+    @Test
+    public void testFindPagesOfIdsWithCursor() {
+        SearchResults<?> results = endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, "");
+        assertEquals(2, results.getTotalResults());
+        assertEquals(1, results.getStartIndex());
+        assertEquals(1, results.getResources().size());
+        assertNotNull(results.getNextCursor());
+
+        SearchResults<?> next = endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1,
+                        results.getNextCursor());
+        assertEquals(2, next.getTotalResults());
+        assertEquals(2, next.getStartIndex());
+        assertEquals(1, next.getResources().size());
+        assertNull(next.getNextCursor());
+        assertFalse(getSetFromMaps(results.getResources(), "id").equals(getSetFromMaps(next.getResources(), "id")));
+    }
+
+    @Test(expected = ScimException.class)
+    public void testFindWithInvalidCursor() {
+        endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, "not-a-cursor");
+    }
+
+    @Test
+    public void testStreamUsers() {
+        Map<String, Object> results = JsonUtils.readValue(
+                        JsonUtils.writeValueAsString(endpoints.streamUsers(null, "id pr", "userName", "ascending", 2, 100)),
+                        new TypeReference<Map<String, Object>>() {});
+        assertEquals(2, results.get("totalResults"));
+        assertEquals(2, results.get("startIndex"));
+        assertEquals(1, results.get("itemsPerPage"));
+        List<?> resources = (List<?>) results.get("resources");
+        assertEquals(1, resources.size());
+        assertNotNull(((Map<?, ?>) resources.get(0)).get("groups"));
+    }
+
+    @Test
+    public void testStreamUserNames() {
+        Map<String, Object> results = JsonUtils.readValue(
+                        JsonUtils.writeValueAsString(endpoints.streamUsers("userName", "id pr", null, "ascending", 1, 1)),
+                        new TypeReference<Map<String, Object>>() {});
+        assertEquals(2, results.get("totalResults"));
+        assertEquals(1, results.get("itemsPerPage"));
+        List<?> resources = (List<?>) results.get("resources");
+        assertEquals(1, resources.size());
+        assertEquals(Collections.singleton("userName"), ((Map<?, ?>) resources.get(0)).keySet());
+    }
+
+    @Test(expected = ScimException.class)
+    public void testStreamWithInvalidAttributes() {
+        endpoints.streamUsers("userName,[", "id pr", null, "ascending", 1, 1);
+    }
+
     @Test
     public void testFindWhenStartGreaterThanTotal() {
         SearchResults<?> results = endpoints.findUsers("id", "id pr", null, "ascending", 3, 100);
@@ -459,7 +545,9 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithMembers(anyCollectionOf(String.class), eq(false));
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithMembers(anyCollectionOf(String.class), eq(true));
+        verify(mockgroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean());
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -470,7 +558,9 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("groups", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithMembers(anyCollectionOf(String.class), eq(false));
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithMembers(anyCollectionOf(String.class), eq(true));
+        verify(mockgroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean());
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -492,7 +582,7 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, times(1)).getApprovals(anyString());
 
         endpoints.setApprovalStore(am);
     }
@@ -503,7 +593,7 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("approvals", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, times(1)).getApprovals(anyString());
 
         endpoints.setApprovalStore(am);
     }
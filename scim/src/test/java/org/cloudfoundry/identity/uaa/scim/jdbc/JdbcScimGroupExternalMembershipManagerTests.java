@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -261,4 +262,45 @@ public class JdbcScimGroupExternalMembershipManagerTests extends JdbcTestBase {
             assertEquals(testGroups.size(), 0);
         }
     }
+
+    @Test
+    public void externalGroupIndexIsUpdatedOnMapAndUnmap() {
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+
+        edao.mapExternalGroup("g1", "cn=Engineering,ou=groups,dc=example,dc=com");
+        edao.mapExternalGroup("g2", "cn=engineering,ou=groups,dc=example,dc=com");
+        List<ScimGroupExternalMember> mappings = edao.getExternalGroupMapsByExternalGroup("CN=ENGINEERING,ou=groups,dc=example,dc=com");
+        assertEquals(2, mappings.size());
+        for (ScimGroupExternalMember member : mappings) {
+            assertEquals(member.getGroupId().equals("g1") ? "test1" : "test2", member.getDisplayName());
+        }
+
+        edao.unmapExternalGroup("g1", "cn=ENGINEERING,ou=groups,dc=example,dc=com");
+        mappings = edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com");
+        assertEquals(1, mappings.size());
+        assertEquals("g2", mappings.get(0).getGroupId());
+    }
+
+    @Test
+    public void externalGroupIndexPicksUpChangesFromOtherNodes() throws Exception {
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+
+        JdbcScimGroupExternalMembershipManager other = new JdbcScimGroupExternalMembershipManager(jdbcTemplate,
+                        new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter));
+        other.setScimGroupProvisioning(gdao);
+        other.mapExternalGroup("g1", "cn=engineering,ou=groups,dc=example,dc=com");
+
+        // served from the index until the next version check
+        assertEquals(0, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+        edao.refresh();
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+    }
+
+    @Test
+    public void externalGroupIndexCanBeTurnedOff() {
+        edao.setRefreshIntervalSeconds(0);
+        jdbcTemplate.update("insert into external_group_mapping (group_id, external_group, added) values (?,?,?)", "g1",
+                        "cn=engineering,ou=groups,dc=example,dc=com", new Date());
+        assertEquals(1, edao.getExternalGroupMapsByExternalGroup("cn=engineering,ou=groups,dc=example,dc=com").size());
+    }
 }
@@ -12,11 +12,13 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
+import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -30,7 +32,9 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
+import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
 import org.cloudfoundry.identity.uaa.scim.validate.NullPasswordValidator;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
@@ -38,6 +42,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 
 public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
 
@@ -227,6 +233,51 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         validateUserGroups("m1", "test1.i", "test2");
     }
 
+    @Test
+    public void canAddMembersInBatch() {
+        addMember("g2", "m1", "USER", "READER");
+        List<ScimGroupMember> added = dao.addMembers("g1", Arrays.asList(
+                        new ScimGroupMember("m2", ScimGroupMember.Type.USER, null),
+                        new ScimGroupMember("m3", ScimGroupMember.Type.USER, ScimGroupMember.GROUP_ADMIN),
+                        new ScimGroupMember("g2", ScimGroupMember.Type.GROUP, null)));
+        validateCount(4);
+        assertEquals(3, added.size());
+        for (ScimGroupMember member : added) {
+            if ("m3".equals(member.getMemberId())) {
+                assertEquals(ScimGroupMember.GROUP_ADMIN, member.getRoles());
+            } else {
+                assertEquals(ScimGroupMember.GROUP_MEMBER, member.getRoles());
+            }
+        }
+        validateUserGroups("m2", "test1");
+        validateUserGroups("m1", "test1.i", "test2");
+    }
+
+    @Test
+    public void cannotAddMissingMembersInBatch() {
+        try {
+            dao.addMembers("g1", Arrays.asList(new ScimGroupMember("m1", ScimGroupMember.Type.USER, null),
+                            new ScimGroupMember("m4", ScimGroupMember.Type.USER, null)));
+            fail("Expected ScimResourceNotFoundException");
+        } catch (ScimResourceNotFoundException e) {
+            assertTrue(e.getMessage().contains("m4"));
+        }
+        validateCount(0);
+    }
+
+    @Test
+    public void cannotAddExistingMembersInBatch() {
+        addMember("g1", "m2", "USER", "READER");
+        try {
+            dao.addMembers("g1", Arrays.asList(new ScimGroupMember("m1", ScimGroupMember.Type.USER, null),
+                            new ScimGroupMember("m2", ScimGroupMember.Type.USER, null)));
+            fail("Expected MemberAlreadyExistsException");
+        } catch (MemberAlreadyExistsException e) {
+            // expected
+        }
+        validateCount(1);
+    }
+
     @Test(expected = InvalidScimResourceException.class)
     public void cannotNestGroupWithinItself() {
         ScimGroupMember g2 = new ScimGroupMember("g2", ScimGroupMember.Type.GROUP, ScimGroupMember.GROUP_ADMIN);
@@ -271,6 +322,84 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(1, writers.size());
     }
 
+    @Test
+    public void canGetGroupsForMembers() {
+        addMembers();
+
+        List<String> ids = Arrays.asList("m1", "m2", "m3", "g2");
+        for (boolean transitive : new boolean[] {false, true}) {
+            Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(ids, transitive);
+            assertEquals(ids.size(), groups.size());
+            for (String id : ids) {
+                assertEquals(dao.getGroupsWithMember(id, transitive), groups.get(id));
+            }
+        }
+        assertEquals(3, dao.getGroupsWithMembers(ids, true).get("m3").size());
+        assertEquals(1, dao.getGroupsWithMembers(ids, true).get("g2").size());
+    }
+
+    @Test
+    public void canGetGroupsForMembersEvenWhenCycleExistsInGroupHierarchy() {
+        addMember("g1", "m3", "USER", "READER");
+        addMember("g1", "g2", "GROUP", "READER");
+        addMember("g2", "g3", "GROUP", "READER");
+        addMember("g3", "g1", "GROUP", "READER");
+
+        Map<String, Set<ScimGroup>> groups = dao.getGroupsWithMembers(Arrays.asList("m3", "m1"), true);
+        assertEquals(4, groups.get("m3").size());
+        assertEquals(1, groups.get("m1").size());
+    }
+
+    @Test
+    public void canSynchronizeMemberships() {
+        addMember("g1", "m1", "USER", "READER", "ldap");
+        addMember("g2", "m1", "USER", "READER", "ldap");
+        addMember("g3", "m1", "USER", "READER");
+
+        // g3 is kept as a uaa membership, g2 is removed and g1 kept
+        assertEquals(1, dao.synchronizeMemberships("m1", "ldap", Arrays.asList("g1", "g3")));
+        assertEquals("ldap", dao.getMemberById("g1", "m1").getOrigin());
+        assertEquals(Origin.UAA, dao.getMemberById("g3", "m1").getOrigin());
+        validateCount(2);
+
+        assertEquals(0, dao.synchronizeMemberships("m1", "ldap", Arrays.asList("g1", "g3")));
+        assertEquals(2, dao.synchronizeMemberships("m1", "ldap", Arrays.asList("g2")));
+        assertEquals("ldap", dao.getMemberById("g2", "m1").getOrigin());
+        validateCount(2);
+    }
+
+    @Test
+    public void synchronizeMembershipsRetriesWhenAMembershipIsAddedConcurrently() throws Exception {
+        final Connection other = dataSource.getConnection();
+        try {
+            // the membership to g2 is added by another login right after the
+            // current memberships were read
+            JdbcTemplate template = new JdbcTemplate(dataSource) {
+                private boolean added;
+
+                @Override
+                public void query(String sql, Object[] args, RowCallbackHandler rch) {
+                    super.query(sql, args, rch);
+                    if (!added && sql.equals(JdbcScimGroupMembershipManager.GET_MEMBERSHIP_ORIGINS_SQL)) {
+                        added = true;
+                        new JdbcTemplate(new SingleConnectionDataSource(other, true)).execute(String.format(
+                                        addMemberSqlFormat, "g2", "m1", "USER", "READER", "ldap"));
+                    }
+                }
+            };
+            dao = new JdbcScimGroupMembershipManager(template, new JdbcPagingListFactory(template, limitSqlAdapter));
+            dao.setScimGroupProvisioning(gdao);
+            dao.setScimUserProvisioning(udao);
+
+            assertEquals(1, dao.synchronizeMemberships("m1", "ldap", Arrays.asList("g1", "g2")));
+            assertEquals("ldap", dao.getMemberById("g1", "m1").getOrigin());
+            assertEquals("ldap", dao.getMemberById("g2", "m1").getOrigin());
+            validateCount(2);
+        } finally {
+            other.close();
+        }
+    }
+
     @Test
     public void canGetDefaultGroupsUsingGetGroupsForMember() {
         Set<ScimGroup> groups = dao.getGroupsWithMember("m1", false);
@@ -404,4 +533,50 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         validateUserGroups("m2", "test2");
 
     }
+
+    @Test
+    public void nestedGroupsPickUpChangesFromOtherNodes() throws Exception {
+        addMember("g1", "m1", "USER", "READER");
+        validateUserGroups("m1", "test1");
+        assertEquals(0, dao.getNestedGroupCount());
+
+        addMember("g2", "g1", "GROUP", "READER");
+        // served from the graph until the next version check
+        validateUserGroups("m1", "test1");
+        dao.refresh();
+        validateUserGroups("m1", "test1", "test2.i");
+        assertEquals(1, dao.getNestedGroupCount());
+    }
+
+    @Test
+    public void nestedGroupsCanBeRebuilt() {
+        addMember("g1", "m1", "USER", "READER");
+        validateUserGroups("m1", "test1");
+
+        addMember("g2", "g1", "GROUP", "READER");
+        addMember("g3", "g2", "GROUP", "READER");
+        dao.rebuild();
+        validateUserGroups("m1", "test1", "test2.i", "test3.i");
+        assertEquals(2, dao.getNestedGroupCount());
+    }
+
+    @Test
+    public void nestedGroupsOfDeletedGroupsAreNotFollowed() {
+        addMember("g1", "m1", "USER", "READER");
+        addMember("g2", "g1", "GROUP", "READER");
+        addMember("g3", "g2", "GROUP", "READER");
+        jdbcTemplate.update("delete from groups where id='g2'");
+        validateUserGroups("m1", "test1");
+    }
+
+    @Test
+    public void nestedGroupsCanBeTurnedOff() {
+        dao.setRefreshIntervalSeconds(0);
+        addMember("g1", "m1", "USER", "READER");
+        validateUserGroups("m1", "test1");
+
+        addMember("g2", "g1", "GROUP", "READER");
+        validateUserGroups("m1", "test1", "test2.i");
+        assertEquals(0, dao.getNestedGroupCount());
+    }
 }
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -31,6 +32,8 @@ import java.util.Map;
 import java.util.UUID;
 
 import org.cloudfoundry.identity.uaa.authentication.Origin;
+import org.cloudfoundry.identity.uaa.rest.CursorPage;
+import org.cloudfoundry.identity.uaa.rest.ResultHandler;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
@@ -131,6 +134,7 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         jdbcTemplate.execute("delete from users where upper(userName) = 'JONAH@FOO.COM'");
         jdbcTemplate.execute("delete from users where upper(userName) = 'RO''GALLAGHER@EXAMPLE.COM'");
         jdbcTemplate.execute("delete from users where upper(userName) = 'USER@EXAMPLE.COM'");
+        jdbcTemplate.execute("delete from users where userName like 'bulk%@foo.com'");
         jdbcTemplate.execute("delete from identity_provider where identity_zone_id = 'my-zone-id'");
         jdbcTemplate.execute("delete from identity_zone where id = 'my-zone-id'");
         IdentityZoneHolder.clear();
@@ -248,6 +252,52 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertNull(created.getGroups());
     }
 
+    @Test
+    public void canCreateUsersInBatch() {
+        List<ScimUser> users = new ArrayList<ScimUser>();
+        List<String> passwords = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            ScimUser user = new ScimUser(null, "bulk" + i + "@foo.com", "Bulk", "User" + i);
+            user.addEmail("bulk" + i + "@foo.com");
+            users.add(user);
+            passwords.add("j7hyqpassX" + i);
+        }
+        List<ScimUser> created = db.createUsers(users, passwords);
+        assertEquals(3, created.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("bulk" + i + "@foo.com", created.get(i).getUserName());
+            assertEquals("User" + i, created.get(i).getFamilyName());
+            assertEquals(Origin.UAA, created.get(i).getOrigin());
+            assertEquals("uaa", created.get(i).getZoneId());
+            String password = jdbcTemplate.queryForObject("select password from users where id=?", String.class,
+                            created.get(i).getId());
+            assertTrue(BCrypt.checkpw("j7hyqpassX" + i, password));
+        }
+    }
+
+    @Test
+    public void cannotCreateUsersInBatchIfOneExists() {
+        ScimUser user = new ScimUser(null, "bulk0@foo.com", "Bulk", "User");
+        user.addEmail("bulk0@foo.com");
+        ScimUser existing = new ScimUser(null, "joe", "Joe", "User");
+        existing.addEmail("joe@joe.com");
+        try {
+            db.createUsers(Arrays.asList(user, existing), Arrays.asList("j7hyqpassX", "j7hyqpassX"));
+            fail("Expected ScimResourceAlreadyExistsException");
+        } catch (ScimResourceAlreadyExistsException e) {
+            assertEquals("Username already in use: joe", e.getMessage());
+            assertEquals(JOE_ID, e.getExtraInfo().get("user_id"));
+        }
+        assertEquals(0, jdbcTemplate.queryForInt("select count(*) from users where userName='bulk0@foo.com'"));
+    }
+
+    @Test(expected = ScimResourceAlreadyExistsException.class)
+    public void cannotCreateTheSameUserTwiceInBatch() {
+        ScimUser user = new ScimUser(null, "bulk0@foo.com", "Bulk", "User");
+        user.addEmail("bulk0@foo.com");
+        db.createUsers(Arrays.asList(user, user), Arrays.asList("j7hyqpassX", "j7hyqpassX"));
+    }
+
     @Test
     public void canCreateUserWithSingleQuoteInEmailAndUsername() {
         ScimUser user = new ScimUser(null, "ro'gallagher@example.com", "Rob", "O'Gallagher");
@@ -698,6 +748,105 @@ public class JdbcScimUserProvisioningTests extends JdbcTestBase {
         assertEquals(2 + existingUserCount, db.query("username pr", "emails.value", true).size());
     }
 
+    @Test
+    public void canPageUsersWithCursor() {
+        List<String> expected = new ArrayList<String>();
+        for (ScimUser user : db.query("username pr", "username", true)) {
+            expected.add(user.getId());
+        }
+
+        List<String> ids = new ArrayList<String>();
+        CursorPage<ScimUser> page = db.query("username pr", "username", true, "", 1, true);
+        assertEquals(1, page.getStartIndex());
+        assertEquals(expected.size(), page.getTotalResults());
+        while (true) {
+            assertEquals(ids.size() + 1, page.getStartIndex());
+            assertEquals(expected.size(), page.getTotalResults());
+            for (ScimUser user : page.getResources()) {
+                ids.add(user.getId());
+            }
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            page = db.query("username pr", "username", true, page.getNextCursor(), 1, true);
+        }
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    public void canPageUsersWithCursorOnNonUniqueColumnWithoutCounting() {
+        jdbcTemplate.update("update users set created=?", new Timestamp(1000));
+        List<String> ids = new ArrayList<String>();
+        String cursor = "";
+        while (cursor != null) {
+            CursorPage<ScimUser> page = db.query("username pr", "created", false, cursor, 1, false);
+            for (ScimUser user : page.getResources()) {
+                assertFalse(ids.contains(user.getId()));
+                ids.add(user.getId());
+            }
+            assertEquals(ids.size() + (page.getNextCursor() == null ? 0 : 1), page.getTotalResults());
+            cursor = page.getNextCursor();
+        }
+        assertEquals(2 + existingUserCount, ids.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotPageUsersWithInvalidCursor() {
+        db.query("username pr", "username", true, "not-a-cursor", 1, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotPageUsersWithCursorOfAnotherSortOrder() {
+        String cursor = db.query("username pr", "username", true, "", 1, true).getNextCursor();
+        db.query("username pr", "emails.value", true, cursor, 1, true);
+    }
+
+    @Test
+    public void canStreamUsersInBatches() {
+        List<String> expected = new ArrayList<String>();
+        for (ScimUser user : db.query("username pr", "username", true)) {
+            expected.add(user.getId());
+        }
+
+        db.setPageSize(1);
+        final List<String> ids = new ArrayList<String>();
+        int total = db.query("username pr", "username", true, 2, 100, new ResultHandler<ScimUser>() {
+            @Override
+            public boolean handle(List<ScimUser> results) {
+                assertEquals(1, results.size());
+                ids.add(results.get(0).getId());
+                return true;
+            }
+        });
+        assertEquals(expected.size(), total);
+        assertEquals(expected.subList(1, expected.size()), ids);
+    }
+
+    @Test
+    public void canStopStreamingUsers() {
+        db.setPageSize(1);
+        final List<String> ids = new ArrayList<String>();
+        int total = db.query("username pr", "username", true, 1, 100, new ResultHandler<ScimUser>() {
+            @Override
+            public boolean handle(List<ScimUser> results) {
+                ids.add(results.get(0).getId());
+                return false;
+            }
+        });
+        assertEquals(2 + existingUserCount, total);
+        assertEquals(1, ids.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cannotStreamUsersWithInvalidFilter() {
+        db.query("username eq joe", "username", true, 1, 100, new ResultHandler<ScimUser>() {
+            @Override
+            public boolean handle(List<ScimUser> results) {
+                return true;
+            }
+        });
+    }
+
     @Test
     public void canRetrieveUsersWithFilterBooleanAnd() {
         assertEquals(2, db.query("username pr and emails.value co \".com\"").size());
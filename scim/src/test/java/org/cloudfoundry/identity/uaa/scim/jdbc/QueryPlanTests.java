@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.audit.JdbcFailedLoginCountingAuditService;
+import org.cloudfoundry.identity.uaa.codestore.JdbcExpiringCodeStore;
+import org.cloudfoundry.identity.uaa.oauth.approval.JdbcApprovalStore;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.user.JdbcUaaUserDatabase;
+import org.cloudfoundry.identity.uaa.zone.JdbcIdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.JdbcIdentityZoneProvisioning;
+import org.cloudfoundry.identity.uaa.zone.MultitenantJdbcClientDetailsService;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+/**
+ * Checks the query plans of the statements that are run on every login,
+ * token or membership request, so that a statement or schema change that
+ * makes one of them scan a whole table fails the build. Listings and the
+ * statements of the periodic loaders read whole tables by design and are not
+ * checked.
+ * <p>
+ * The plans are read with HSQLDB's EXPLAIN PLAN, the other databases are
+ * skipped.
+ */
+public class QueryPlanTests extends JdbcTestBase {
+
+    private static Map<String, String> getLookups() {
+        Map<String, String> lookups = new LinkedHashMap<>();
+        lookups.put("user by id", JdbcUaaUserDatabase.DEFAULT_USER_BY_ID_QUERY);
+        lookups.put("user by name", JdbcUaaUserDatabase.DEFAULT_USER_BY_USERNAME_QUERY);
+        lookups.put("scim user by id", JdbcScimUserProvisioning.USER_BY_ID_QUERY);
+        lookups.put("scim users by ids", JdbcScimUserProvisioning.USERS_BY_IDS_QUERY);
+        lookups.put("read password", JdbcScimUserProvisioning.READ_PASSWORD_SQL);
+        lookups.put("change password", JdbcScimUserProvisioning.CHANGE_PASSWORD_SQL);
+        lookups.put("deactivate user", JdbcScimUserProvisioning.DEACTIVATE_USER_SQL);
+        lookups.put("verify user", JdbcScimUserProvisioning.VERIFY_USER_SQL);
+        lookups.put("delete user", JdbcScimUserProvisioning.DELETE_USER_SQL);
+        lookups.put("group by id", JdbcScimGroupProvisioning.GET_GROUP_SQl);
+        lookups.put("delete group", JdbcScimGroupProvisioning.DELETE_GROUP_SQL);
+        lookups.put("members of group", JdbcScimGroupMembershipManager.GET_MEMBERS_SQL);
+        lookups.put("member of group", JdbcScimGroupMembershipManager.GET_MEMBER_SQl);
+        lookups.put("members with authority", JdbcScimGroupMembershipManager.GET_MEMBERS_WITH_AUTHORITY_SQL);
+        lookups.put("groups of members", JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBERS_SQL);
+        lookups.put("groups by ids", JdbcScimGroupMembershipManager.GET_GROUPS_BY_IDS_SQL);
+        lookups.put("membership origins", JdbcScimGroupMembershipManager.GET_MEMBERSHIP_ORIGINS_SQL);
+        lookups.put("existing user ids", JdbcScimGroupMembershipManager.GET_USER_IDS_SQL);
+        lookups.put("update member", JdbcScimGroupMembershipManager.UPDATE_MEMBER_SQL);
+        lookups.put("delete member", JdbcScimGroupMembershipManager.DELETE_MEMBER_SQL);
+        lookups.put("delete members of group", JdbcScimGroupMembershipManager.DELETE_MEMBERS_IN_GROUP_SQL);
+        lookups.put("delete member from groups", JdbcScimGroupMembershipManager.DELETE_MEMBER_IN_GROUPS_SQL);
+        lookups.put("external mappings of group", JdbcScimGroupExternalMembershipManager.GET_EXTERNAL_GROUP_MAPPINGS_SQL);
+        lookups.put("delete external mappings of group",
+                        JdbcScimGroupExternalMembershipManager.DELETE_EXTERNAL_GROUP_MAPPINGS_USING_GROUP_SQL);
+        lookups.put("approvals of user and client", JdbcApprovalStore.GET_USER_CLIENT_AUTHZ_SQL);
+        lookups.put("client by id", MultitenantJdbcClientDetailsService.DEFAULT_SELECT_STATEMENT);
+        lookups.put("code by value", JdbcExpiringCodeStore.select);
+        lookups.put("consume code", JdbcExpiringCodeStore.delete);
+        lookups.put("expired codes", JdbcExpiringCodeStore.selectExpired);
+        lookups.put("delete expired codes", JdbcExpiringCodeStore.deleteExpiredCodes);
+        lookups.put("identity provider by id", JdbcIdentityProviderProvisioning.IDENTITY_PROVIDER_BY_ID_QUERY);
+        lookups.put("identity provider by origin", JdbcIdentityProviderProvisioning.IDENTITY_PROVIDER_BY_ORIGIN_QUERY);
+        lookups.put("identity providers of zone", JdbcIdentityProviderProvisioning.IDENTITY_ACTIVE_PROVIDERS_QUERY);
+        lookups.put("modified identity providers", JdbcIdentityProviderProvisioning.IDENTITY_PROVIDERS_MODIFIED_SINCE_QUERY);
+        lookups.put("zone by id", JdbcIdentityZoneProvisioning.IDENTITY_ZONE_BY_ID_QUERY);
+        lookups.put("zone by subdomain", JdbcIdentityZoneProvisioning.IDENTITY_ZONE_BY_SUBDOMAIN_QUERY);
+        lookups.put("failed logins", JdbcFailedLoginCountingAuditService.RETRIEVE_FAILURE_SQL);
+        lookups.put("count failed login", JdbcFailedLoginCountingAuditService.INCREMENT_FAILURE_SQL);
+        return lookups;
+    }
+
+    @Test
+    public void testLookupsDoNotScanTables() throws Exception {
+        Assume.assumeTrue(isHsqldb());
+        List<String> failures = new ArrayList<>();
+        for (Map.Entry<String, String> lookup : getLookups().entrySet()) {
+            String sql = lookup.getValue().replaceAll(":\\w+", "?");
+            for (String table : getScannedTables(sql)) {
+                failures.add(lookup.getKey() + " scans " + table + ": " + sql);
+            }
+        }
+        if (!failures.isEmpty()) {
+            fail("Full table scans found:\n" + failures);
+        }
+    }
+
+    private boolean isHsqldb() {
+        return jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+            @Override
+            public Boolean doInConnection(Connection con) throws SQLException, DataAccessException {
+                return con.getMetaData().getDatabaseProductName().toLowerCase().contains("hsql");
+            }
+        });
+    }
+
+    /**
+     * @return the tables that the plan of the statement reads without an
+     *         index, the plan names the table of a range before its access
+     *         method
+     */
+    private List<String> getScannedTables(String sql) {
+        List<String> scanned = new ArrayList<>();
+        String table = null;
+        for (String line : jdbcTemplate.queryForList("explain plan for " + sql, String.class)) {
+            line = line.trim();
+            if (line.startsWith("table=")) {
+                table = line.substring("table=".length());
+            } else if (line.startsWith("TABLE[")) {
+                table = line.substring("TABLE[".length(), line.indexOf(']'));
+            } else if (line.startsWith("access=FULL SCAN") && table != null && !table.startsWith("SYSTEM_")) {
+                // in lists are read from a system table
+                scanned.add(table);
+            }
+        }
+        return scanned;
+    }
+
+}
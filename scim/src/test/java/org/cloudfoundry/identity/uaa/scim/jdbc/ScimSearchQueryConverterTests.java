@@ -17,6 +17,9 @@ import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFil
 import org.junit.Before;
 import org.junit.Test;
 
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -114,6 +117,72 @@ public class ScimSearchQueryConverterTests {
         validate(filterProcessor.convert("username pr", "emails.value", true), "username IS NOT NULL ORDER BY email ASC", 0);
     }
 
+    @Test
+    public void filtersOfTheSameShapeAreCompiledOnce() {
+        ProcessedFilter first = filterProcessor.convert("userName eq \"joe\" and origin eq \"uaa\"", null, false);
+        assertEquals(1, filterProcessor.getCachedFilterCount());
+        ProcessedFilter second = filterProcessor.convert("userName eq \"Marissa\" and origin eq \"ldap\"", null, false);
+        assertEquals(1, filterProcessor.getCachedFilterCount());
+        assertEquals("__value_", second.getParamPrefix());
+        assertEquals(first.getSql(), second.getSql());
+        assertEquals("Marissa", second.getParams().get("__value_0"));
+        assertEquals("ldap", second.getParams().get("__value_1"));
+    }
+
+    @Test
+    public void compiledFiltersKeepTheirValueTypes() throws Exception {
+        // timestamps are parsed in the default time zone
+        DateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        for (int i = 0; i < 2; i++) {
+            String created = "1970-01-01T00:00:0" + i + ".000Z";
+            ProcessedFilter filter = filterProcessor.convert("displayName co \"wr" + i + "\" or displayName sw \"sc" + i
+                            + "\" or meta.created gt \"" + created + "\" or active eq " + (i == 0)
+                            + " or meta.version ge " + i, null, false);
+            validate(filter, "((((LOWER(displayName) LIKE LOWER(:__value_0) OR LOWER(displayName) LIKE LOWER(:__value_1))"
+                            + " OR created > :__value_2) OR active = :__value_3) OR version >= :__value_4)", 5,
+                            String.class, String.class, Date.class, Boolean.class, Double.class);
+            assertEquals("%wr" + i + "%", filter.getParams().get("__value_0"));
+            assertEquals("sc" + i + "%", filter.getParams().get("__value_1"));
+            assertEquals(timestampFormat.parse(created), filter.getParams().get("__value_2"));
+            assertEquals(i == 0, filter.getParams().get("__value_3"));
+            assertEquals((double) i, filter.getParams().get("__value_4"));
+        }
+        assertEquals(1, filterProcessor.getCachedFilterCount());
+    }
+
+    @Test
+    public void filtersOfDifferentShapesAreNotConfused() {
+        validate(filterProcessor.convert("meta.created gt \"1970-01-01T00:00:00.000Z\"", null, false), "created > :__value_0", 1, Date.class);
+        validate(filterProcessor.convert("meta.created gt \"yesterday\"", null, false), "LOWER(created) > LOWER(:__value_0)", 1, String.class);
+        validate(filterProcessor.convert("username pr", "username", true), "username IS NOT NULL ORDER BY username ASC", 0);
+        validate(filterProcessor.convert("username pr", "username", false), "username IS NOT NULL ORDER BY username DESC", 0);
+        validate(filterProcessor.convert("username pr", null, false), "username IS NOT NULL", 0);
+        validate(filterProcessor.convert("username eq \"null\"", null, false), "LOWER(username) = LOWER(:__value_0)", 1, String.class);
+        assertEquals(6, filterProcessor.getCachedFilterCount());
+    }
+
+    @Test
+    public void legacyAndEscapedFiltersAreNotCompiled() {
+        validate(filterProcessor.convert("username eq 'joe'", null, false), "LOWER(username) = LOWER(:__value_0)", 1);
+        ProcessedFilter filter = filterProcessor.convert("username eq \"jo\\\"e\"", null, false);
+        assertEquals("jo\"e", filter.getParams().get(filter.getParamPrefix() + "0"));
+        assertEquals(0, filterProcessor.getCachedFilterCount());
+    }
+
+    @Test
+    public void filtersCanBeParsedEveryTime() {
+        filterProcessor.setMaxCachedFilters(0);
+        validate(filterProcessor.convert("username eq \"joe\"", null, false), "LOWER(username) = LOWER(:__value_0)", 1);
+        assertEquals(0, filterProcessor.getCachedFilterCount());
+    }
+
+    @Test
+    public void parameterNamesDoNotClashWithTheFilter() {
+        ProcessedFilter filter = filterProcessor.convert("username eq \"__value_0\"", null, false);
+        assertEquals("__value_0", filter.getParams().get(filter.getParamPrefix() + "0"));
+        assertEquals(0, filterProcessor.getCachedFilterCount());
+    }
+
     private void validate(ProcessedFilter filter, String expectedSql, int expectedParamCount, Class... types) {
         assertNotNull(filter);
         expectedSql = expectedSql.replaceAll("__value_", filter.getParamPrefix());
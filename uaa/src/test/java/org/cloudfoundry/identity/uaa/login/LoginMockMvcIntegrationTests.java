@@ -19,12 +19,15 @@ import java.util.List;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static org.springframework.http.MediaType.TEXT_HTML;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.forwardedUrl;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.view;
@@ -290,6 +293,21 @@ public class LoginMockMvcIntegrationTests extends TestClassNullifier {
 
     }
 
+    @Test
+    public void testUnchangedInfoIsNotModified() throws Exception {
+        String etag = mockMvc.perform(get("/info")
+            .accept(APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string("ETag", notNullValue()))
+            .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/info")
+            .accept(APPLICATION_JSON)
+            .header("If-None-Match", etag))
+            .andExpect(status().isNotModified())
+            .andExpect(content().string(""));
+    }
+
     @Test
     public void testInfoWithRemoteUaaHtmlPrompts() throws Exception {
         mockMvc.perform(get("/info")
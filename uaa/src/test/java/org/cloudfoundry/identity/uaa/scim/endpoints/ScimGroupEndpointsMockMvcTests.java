@@ -29,6 +29,7 @@ import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupExternalMembershipMa
 import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimGroupProvisioning;
 import org.cloudfoundry.identity.uaa.test.TestClient;
 import org.cloudfoundry.identity.uaa.test.YamlServletProfileInitializerContextInitializer;
+import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.AfterClass;
@@ -41,6 +42,7 @@ import org.junit.Test;
 import org.springframework.http.MediaType;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.security.web.FilterChainProxy;
 import org.springframework.test.web.servlet.MockMvc;
@@ -62,6 +64,7 @@ import java.util.Map;
 import java.util.Set;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
@@ -208,6 +211,59 @@ public class ScimGroupEndpointsMockMvcTests extends TestClassNullifier {
         }
     }
 
+    @Test
+    public void testCachedUserSeesGroupCreatedWithIt() throws Exception {
+        UaaUserDatabase userDatabase = webApplicationContext.getBean("userDatabase", UaaUserDatabase.class);
+        String displayName = "cached." + generator.generate().toLowerCase();
+        assertFalse(getAuthorities(userDatabase).contains(displayName));
+
+        ScimGroup group = new ScimGroup(displayName);
+        group.setMembers(Arrays.asList(new ScimGroupMember(scimUser.getId())));
+        mockMvc.perform(post("/Groups")
+            .accept(APPLICATION_JSON)
+            .contentType(APPLICATION_JSON)
+            .header("Authorization", "Bearer " + scimWriteToken)
+            .content(new ObjectMapper().writeValueAsBytes(group)))
+            .andExpect(status().isCreated());
+
+        assertTrue(getAuthorities(userDatabase).contains(displayName));
+    }
+
+    @Test
+    public void testCachedUserSeesGroupCreatedWithItInBulk() throws Exception {
+        UaaUserDatabase userDatabase = webApplicationContext.getBean("userDatabase", UaaUserDatabase.class);
+        String displayName = "cached." + generator.generate().toLowerCase();
+        assertFalse(getAuthorities(userDatabase).contains(displayName));
+
+        String body = "{\"Operations\":[{\"method\":\"POST\",\"bulkId\":\"g1\",\"path\":\"/Groups\",\"data\":"
+            + "{\"displayName\":\"" + displayName + "\",\"members\":[{\"value\":\"" + scimUser.getId()
+            + "\",\"type\":\"USER\"}]}}]}";
+        mockMvc.perform(post("/Bulk")
+            .accept(APPLICATION_JSON)
+            .contentType(APPLICATION_JSON)
+            .header("Authorization", "Bearer " + scimWriteToken)
+            .content(body))
+            .andExpect(status().isOk());
+
+        assertTrue(getAuthorities(userDatabase).contains(displayName));
+    }
+
+    @Test
+    public void testCachedUserSeesMembersAddedWithoutGroupEvent() throws Exception {
+        UaaUserDatabase userDatabase = webApplicationContext.getBean("userDatabase", UaaUserDatabase.class);
+        String displayName = "cached." + generator.generate().toLowerCase();
+        ScimGroup group = webApplicationContext.getBean(ScimGroupProvisioning.class).create(new ScimGroup(displayName));
+        assertFalse(getAuthorities(userDatabase).contains(displayName));
+
+        webApplicationContext.getBean(ScimGroupMembershipManager.class).addMembers(group.getId(),
+            Arrays.asList(new ScimGroupMember(scimUser.getId())));
+
+        assertTrue(getAuthorities(userDatabase).contains(displayName));
+    }
+
+    private Set<String> getAuthorities(UaaUserDatabase userDatabase) {
+        return AuthorityUtils.authorityListToSet(userDatabase.retrieveUserById(scimUser.getId()).getAuthorities());
+    }
 
     @Test
     @Ignore //we only create DB once - so can no longer run
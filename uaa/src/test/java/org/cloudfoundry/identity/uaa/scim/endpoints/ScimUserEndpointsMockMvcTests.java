@@ -229,6 +229,72 @@ public class ScimUserEndpointsMockMvcTests extends TestClassNullifier {
         }
     }
 
+    @Test
+    public void testStreamUsers() throws Exception {
+        ScimUser user = createUser(scimReadWriteToken);
+        MockHttpServletRequestBuilder get = MockMvcRequestBuilders.get("/Users")
+            .header("Authorization", "Bearer " + scimReadWriteToken)
+            .param("stream", "true")
+            .param("filter", "userName eq \"" + user.getUserName() + "\"")
+            .accept(APPLICATION_JSON);
+
+        mockMvc.perform(get)
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.totalResults").value(1))
+            .andExpect(jsonPath("$.itemsPerPage").value(1))
+            .andExpect(jsonPath("$.resources[0].userName").value(user.getUserName()));
+    }
+
+    @Test
+    public void testStreamUsersWithInvalidFilter() throws Exception {
+        MockHttpServletRequestBuilder get = MockMvcRequestBuilders.get("/Users")
+            .header("Authorization", "Bearer " + scimReadWriteToken)
+            .param("stream", "true")
+            .param("filter", "userName eq joe")
+            .accept(APPLICATION_JSON);
+
+        mockMvc.perform(get)
+            .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testBulkCreateUsers() throws Exception {
+        String first = generator.generate().toLowerCase() + "@example.com";
+        String second = generator.generate().toLowerCase() + "@example.com";
+        String body = "{\"schemas\":[\"urn:ietf:params:scim:api:messages:2.0:BulkRequest\"],\"Operations\":["
+            + "{\"method\":\"POST\",\"bulkId\":\"u1\",\"path\":\"/Users\",\"data\":{\"userName\":\"" + first
+            + "\",\"emails\":[{\"value\":\"" + first + "\"}]}},"
+            + "{\"method\":\"POST\",\"bulkId\":\"u2\",\"path\":\"/Users\",\"data\":{\"userName\":\"" + second
+            + "\",\"emails\":[{\"value\":\"" + second + "\"}]}},"
+            + "{\"method\":\"POST\",\"bulkId\":\"g1\",\"path\":\"/Groups\",\"data\":{\"displayName\":\"bulk."
+            + generator.generate().toLowerCase() + "\",\"members\":[{\"value\":\"bulkId:u1\",\"type\":\"USER\"}]}}]}";
+        MockHttpServletRequestBuilder post = post("/Bulk")
+            .header("Authorization", "Bearer " + scimReadWriteToken)
+            .contentType(APPLICATION_JSON)
+            .accept(APPLICATION_JSON)
+            .content(body);
+
+        mockMvc.perform(post)
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.schemas[0]").value("urn:ietf:params:scim:api:messages:2.0:BulkResponse"))
+            .andExpect(jsonPath("$.Operations[0].bulkId").value("u1"))
+            .andExpect(jsonPath("$.Operations[0].status").value("201"))
+            .andExpect(jsonPath("$.Operations[1].status").value("201"))
+            .andExpect(jsonPath("$.Operations[2].status").value("201"));
+    }
+
+    @Test
+    public void testBulkWithScimCreateToken() throws Exception {
+        MockHttpServletRequestBuilder post = post("/Bulk")
+            .header("Authorization", "Bearer " + scimCreateToken)
+            .contentType(APPLICATION_JSON)
+            .accept(APPLICATION_JSON)
+            .content("{\"Operations\":[]}");
+
+        mockMvc.perform(post)
+            .andExpect(status().isForbidden());
+    }
+
     @Test
     public void testGetUser() throws Exception {
         getUser(scimReadWriteToken, HttpStatus.OK.value());